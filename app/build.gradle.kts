@@ -1,6 +1,9 @@
 plugins {
     // Apply the application plugin to add support for building a CLI application in Java.
     application
+
+    // Microbenchmarks in src/jmh, run with ./gradlew jmh
+    alias(libs.plugins.jmh)
 }
 
 repositories {
@@ -33,8 +36,23 @@ application {
 tasks.named<Test>("test") {
     // Use JUnit Platform for unit tests.
     useJUnitPlatform()
+    // No display in tests, the clipboard falls back to memory
+    systemProperty("java.awt.headless", "true")
 }
 
 tasks.named<JavaExec>("run"){
     standardInput = System.`in`
 }
+
+jmh {
+    jmhVersion = libs.versions.jmh
+    // Throughput plus allocation rate (gc.alloc.rate.norm is bytes per operation)
+    benchmarkMode = listOf("thrpt")
+    profilers = listOf("gc")
+    fork = 1
+    warmupIterations = 3
+    iterations = 5
+    resultFormat = "JSON"
+    // Run a subset with ./gradlew jmh -Pjmh.includes=Kdf
+    providers.gradleProperty("jmh.includes").orNull?.let { includes = listOf(it) }
+}
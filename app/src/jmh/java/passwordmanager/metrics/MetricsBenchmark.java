@@ -0,0 +1,38 @@
+package passwordmanager.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * What timing an operation adds to it: reading the clock twice and recording
+ * the sample, alone and with every thread recording into the same timer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricsBenchmark {
+    private final Metrics.Timer timer = Metrics.timer("benchmark", "Samples recorded by MetricsBenchmark");
+
+    @Benchmark
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Benchmark
+    public void recordSince() {
+        timer.recordSince(System.nanoTime());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordSinceContended() {
+        timer.recordSince(System.nanoTime());
+    }
+}
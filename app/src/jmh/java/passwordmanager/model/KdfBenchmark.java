@@ -0,0 +1,37 @@
+package passwordmanager.model;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of deriving the vault key from the master password, which is paid on
+ * every load and unlock. PBKDF2 with 65,536 iterations is what new vaults use
+ * until the KDF is calibrated, scrypt is shown at 16 and 64 MiB.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class KdfBenchmark {
+    @Param({ "pbkdf2:10000", "pbkdf2:65536", "pbkdf2:210000", "pbkdf2:600000", "scrypt:14", "scrypt:16" })
+    String kdf;
+
+    private final byte[] salt = new byte[16];
+    private final char[] password = "correct horse battery staple".toCharArray();
+    private Kdf function;
+
+    @Setup
+    public void setUp() {
+        int cost = Integer.parseInt(kdf.substring(kdf.indexOf(':') + 1));
+        function = kdf.startsWith("scrypt") ? new Kdf.Scrypt(cost, 8, 1) : new Kdf.Pbkdf2(cost);
+    }
+
+    @Benchmark
+    public byte[] deriveKey() throws Exception {
+        return function.derive(password, salt);
+    }
+}
@@ -0,0 +1,119 @@
+package passwordmanager.model;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Saving and loading vaults of different sizes.
+ * <ul>
+ * <li>save: writes a vault whose passwords are already sealed in the file, as a
+ * journal compaction does. Passwords are copied without decrypting them.</li>
+ * <li>saveNew: writes entries with plain passwords, sealing every one of
+ * them.</li>
+ * <li>load: includes deriving the key, see {@link KdfBenchmark} for that part
+ * alone. Passwords stay sealed.</li>
+ * <li>loadAndReadAll: load, then decrypt every password.</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class VaultBenchmark {
+    private static final Secret MASTER = Secret.copyOf("master");
+    private static final Duration IDLE_TIMEOUT = Duration.ofHours(1);
+
+    @Param({ "100", "10000", "100000" })
+    int entries;
+
+    private Path dir;
+    private Path file;
+    private Vault vault;
+    private List<Entry> sealed;
+    private String[] services;
+    private String[] passwords;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // Vault reports every save on stdout
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        dir = Files.createTempDirectory("vault-bench");
+        file = dir.resolve("vault.dat");
+        services = new String[entries];
+        passwords = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            services[i] = "service-" + i + ".example.com";
+            passwords[i] = "p4ssw0rd-" + Integer.toHexString(i * 31 + 7);
+        }
+        vault = new Vault(file, IDLE_TIMEOUT);
+        sealed = newEntries();
+        vault.save(sealed, MASTER);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        vault.lock();
+        System.setOut(stdout);
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public void save() throws Exception {
+        vault.save(sealed, MASTER);
+    }
+
+    @Benchmark
+    public void saveNew() throws Exception {
+        vault.save(newEntries(), MASTER);
+    }
+
+    @Benchmark
+    public List<Entry> load() throws Exception {
+        Vault loaded = new Vault(file, IDLE_TIMEOUT);
+        List<Entry> result = loaded.load(MASTER);
+        loaded.lock();
+        return result;
+    }
+
+    @Benchmark
+    public long loadAndReadAll() throws Exception {
+        Vault loaded = new Vault(file, IDLE_TIMEOUT);
+        long length = 0;
+        for (Entry entry : loaded.load(MASTER)) {
+            length += entry.getPassword().length();
+        }
+        loaded.lock();
+        return length;
+    }
+
+    private List<Entry> newEntries() {
+        List<Entry> list = new ArrayList<>(entries);
+        for (int i = 0; i < entries; i++) {
+            list.add(new Entry(services[i], "user", passwords[i]));
+        }
+        return list;
+    }
+}
@@ -0,0 +1,108 @@
+package passwordmanager.server;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import passwordmanager.model.Entry;
+import passwordmanager.model.EntryStore;
+import passwordmanager.model.Secret;
+import passwordmanager.model.Vault;
+
+/**
+ * Request latency of the daemon with 8 clients at once, over a vault of 10,000
+ * entries. Lookups only share the read lock, so their percentiles should stay
+ * close to a single client's; adds queue on the write lock and on disk, and
+ * concurrent ones are committed together.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(8)
+public class VaultServerBenchmark {
+    private static final int ENTRIES = 10_000;
+
+    private Path dir;
+    private VaultServer server;
+    private HttpClient client;
+    private String base;
+    private String token;
+    private final AtomicLong added = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // 1. A saved vault
+        dir = Files.createTempDirectory("server-bench");
+        Vault vault = new Vault(dir.resolve("vault.dat"), Duration.ofHours(1));
+        List<Entry> entries = new ArrayList<>(ENTRIES);
+        for (int i = 0; i < ENTRIES; i++) {
+            entries.add(new Entry("service" + i, "user" + i, "password" + i));
+        }
+        vault.save(entries, Secret.copyOf("master"));
+        // 2. The server and a session
+        server = new VaultServer(vault, new EntryStore(entries), Secret.copyOf("master"), 0);
+        server.start();
+        base = "http://127.0.0.1:" + server.port();
+        client = HttpClient.newHttpClient();
+        HttpResponse<String> login = client.send(HttpRequest.newBuilder(URI.create(base + "/session"))
+                .POST(HttpRequest.BodyPublishers.ofString("password=master")).build(),
+                HttpResponse.BodyHandlers.ofString());
+        token = login.body().split("\"")[3];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.close();
+        try (var files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    public String lookup() throws Exception {
+        int i = (int) (Thread.currentThread().threadId() * 7919 + System.nanoTime()) & Integer.MAX_VALUE;
+        return send(HttpRequest.newBuilder(URI.create(base + "/password?service=service" + i % ENTRIES)).GET());
+    }
+
+    @Benchmark
+    public String add() throws Exception {
+        return send(HttpRequest.newBuilder(URI.create(base + "/entries"))
+                .POST(HttpRequest.BodyPublishers.ofString("service=bench&username=" + added.incrementAndGet())));
+    }
+
+    @Benchmark
+    public String generate() throws Exception {
+        return send(HttpRequest.newBuilder(URI.create(base + "/generate?length=24")).GET());
+    }
+
+    private String send(HttpRequest.Builder request) throws Exception {
+        HttpResponse<String> response = client.send(request.header("Authorization", "Bearer " + token).build(),
+                HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() >= 300) {
+            throw new IllegalStateException(response.statusCode() + " " + response.body());
+        }
+        return response.body();
+    }
+}
@@ -0,0 +1,38 @@
+package passwordmanager.services;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parallel generation with an increasing number of threads, to check how it
+ * scales. Results are per password.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParallelGeneratorBenchmark {
+    private static final int COUNT = 1_000_000;
+
+    @Param({ "1", "2", "4", "8" })
+    int threads;
+
+    private ParallelGenerator generator;
+
+    @Setup
+    public void setUp() {
+        generator = new ParallelGenerator(PasswordGenerator.Policy.of(16), threads);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void generate(Blackhole blackhole) throws Exception {
+        generator.generate(COUNT, (passwords, count, length) -> blackhole.consume(passwords));
+    }
+}
@@ -0,0 +1,82 @@
+package passwordmanager.services;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import passwordmanager.model.Entry;
+import passwordmanager.model.Secret;
+import passwordmanager.model.Vault;
+
+/**
+ * Auditing a loaded vault with an increasing number of threads, to check how
+ * decrypting its passwords scales. No breach corpus, so the time is mostly
+ * decryption and scoring. Results are per entry.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PasswordAuditBenchmark {
+    private static final Secret MASTER = Secret.copyOf("master");
+    private static final int ENTRIES = 100_000;
+
+    @Param({ "1", "2", "4", "8" })
+    int threads;
+
+    private Path dir;
+    private Vault vault;
+    private List<Entry> entries;
+    private PasswordAudit audit;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // Vault reports every save on stdout
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        dir = Files.createTempDirectory("audit-bench");
+        vault = new Vault(dir.resolve("vault.dat"), Duration.ofHours(1));
+        List<Entry> plain = new ArrayList<>(ENTRIES);
+        for (int i = 0; i < ENTRIES; i++) {
+            plain.add(new Entry("service-" + i + ".example.com", "user", "p4ssw0rd-" + Integer.toHexString(i * 31 + 7)));
+        }
+        vault.save(plain, MASTER);
+        entries = vault.load(MASTER);
+        audit = new PasswordAudit(null, threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        vault.lock();
+        System.setOut(stdout);
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public PasswordAudit.Report audit() throws Exception {
+        return audit.audit(entries);
+    }
+}
@@ -0,0 +1,51 @@
+package passwordmanager.services;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Single passwords through the static method against batches from a reused
+ * generator. Batch results are per password.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PasswordGeneratorBenchmark {
+    private static final int BATCH = 1000;
+
+    @Param({ "16", "64" })
+    int length;
+
+    private PasswordGenerator generator;
+    private char[] buffer;
+
+    @Setup
+    public void setUp() {
+        generator = new PasswordGenerator(PasswordGenerator.Policy.of(length));
+        buffer = new char[BATCH * length];
+    }
+
+    @Benchmark
+    public String generate() {
+        return PasswordGenerator.generate(length);
+    }
+
+    @Benchmark
+    public char[] generateInto() {
+        generator.generate(buffer, 0);
+        return buffer;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public char[] generateBatch() {
+        generator.generateBatch(buffer, BATCH);
+        return buffer;
+    }
+}
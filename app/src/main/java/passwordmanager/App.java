@@ -4,9 +4,15 @@
 package passwordmanager;
 
 import passwordmanager.cli.CommandlineInterface;
+import passwordmanager.server.VaultServer;
 
 public class App {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        // `serve [port]` runs the HTTP daemon instead of the interactive CLI
+        if (args.length > 0 && args[0].equals("serve")) {
+            VaultServer.serve(args.length > 1 ? Integer.parseInt(args[1]) : VaultServer.DEFAULT_PORT);
+            return;
+        }
         new CommandlineInterface().start();
     }
 }
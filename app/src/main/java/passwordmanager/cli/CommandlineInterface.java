@@ -1,53 +1,97 @@
 package passwordmanager.cli;
 
 // Java imports, for I/O and data structures
-import java.io.FileNotFoundException;
+import java.io.Console;
 import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import javax.crypto.AEADBadTagException;
 
-// AWT imports, for clipboard access
-import java.awt.datatransfer.StringSelection;
-import java.awt.Toolkit;
-
-// Model imports, for Vault and Entry management
+// Model imports, for Vault and Entry management, and their metrics
+import passwordmanager.metrics.Metrics;
 import passwordmanager.model.Entry;
+import passwordmanager.model.EntryHistory;
+import passwordmanager.model.EntryStore;
+import passwordmanager.model.Kdf;
+import passwordmanager.model.Secret;
 import passwordmanager.model.Vault;
+import passwordmanager.model.VaultCache;
+import passwordmanager.model.VaultWriter;
+import passwordmanager.services.BreachCorpus;
+import passwordmanager.services.ClipboardManager;
+import passwordmanager.services.EntryTransfer;
+import passwordmanager.services.ParallelGenerator;
+import passwordmanager.services.PasswordAudit;
 import passwordmanager.services.PasswordGenerator;
+import passwordmanager.services.TransferFormat;
 
 public class CommandlineInterface {
-    private final Vault vault = new Vault();
+    private static final int SEARCH_RESULTS = 10;
+    private static final Duration DEFAULT_UNLOCK_TIME = Duration.ofMillis(300);
+    private static final DateTimeFormatter HISTORY_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")
+            .withZone(ZoneId.systemDefault());
+
+    /**
+     * A change still being saved in the background, and how to undo it in
+     * memory if saving fails.
+     */
+    private record PendingSave(CompletableFuture<Void> done, String description, Runnable rollback) {
+    }
+
+    private final VaultCache vaults = new VaultCache(Path.of(""), Vault.DEFAULT_IDLE_TIMEOUT,
+            VaultCache.DEFAULT_MEMORY_BUDGET);
+    private final List<PendingSave> pendingSaves = new ArrayList<>();
     private final Scanner scanner = new Scanner(System.in);
-    private List<Entry> currentEntries;
-    private String masterPassword;
+    private final ClipboardManager clipboard = new ClipboardManager();
+    // The current vault, see use()
+    private Vault vault;
+    private VaultWriter writer;
+    private EntryStore currentEntries;
+    // Owned by the vault cache, which destroys it when the vault is closed
+    private Secret masterPassword;
 
     public void start() {
         System.out.println("Welcome to the Password Manager CLI.");
 
-        System.out.print("Enter your master password:");
-        this.masterPassword = scanner.nextLine().trim();
+        Secret typed = readSecret("Enter your master password:");
 
-        try {
-            this.currentEntries = vault.load(this.masterPassword);
-            System.out.println("Vault loaded successfully!");
-        } catch (FileNotFoundException e) {
+        if (!vaults.exists(VaultCache.DEFAULT_NAME)) {
             System.out.println("Failed to load vault, File not found.");
             System.out.println("Do you wish to create a new vault? (y/n): ");
             String response = scanner.nextLine().trim();
             if (!response.equalsIgnoreCase("y")) {
                 System.out.println("Exiting...");
+                typed.destroy();
                 scanner.close();
                 return;
             }
-            this.currentEntries = new ArrayList<>();
+        }
+        try (typed) {
+            use(vaults.open(VaultCache.DEFAULT_NAME, typed));
+            System.out.println("Vault loaded successfully!");
         } catch (SecurityException e) {
             System.err.println("ERROR: " + e.getMessage());
             System.err.println("Please restart and try again.");
             scanner.close();
             return;
+        } catch (AEADBadTagException e) {
+            System.out.println("ERROR: Incorrect master password provided.");
+            System.out.println("Please restart and try again.");
+            scanner.close();
+            return;
         } catch (IOException e) {
-            if (e.getCause() instanceof javax.crypto.AEADBadTagException) {
+            if (isWrongPassword(e)) {
                 System.out.println("ERROR: Incorrect master password provided.");
                 System.out.println("Please restart and try again.");
             } else {
@@ -62,6 +106,14 @@ public class CommandlineInterface {
             return;
         }
 
+        // Metrics can be read with JConsole as well as with the stats command
+        try {
+            Metrics.registerMBeans();
+        } catch (Exception e) {
+            System.out.println("\t-> Metrics are not available over JMX: " + e.getMessage());
+        }
+        // Changes still queued when the program is stopped are saved first
+        Runtime.getRuntime().addShutdownHook(new Thread(vaults::close, "vault-writer-flush"));
         commandMenu();
         scanner.close();
     }
@@ -72,8 +124,9 @@ public class CommandlineInterface {
         while (true) {
             System.out.print("\n> ");
             String input = scanner.nextLine().trim();
+            checkPendingSaves();
             if (input.equalsIgnoreCase("exit")) {
-                System.out.println("Closing...");
+                close();
                 break;
             }
             handleCommand(input);
@@ -93,9 +146,25 @@ public class CommandlineInterface {
             case "add" -> handleAdd(components);
             case "show" -> handleShow(components);
             case "delete" -> handleDelete(components);
+            case "history" -> handleHistory(components);
+            case "restore" -> handleRestore(components);
+            case "retention" -> handleRetention(components);
             case "list" -> handleList();
+            case "search" -> handleSearch(components);
+            case "audit" -> handleAudit(components);
+            case "import" -> handleImport(components);
+            case "export" -> handleExport(components);
+            case "generate" -> handleGenerate(components);
+            case "calibrate" -> handleCalibrate(components);
+            case "passwd" -> handlePasswd();
+            case "open" -> handleOpen(components);
+            case "switch" -> handleSwitch(components);
+            case "close" -> handleClose(components);
+            case "vaults" -> handleVaults();
+            case "stats" -> handleStats(components);
+            case "clipboard" -> handleClipboard(components);
             case "exit" -> {
-                System.out.println("Closing...");
+                close();
                 System.exit(0);
             }
             default -> System.out.println("Unknown command...\nType 'help' to see available commands.");
@@ -109,8 +178,24 @@ public class CommandlineInterface {
                         > add <name> <username> <password>\tAdds a new password for a named service along with a username.
                         > add <name> <username> ''\tAdds a new password for a named service along with a username, with a randomly generated password.
                         > list\tShow registered services with available passwords.
-                        > show <name>\tObtain a particular password.
-                        > delete <name>\tDelete a particular password. Requires master password.
+                        > search <query>\tFind services or usernames by prefix or approximate name.
+                        > audit [corpus]\tFind weak and reused passwords, and breached ones listed in an offline HIBP corpus file (sorted SHA-1:count lines).
+                        > show <name> [username]\tObtain a particular password.
+                        > delete <name> [username]\tDelete a particular password. Requires master password.
+                        > history <name> [username]\tShow the previous passwords of a service, kept when they're deleted or replaced.
+                        > restore <name> [username] <number>\tBring back a password from the history, replacing the current one.
+                        > retention [versions days]\tShow or set how many previous passwords are kept per entry, and for how long (0 days for ever).
+                        > import <file>\tImport entries from a CSV or JSON file, or from an encrypted export.
+                        > export <file> [csv|json]\tExport all entries to a file encrypted with a passphrase.
+                        > generate <count> <file> [length]\tWrite new passwords to a file, one per line, generated on every core (16 characters by default).
+                        > calibrate [scrypt|pbkdf2] [ms]\tTune the key derivation to take about ms milliseconds here (300 by default).
+                        > passwd\tChange the master password of the current vault.
+                        > open <vault> [vault...]\tOpen or create named vaults, unlocking them in parallel, and use the last one.
+                        > switch <vault>\tUse another open vault.
+                        > close <vault>\tSave and close an open vault, wiping its key from memory.
+                        > vaults\tShow the open vaults.
+                        > clipboard [seconds|off]\tShow or set how long copied passwords stay on the clipboard (30 seconds by default).
+                        > stats [reset|prometheus <file>]\tShow timings and counters, clear them, or write them for Prometheus.
                         > help\tShow this command.
                         > exit\tClose this app.
                         """);
@@ -124,96 +209,339 @@ public class CommandlineInterface {
         }
         String service = components[1];
         String name = components[2];
-        String password = (components.length < 4) ? PasswordGenerator.generate(16) : components[3];
+        if (this.currentEntries.find(service, name) != null) {
+            System.out.println("An entry for " + service + " (" + name + ") already exists. Delete it first.");
+            return;
+        }
+        Secret password = (components.length < 4) ? Secret.wrap(PasswordGenerator.generateChars(16))
+                : Secret.copyOf(components[3]);
+        if (components.length == 4) {
+            double bits = PasswordAudit.entropyBits(password.chars());
+            if (PasswordAudit.Rating.of(bits).compareTo(PasswordAudit.Rating.FAIR) < 0) {
+                System.out.println("Warning: this password is weak (about " + Math.round(bits)
+                        + " bits), use '' to generate one instead.");
+            }
+        }
         Entry entry = new Entry(service, name, password);
 
         this.currentEntries.add(entry);
 
-        try {
-            System.out.println("Saving to disk...");
-            vault.save(this.currentEntries, this.masterPassword);
-            System.out.println("Entry for " + service + " saved successfully!");
-        } catch (Exception e) {
-            System.out.println("CRITICAL ERROR: Could not save data!");
-            e.printStackTrace();
-            this.currentEntries.remove(entry);
-        }
+        System.out.println("Entry for " + service + " added, saving to disk in the background.");
+        pendingSaves.add(new PendingSave(writer.add(entry, this.currentEntries.entries(), this.masterPassword),
+                "the entry for " + service, () -> this.currentEntries.remove(entry)));
     }
 
     private void handleShow(String[] components) {
-        if (components.length != 2) {
-            System.out.println("Usage: show <service_name>");
+        if (components.length != 2 && components.length != 3) {
+            System.out.println("Usage: show <service_name> [username]");
             return;
         }
 
-        String searchService = components[1];
-        boolean found = false;
-
-        for (Entry entry : this.currentEntries) {
-            if (entry.getService().equalsIgnoreCase(searchService)) {
-                System.out.println("Found entry:");
+        List<Entry> matches = findAccounts(components);
+        if (matches.isEmpty()) {
+            System.out.println("No entry found for service: " + components[1]);
+            return;
+        }
+        // Passwords are decrypted on demand, the key may have been wiped while idle
+        try {
+            vault.unlock(this.masterPassword);
+        } catch (Exception e) {
+            System.out.println("Could not unlock the vault: " + e.getMessage());
+            return;
+        }
+        if (matches.size() > 1) {
+            System.out.println("Found " + matches.size() + " accounts:");
+            for (Entry entry : matches) {
                 System.out.println(entry.toString());
-                System.out.println("Would you like to copy the password to your clipboard? (y/n): ");
-                String response = scanner.nextLine().trim();
-                if (response.equalsIgnoreCase("y")) {
-                    Toolkit.getDefaultToolkit()
-                            .getSystemClipboard()
-                            .setContents(new StringSelection(entry.getPassword()), null);
-                    System.out.println("Password copied to clipboard.");
-                }
-                found = true;
-                break;
             }
+            System.out.println("Use 'show " + components[1] + " <username>' to see one of them.");
+            return;
         }
 
-        if (!found) {
-            System.out.println("No entry found for service: " + searchService);
+        Entry entry = matches.get(0);
+        System.out.println("Found entry:");
+        // Printed straight from the char[], no String is made unless it's copied
+        try (Secret password = entry.openPassword()) {
+            System.out.print(entry + " | Password: ");
+            System.out.println(password.chars());
+            System.out.println("Would you like to copy the password to your clipboard? (y/n): ");
+            String response = scanner.nextLine().trim();
+            if (response.equalsIgnoreCase("y")) {
+                if (!clipboard.copy(password)) {
+                    System.out.println("There is no clipboard here (no display), the password was not copied.");
+                } else if (clipboard.clearAfter().isZero()) {
+                    System.out.println("Password copied to clipboard.");
+                } else {
+                    System.out.println("Password copied to clipboard, it will be cleared in "
+                            + clipboard.clearAfter().toSeconds() + " seconds.");
+                }
+            }
         }
     }
 
     private void handleDelete(String[] components) {
         // 1. check components
-        if (components.length != 2) {
-            System.out.println("Usage: delete <service_name>");
+        if (components.length != 2 && components.length != 3) {
+            System.out.println("Usage: delete <service_name> [username]");
             return;
         }
         // 2. search entry
-        String searchService = components[1];
-        Entry toRemove = null;
-        for (Entry entry : this.currentEntries) {
-            if (entry.getService().equalsIgnoreCase(searchService)) {
-                toRemove = entry;
-                break;
-            }
+        List<Entry> matches = findAccounts(components);
+        if (matches.isEmpty()) {
+            System.out.println("No entry found for service: " + components[1]);
+            return;
         }
-
-        if (toRemove == null) {
-            System.out.println("No entry found for service: " + searchService);
+        if (matches.size() > 1) {
+            System.out.println("There are " + matches.size() + " accounts for " + components[1]
+                    + ". Use 'delete " + components[1] + " <username>' to pick one.");
             return;
         }
+        Entry toRemove = matches.get(0);
 
         // 3. requires confirmation for master password
         System.out.println("WARNING: You are about to delete the password for: " + toRemove.getService());
-        System.out.print("Please confirm your Master Password to continue: ");
-        String confirmation = scanner.nextLine().trim();
-
-        if (!confirmation.equals(this.masterPassword)) {
-            System.out.println("Wrong password! Deletion cancelled.");
-            return;
+        try (Secret confirmation = readSecret("Please confirm your Master Password to continue: ")) {
+            if (!confirmation.contentEquals(this.masterPassword)) {
+                System.out.println("Wrong password! Deletion cancelled.");
+                return;
+            }
         }
 
         // 4 delete entry
         this.currentEntries.remove(toRemove);
         System.out.println("Entry for " + toRemove.getService() + " deleted.");
 
+        pendingSaves.add(new PendingSave(writer.delete(toRemove, this.currentEntries.entries(), this.masterPassword),
+                "the deletion of " + toRemove.getService(), () -> this.currentEntries.add(toRemove)));
+    }
+
+    private void handleHistory(String[] components) {
+        if (components.length != 2 && components.length != 3) {
+            System.out.println("Usage: history <service_name> [username]");
+            return;
+        }
+        List<EntryHistory.Version> versions = findVersions(components[1],
+                components.length == 3 ? components[2] : null);
+        if (versions == null) {
+            return;
+        }
+        if (versions.isEmpty()) {
+            System.out.println("No previous passwords for service: " + components[1]);
+            return;
+        }
+        System.out.println("--- History of " + components[1] + " ---");
+        for (int i = 0; i < versions.size(); i++) {
+            EntryHistory.Version version = versions.get(i);
+            System.out.println((i + 1) + ". Service: " + version.service() + " | User: " + version.username()
+                    + " | replaced " + HISTORY_TIME.format(version.replaced()));
+            version.password().destroy();
+        }
+        System.out.println("Use 'restore " + String.join(" ", Arrays.copyOfRange(components, 1, components.length))
+                + " <number>' to bring one back.");
+    }
+
+    private void handleRestore(String[] components) {
+        // 1. check components
+        if (components.length != 3 && components.length != 4) {
+            System.out.println("Usage: restore <service_name> [username] <number>");
+            return;
+        }
+        int number;
         try {
-            vault.save(this.currentEntries, this.masterPassword);
-            System.out.println("Changes saved to disk successfully.");
+            number = Integer.parseInt(components[components.length - 1]);
+        } catch (NumberFormatException e) {
+            System.out.println("Usage: restore <service_name> [username] <number>, as listed by 'history'");
+            return;
+        }
+        // 2. find the version, numbered as in 'history'
+        List<EntryHistory.Version> versions = findVersions(components[1],
+                components.length == 4 ? components[2] : null);
+        if (versions == null) {
+            return;
+        }
+        if (number < 1 || number > versions.size()) {
+            System.out.println("There is no version " + number + " of " + components[1] + ", see 'history "
+                    + components[1] + "'.");
+            versions.forEach(version -> version.password().destroy());
+            return;
+        }
+        Entry restored = versions.get(number - 1).toEntry();
+        versions.forEach(version -> version.password().destroy());
+
+        // 3. the current password, if any, goes into the history
+        Entry current = this.currentEntries.find(restored.getService(), restored.getUsername());
+        if (current != null) {
+            this.currentEntries.remove(current);
+            pendingSaves.add(new PendingSave(writer.delete(current, this.currentEntries.entries(),
+                    this.masterPassword), "the replaced password of " + current.getService(),
+                    () -> this.currentEntries.add(current)));
+        }
+        this.currentEntries.add(restored);
+        System.out.println("Password of " + restored + " restored, saving to disk in the background.");
+        pendingSaves.add(new PendingSave(writer.add(restored, this.currentEntries.entries(), this.masterPassword),
+                "the restored password of " + restored.getService(), () -> this.currentEntries.remove(restored)));
+    }
+
+    private void handleRetention(String[] components) {
+        if (components.length != 1 && components.length != 3) {
+            System.out.println("Usage: retention [versions days]");
+            return;
+        }
+        try {
+            if (components.length == 3) {
+                EntryHistory.Retention retention;
+                try {
+                    retention = new EntryHistory.Retention(Integer.parseInt(components[1]),
+                            Duration.ofDays(Long.parseLong(components[2])));
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Usage: retention [versions days], with 0 to 65535 versions and days not "
+                            + "negative");
+                    return;
+                }
+                flushPendingSaves();
+                vault.setHistoryRetention(retention, this.currentEntries.entries(), this.masterPassword);
+            }
+            EntryHistory history = vault.history(this.masterPassword);
+            System.out.println("History keeps " + history.retention() + ".");
+            history.destroy();
         } catch (Exception e) {
-            System.out.println("ERROR: Could not save changes to disk.");
-            e.printStackTrace();
-            this.currentEntries.add(toRemove); // Rollback
+            System.out.println("ERROR: Could not " + (components.length == 3 ? "change" : "read")
+                    + " the history: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Decrypts the previous passwords of a service, or of one of its accounts.
+     * Waits for the background saves first, the history only holds passwords
+     * replaced by changes that reached the disk.
+     *
+     * @param service
+     * @param username Null for every account
+     * @return List<EntryHistory.Version> newest first, null if the history
+     *         couldn't be read
+     */
+    private List<EntryHistory.Version> findVersions(String service, String username) {
+        try {
+            flushPendingSaves();
+            EntryHistory history = vault.history(this.masterPassword);
+            try {
+                return history.of(service, username);
+            } finally {
+                history.destroy();
+            }
+        } catch (Exception e) {
+            System.out.println("ERROR: Could not read the history: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reports background saves that finished since the last command. Failed
+     * changes are undone in memory, newest first, so the entries match the
+     * vault file again.
+     */
+    private void checkPendingSaves() {
+        for (int i = pendingSaves.size() - 1; i >= 0; i--) {
+            PendingSave save = pendingSaves.get(i);
+            if (!save.done().isDone()) {
+                continue;
+            }
+            pendingSaves.remove(i);
+            if (save.done().isCompletedExceptionally()) {
+                Throwable cause = save.done().exceptionNow();
+                System.out.println("ERROR: Could not save " + save.description() + " to disk, it was undone: "
+                        + cause.getMessage());
+                save.rollback().run();
+            }
+        }
+    }
+
+    /**
+     * Waits for the background saves, reports them and locks the vault.
+     */
+    private void close() {
+        System.out.println("Closing...");
+        if (!pendingSaves.isEmpty()) {
+            System.out.println("Saving pending changes to disk...");
+        }
+        vaults.close();
+        clipboard.close();
+        checkPendingSaves();
+    }
+
+    /**
+     * Makes an open vault the one commands work on.
+     *
+     * @param opened
+     */
+    private void use(VaultCache.OpenVault opened) {
+        this.vault = opened.vault();
+        this.writer = opened.writer();
+        this.currentEntries = opened.entries();
+        this.masterPassword = opened.masterPassword();
+    }
+
+    /**
+     * Reads a password without echoing it when there is a console, straight
+     * into a char[]. Falls back to a line of input otherwise.
+     *
+     * @param prompt
+     * @return Secret
+     */
+    private Secret readSecret(String prompt) {
+        Console console = System.console();
+        char[] typed = console != null ? console.readPassword(prompt) : null;
+        if (typed == null) {
+            System.out.print(prompt);
+            typed = scanner.nextLine().trim().toCharArray();
+        }
+        return Secret.wrap(typed);
+    }
+
+    /**
+     * Streams the current vault's entries from its file, for the commands that
+     * go through all of them once, after the background saves reached it.
+     *
+     * @return Stream<Entry> to close once read
+     * @throws Exception
+     */
+    private Stream<Entry> streamEntries() throws Exception {
+        flushPendingSaves();
+        if (this.currentEntries.isEmpty()) {
+            // Nothing was saved yet, there may be no file
+            return Stream.empty();
+        }
+        return vault.stream(this.masterPassword);
+    }
+
+    private static boolean isWrongPassword(Exception e) {
+        return e instanceof AEADBadTagException || e.getCause() instanceof AEADBadTagException;
+    }
+
+    /**
+     * Waits for the background saves before a command that commits to the
+     * vault directly, so changes reach the file in the order they were made.
+     *
+     * @throws InterruptedException
+     */
+    private void flushPendingSaves() throws InterruptedException {
+        writer.flush();
+        checkPendingSaves();
+    }
+
+    /**
+     * Looks up the accounts named by a command: every account of the service,
+     * or just the one for the username when it's given.
+     *
+     * @param components
+     * @return List<Entry>
+     */
+    private List<Entry> findAccounts(String[] components) {
+        if (components.length == 3) {
+            Entry entry = this.currentEntries.find(components[1], components[2]);
+            return entry == null ? List.of() : List.of(entry);
         }
+        return this.currentEntries.find(components[1]);
     }
 
     private void handleList() {
@@ -222,9 +550,392 @@ public class CommandlineInterface {
             return;
         }
 
-        System.out.println("--- Stored Services ---");
-        for (Entry entry : this.currentEntries) {
+        try (Stream<Entry> entries = streamEntries()) {
+            System.out.println("--- Stored Services ---");
+            entries.forEach(entry -> System.out.println("> " + entry.getService() + " (" + entry.getUsername() + ")"));
+        } catch (Exception e) {
+            System.out.println("ERROR: Could not read the vault: " + e.getMessage());
+        }
+    }
+
+    private void handleSearch(String[] components) {
+        if (components.length < 2) {
+            System.out.println("Usage: search <query>");
+            return;
+        }
+
+        String query = String.join(" ", Arrays.copyOfRange(components, 1, components.length));
+        List<Entry> results = this.currentEntries.search(query, SEARCH_RESULTS);
+        if (results.isEmpty()) {
+            System.out.println("No matches for: " + query);
+            return;
+        }
+
+        System.out.println("--- Matches for " + query + " ---");
+        for (Entry entry : results) {
             System.out.println("> " + entry.getService() + " (" + entry.getUsername() + ")");
         }
     }
+
+    private void handleAudit(String[] components) {
+        if (components.length > 2) {
+            System.out.println("Usage: audit [corpus]");
+            return;
+        }
+        long start = System.nanoTime();
+        PasswordAudit.Report report;
+        try (BreachCorpus corpus = components.length == 2 ? BreachCorpus.open(Path.of(components[1])) : null;
+                Stream<Entry> entries = streamEntries()) {
+            report = new PasswordAudit(corpus).audit(entries::iterator);
+        } catch (Exception e) {
+            System.out.println("ERROR: Could not audit the vault: " + e.getMessage());
+            return;
+        }
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+
+        int weak = 0;
+        int reused = 0;
+        int breached = 0;
+        System.out.println("--- Passwords at risk ---");
+        for (PasswordAudit.Finding finding : report.atRisk()) {
+            List<String> problems = new ArrayList<>();
+            if (finding.rating().compareTo(PasswordAudit.Rating.FAIR) < 0) {
+                problems.add(finding.rating().name().toLowerCase(Locale.ROOT).replace('_', ' ') + " (about "
+                        + Math.round(finding.entropyBits()) + " bits)");
+                weak++;
+            }
+            if (finding.reusedBy() > 0) {
+                problems.add("shared with " + finding.reusedBy() + " other entr"
+                        + (finding.reusedBy() == 1 ? "y" : "ies"));
+                reused++;
+            }
+            if (finding.breaches() > 0) {
+                problems.add("seen " + finding.breaches() + " times in breaches");
+                breached++;
+            }
+            System.out.println("> " + finding.entry() + ": " + String.join(", ", problems));
+        }
+        System.out.println(report.audited() + " entries audited in " + elapsed + " ms: " + weak + " weak, " + reused
+                + " reused, " + (components.length == 2 ? breached + " breached." : "breaches not checked."));
+    }
+
+    private void handleImport(String[] components) {
+        if (components.length != 2) {
+            System.out.println("Usage: import <file>");
+            return;
+        }
+        Path file = Path.of(components[1]);
+        if (!Files.isRegularFile(file)) {
+            System.out.println("File not found: " + file);
+            return;
+        }
+
+        Secret passphrase = null;
+        try {
+            if (EntryTransfer.isEncrypted(file)) {
+                passphrase = readSecret("Enter the passphrase of the export: ");
+            }
+            flushPendingSaves();
+            System.out.println("Importing from " + file + "...");
+            EntryTransfer.Report report = EntryTransfer.importFrom(file, passphrase, this.currentEntries, vault,
+                    this.masterPassword);
+            System.out.println("Imported " + report.imported() + " entries (" + report.duplicates()
+                    + " already stored, " + report.invalid() + " invalid rows).");
+            for (String problem : report.problems()) {
+                System.out.println("\t-> " + problem);
+            }
+        } catch (Exception e) {
+            System.out.println("ERROR: Import failed, nothing was imported: " + e.getMessage());
+        } finally {
+            if (passphrase != null) {
+                passphrase.destroy();
+            }
+        }
+    }
+
+    private void handleExport(String[] components) {
+        if (components.length != 2 && components.length != 3) {
+            System.out.println("Usage: export <file> [csv|json]");
+            return;
+        }
+        Path file = Path.of(components[1]);
+        TransferFormat format;
+        if (components.length == 3) {
+            format = TransferFormat.fromFileName("." + components[2]);
+        } else {
+            format = TransferFormat.fromFileName(file.getFileName().toString());
+            format = format == null ? TransferFormat.CSV : format;
+        }
+        if (format == null) {
+            System.out.println("Unknown format: " + components[2] + ". Use csv or json.");
+            return;
+        }
+
+        Secret passphrase = readSecret("Choose a passphrase for the export: ");
+        try {
+            try (Secret repeated = readSecret("Repeat the passphrase: ")) {
+                if (passphrase.length() == 0 || !passphrase.contentEquals(repeated)) {
+                    System.out.println("Passphrases are empty or don't match. Export cancelled.");
+                    return;
+                }
+            }
+            int count;
+            try (Stream<Entry> entries = streamEntries()) {
+                count = EntryTransfer.exportTo(file, format, entries::iterator, passphrase);
+            }
+            System.out.println("Exported " + count + " entries to " + file + " ("
+                    + format.name().toLowerCase(Locale.ROOT) + ", encrypted).");
+        } catch (FileAlreadyExistsException e) {
+            System.out.println("File already exists: " + file);
+        } catch (Exception e) {
+            System.out.println("ERROR: Export failed: " + e.getMessage());
+        } finally {
+            passphrase.destroy();
+        }
+    }
+
+    private void handleGenerate(String[] components) {
+        if (components.length != 3 && components.length != 4) {
+            System.out.println("Usage: generate <count> <file> [length]");
+            return;
+        }
+        long count;
+        PasswordGenerator.Policy policy;
+        try {
+            count = Long.parseLong(components[1]);
+            policy = PasswordGenerator.Policy.of(components.length == 4 ? Integer.parseInt(components[3]) : 16);
+            if (count < 1) {
+                throw new IllegalArgumentException("Count must be at least 1");
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Usage: generate <count> <file> [length]: " + e.getMessage());
+            return;
+        }
+        Path file = Path.of(components[2]);
+        long start = System.nanoTime();
+        try {
+            new ParallelGenerator(policy).generate(count, file);
+        } catch (FileAlreadyExistsException e) {
+            System.out.println("ERROR: " + file + " already exists, it was not overwritten.");
+            return;
+        } catch (Exception e) {
+            System.out.println("ERROR: Could not generate the passwords: " + e.getMessage());
+            return;
+        }
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        System.out.println(count + " passwords written to " + file + " in " + elapsed + " ms.");
+    }
+
+    private void handleCalibrate(String[] components) {
+        if (components.length > 3) {
+            System.out.println("Usage: calibrate [scrypt|pbkdf2] [milliseconds]");
+            return;
+        }
+        String algorithm = components.length > 1 ? components[1].toLowerCase(Locale.ROOT) : "scrypt";
+        Duration target = DEFAULT_UNLOCK_TIME;
+        try {
+            if (components.length > 2) {
+                target = Duration.ofMillis(Long.parseLong(components[2]));
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid time: " + components[2]);
+            return;
+        }
+        if (!algorithm.equals("scrypt") && !algorithm.equals("pbkdf2") || target.toMillis() < 10) {
+            System.out.println("Usage: calibrate [scrypt|pbkdf2] [milliseconds], with at least 10 ms");
+            return;
+        }
+
+        try {
+            System.out.println("Current key derivation: " + vault.kdf());
+            System.out.println("Measuring this machine, this takes a few seconds...");
+            Kdf kdf = algorithm.equals("scrypt") ? Kdf.Scrypt.calibrate(target) : Kdf.Pbkdf2.calibrate(target);
+            System.out.println("Picked " + kdf + ", about " + Kdf.time(kdf) / 1_000_000 + " ms per unlock here.");
+            System.out.println("Use it for this vault? (y/n): ");
+            if (!scanner.nextLine().trim().equalsIgnoreCase("y")) {
+                System.out.println("Nothing was changed.");
+                return;
+            }
+            flushPendingSaves();
+            vault.changeKdf(kdf, this.masterPassword);
+            System.out.println("The vault now uses " + kdf + ".");
+        } catch (Exception e) {
+            System.out.println("ERROR: Could not change the key derivation, the vault is unchanged: " + e.getMessage());
+        }
+    }
+
+    private void handlePasswd() {
+        try (Secret current = readSecret("Current master password: ");
+                Secret first = readSecret("New master password: ");
+                Secret second = readSecret("Repeat the new master password: ")) {
+            if (first.length() == 0 || !first.contentEquals(second)) {
+                System.out.println("Passwords are empty or don't match. Nothing was changed.");
+                return;
+            }
+            VaultCache.OpenVault opened = vaults.current();
+            opened.changeMasterPassword(current, first);
+            checkPendingSaves();
+            use(opened);
+            System.out.println("Master password of " + opened.name() + " changed.");
+        } catch (Exception e) {
+            System.out.println("ERROR: Could not change the master password, it's unchanged: "
+                    + (isWrongPassword(e) ? "incorrect master password." : e.getMessage()));
+        }
+    }
+
+    private void handleOpen(String[] components) {
+        if (components.length < 2) {
+            System.out.println("Usage: open <vault> [vault...]");
+            return;
+        }
+        // 1. Ask for every password first, so the vaults can be unlocked together
+        List<VaultCache.Request> requests = new ArrayList<>();
+        for (String name : Arrays.copyOfRange(components, 1, components.length)) {
+            if (!VaultCache.isValidName(name)) {
+                System.out.println("Invalid vault name: " + name + ". Use letters, digits, '-' and '_'.");
+                destroyPasswords(requests);
+                return;
+            }
+            if (vaults.contains(name)) {
+                System.out.println("Vault " + name + " is already open.");
+                requests.add(new VaultCache.Request(name, null));
+                continue;
+            }
+            if (!vaults.exists(name)) {
+                System.out.println("Vault " + name + " doesn't exist. Create it? (y/n): ");
+                if (!scanner.nextLine().trim().equalsIgnoreCase("y")) {
+                    continue;
+                }
+            }
+            requests.add(new VaultCache.Request(name, readSecret("Enter the master password of " + name + ": ")));
+        }
+        if (requests.isEmpty()) {
+            return;
+        }
+
+        // 2. Unlock them in parallel
+        try {
+            System.out.println("Unlocking " + requests.size() + " vault(s)...");
+            vaults.openAll(requests).forEach((name, e) -> System.out.println("ERROR: Could not open " + name + ": "
+                    + (isWrongPassword(e) ? "incorrect master password." : e.getMessage())));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            // The cache keeps its own copies
+            destroyPasswords(requests);
+        }
+        use(vaults.current());
+        System.out.println("Using vault " + vaults.current().name() + " (" + currentEntries.size() + " entries).");
+    }
+
+    private static void destroyPasswords(List<VaultCache.Request> requests) {
+        for (VaultCache.Request request : requests) {
+            if (request.masterPassword() != null) {
+                request.masterPassword().destroy();
+            }
+        }
+    }
+
+    private void handleSwitch(String[] components) {
+        if (components.length != 2) {
+            System.out.println("Usage: switch <vault>");
+            return;
+        }
+        VaultCache.OpenVault opened = vaults.switchTo(components[1]);
+        if (opened == null) {
+            System.out.println("Vault " + components[1] + " isn't open. Use 'open " + components[1] + "' first.");
+            return;
+        }
+        use(opened);
+        System.out.println("Using vault " + opened.name() + " (" + currentEntries.size() + " entries).");
+    }
+
+    private void handleClose(String[] components) {
+        if (components.length != 2) {
+            System.out.println("Usage: close <vault>");
+            return;
+        }
+        if (vaults.openVaults().size() == 1 && vaults.current().name().equals(components[1])) {
+            System.out.println("It's the only open vault. Use 'exit' to close it.");
+            return;
+        }
+        if (!vaults.close(components[1])) {
+            System.out.println("Vault " + components[1] + " isn't open.");
+            return;
+        }
+        checkPendingSaves();
+        System.out.println("Vault " + components[1] + " closed.");
+        if (vaults.current().vault() != vault) {
+            use(vaults.current());
+            System.out.println("Using vault " + vaults.current().name() + ".");
+        }
+    }
+
+    private void handleVaults() {
+        System.out.println("--- Open vaults ---");
+        String current = vaults.current().name();
+        for (VaultCache.OpenVault opened : vaults.openVaults()) {
+            System.out.println((opened.name().equals(current) ? "* " : "> ") + opened.name() + " ("
+                    + opened.entries().size() + " entries, " + (opened.vault().isUnlocked() ? "unlocked" : "locked")
+                    + ")");
+        }
+    }
+
+    private void handleStats(String[] components) {
+        if (components.length == 2 && components[1].equals("reset")) {
+            Metrics.reset();
+            System.out.println("Metrics cleared.");
+            return;
+        }
+        if (components.length == 3 && components[1].equals("prometheus")) {
+            try {
+                Metrics.writePrometheus(Path.of(components[2]));
+                System.out.println("Metrics written to " + components[2] + ".");
+            } catch (IOException e) {
+                System.out.println("ERROR: Could not write the metrics: " + e.getMessage());
+            }
+            return;
+        }
+        if (components.length != 1) {
+            System.out.println("Usage: stats [reset|prometheus <file>]");
+            return;
+        }
+        System.out.println("--- Timings (ms) ---");
+        System.out.println(String.format(Locale.ROOT, "%-16s %8s %10s %10s %10s %10s", "operation", "count", "mean",
+                "p50", "p99", "max"));
+        for (Metrics.Timer timer : Metrics.timers()) {
+            if (timer.count() > 0) {
+                System.out.println(String.format(Locale.ROOT, "%-16s %8d %10.3f %10.3f %10.3f %10.3f", timer.name(),
+                        timer.count(), timer.getMeanMillis(), timer.getP50Millis(), timer.getP99Millis(),
+                        timer.getMaxMillis()));
+            }
+        }
+        System.out.println("--- Counters ---");
+        for (Metrics.Counter counter : Metrics.counters()) {
+            System.out.println(String.format(Locale.ROOT, "%-16s %8d", counter.name(), counter.value()));
+        }
+        System.out.println("--- Vault " + vaults.current().name() + " ---");
+        System.out.println("Entries: " + currentEntries.size());
+        System.out.println("Last save: " + (vault.lastSave() == null ? "none yet" : vault.lastSave()));
+    }
+
+    private void handleClipboard(String[] components) {
+        if (components.length > 2) {
+            System.out.println("Usage: clipboard [seconds|off]");
+            return;
+        }
+        if (components.length == 2) {
+            try {
+                clipboard.setClearAfter(components[1].equalsIgnoreCase("off") ? Duration.ZERO
+                        : Duration.ofSeconds(Long.parseLong(components[1])));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Usage: clipboard [seconds|off], with seconds not negative");
+                return;
+            }
+        }
+        System.out.println(clipboard.clearAfter().isZero() ? "Copied passwords stay on the clipboard."
+                : "Copied passwords are cleared from the clipboard after " + clipboard.clearAfter().toSeconds()
+                        + " seconds, unless something else was copied since.");
+    }
 }
@@ -0,0 +1,411 @@
+package passwordmanager.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Timers and counters for what the vault spends its time on: key derivation,
+ * cipher setup, encoding and encrypting, writing and loading, and lookups.
+ * <p>
+ * Metrics are registered once, in static fields of the classes that record
+ * them, and live for the whole process. Recording is meant for hot paths: a
+ * timer adds a sample with a few atomic increments ({@link LongAdder} cells,
+ * which threads don't fight over, and one histogram bucket), nothing is
+ * allocated and no lock is taken.
+ * <p>
+ * Durations go into a log-linear histogram: every power of two is cut into
+ * {@link #SUB_BUCKETS} buckets, so a percentile is off by at most 1/8 of its
+ * value, from nanoseconds to hours, in a fixed 4 KiB per timer.
+ * <p>
+ * The values can be read with {@link #timers()} and {@link #counters()} (the
+ * {@code stats} command), written as a Prometheus text file with
+ * {@link #writePrometheus(Path)}, or browsed over JMX once
+ * {@link #registerMBeans()} ran.
+ */
+public final class Metrics {
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values below this have one bucket each, above it 8 per power of two
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+    static final int BUCKETS = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+    private static final String PREFIX = "passwordmanager_";
+    private static final String DOMAIN = "passwordmanager";
+
+    // Sorted by name, so the output is stable
+    private static final Map<String, Timer> TIMERS = new ConcurrentSkipListMap<>();
+    private static final Map<String, Counter> COUNTERS = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * What a timer shows over JMX, in milliseconds.
+     */
+    public interface TimerMXBean {
+        String getDescription();
+
+        long getCount();
+
+        double getTotalMillis();
+
+        double getMeanMillis();
+
+        double getP50Millis();
+
+        double getP99Millis();
+
+        double getMaxMillis();
+    }
+
+    /**
+     * What a counter shows over JMX.
+     */
+    public interface CounterMXBean {
+        String getDescription();
+
+        long getValue();
+    }
+
+    /**
+     * Durations of one operation, with their count, sum, maximum and
+     * distribution.
+     */
+    public static final class Timer implements TimerMXBean {
+        private final String name;
+        private final String description;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        private Timer(String name, String description) {
+            this.name = name;
+            this.description = description;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        /**
+         * Records the time since {@code startNanos}, a value of
+         * {@link System#nanoTime()} taken before the operation.
+         *
+         * @param startNanos
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Records one duration.
+         *
+         * @param nanos Negative values count as 0
+         */
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            count.increment();
+            totalNanos.add(value);
+            maxNanos.accumulate(value);
+            buckets.incrementAndGet(bucket(value));
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long totalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long maxNanos() {
+            return maxNanos.get();
+        }
+
+        /**
+         * Estimates a percentile from the histogram: the upper bound of the
+         * bucket that holds it, but never more than the maximum.
+         *
+         * @param percentile Between 0 and 100
+         * @return long nanoseconds, 0 if nothing was recorded
+         */
+        public long percentileNanos(double percentile) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), maxNanos());
+                }
+            }
+            return maxNanos();
+        }
+
+        /**
+         * Forgets every sample.
+         */
+        public void reset() {
+            count.reset();
+            totalNanos.reset();
+            maxNanos.reset();
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+        }
+
+        @Override
+        public String getDescription() {
+            return description;
+        }
+
+        @Override
+        public long getCount() {
+            return count();
+        }
+
+        @Override
+        public double getTotalMillis() {
+            return totalNanos() / 1e6;
+        }
+
+        @Override
+        public double getMeanMillis() {
+            long samples = count();
+            return samples == 0 ? 0 : totalNanos() / 1e6 / samples;
+        }
+
+        @Override
+        public double getP50Millis() {
+            return percentileNanos(50) / 1e6;
+        }
+
+        @Override
+        public double getP99Millis() {
+            return percentileNanos(99) / 1e6;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return maxNanos() / 1e6;
+        }
+    }
+
+    /**
+     * A number that only goes up, such as bytes written.
+     */
+    public static final class Counter implements CounterMXBean {
+        private final String name;
+        private final String description;
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String name, String description) {
+            this.name = name;
+            this.description = description;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long value() {
+            return value.sum();
+        }
+
+        public void reset() {
+            value.reset();
+        }
+
+        @Override
+        public String getDescription() {
+            return description;
+        }
+
+        @Override
+        public long getValue() {
+            return value();
+        }
+    }
+
+    /**
+     * Returns the timer with the given name, creating it the first time.
+     *
+     * @param name        Lower case with underscores, used as the Prometheus
+     *                    and JMX name
+     * @param description
+     * @return Timer
+     */
+    public static Timer timer(String name, String description) {
+        return TIMERS.computeIfAbsent(name, key -> new Timer(key, description));
+    }
+
+    /**
+     * Returns the counter with the given name, creating it the first time.
+     *
+     * @param name        Lower case with underscores
+     * @param description
+     * @return Counter
+     */
+    public static Counter counter(String name, String description) {
+        return COUNTERS.computeIfAbsent(name, key -> new Counter(key, description));
+    }
+
+    /**
+     * Every timer, sorted by name.
+     *
+     * @return List<Timer>
+     */
+    public static List<Timer> timers() {
+        return new ArrayList<>(TIMERS.values());
+    }
+
+    /**
+     * Every counter, sorted by name.
+     *
+     * @return List<Counter>
+     */
+    public static List<Counter> counters() {
+        return new ArrayList<>(COUNTERS.values());
+    }
+
+    /**
+     * Clears every timer and counter, keeping them registered.
+     */
+    public static void reset() {
+        TIMERS.values().forEach(Timer::reset);
+        COUNTERS.values().forEach(Counter::reset);
+    }
+
+    /**
+     * Maps a duration to its histogram bucket. Small values get a bucket each;
+     * larger ones are split by their highest bit, then by the next
+     * {@link #SUB_BUCKET_BITS} bits.
+     *
+     * @param nanos Not negative
+     * @return int
+     */
+    static int bucket(long nanos) {
+        if (nanos < LINEAR_LIMIT) {
+            return (int) nanos;
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(nanos);
+        int shift = highestBit - SUB_BUCKET_BITS;
+        int sub = (int) (nanos >>> shift) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Largest duration that falls in a bucket.
+     *
+     * @param bucket
+     * @return long
+     */
+    static long upperBound(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + sub) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format: timers as summaries
+     * in seconds, counters with a {@code _total} suffix.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public static void writePrometheus(Writer out) throws IOException {
+        for (Timer timer : TIMERS.values()) {
+            String name = PREFIX + timer.name() + "_seconds";
+            out.write("# HELP " + name + " " + timer.getDescription() + "\n");
+            out.write("# TYPE " + name + " summary\n");
+            for (double quantile : new double[] { 0.5, 0.9, 0.99 }) {
+                out.write(String.format(Locale.ROOT, "%s{quantile=\"%s\"} %.9f\n", name, quantile,
+                        timer.percentileNanos(quantile * 100) / 1e9));
+            }
+            out.write(String.format(Locale.ROOT, "%s_sum %.9f\n", name, timer.totalNanos() / 1e9));
+            out.write(name + "_count " + timer.count() + "\n");
+        }
+        for (Counter counter : COUNTERS.values()) {
+            String name = PREFIX + counter.name() + "_total";
+            out.write("# HELP " + name + " " + counter.getDescription() + "\n");
+            out.write("# TYPE " + name + " counter\n");
+            out.write(name + " " + counter.value() + "\n");
+        }
+    }
+
+    /**
+     * Writes the Prometheus text file for the node exporter's textfile
+     * collector. It's written next to the target and moved over it, so the
+     * collector never reads half a file.
+     *
+     * @param file Should end in ".prom"
+     * @throws IOException
+     */
+    public static void writePrometheus(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writePrometheus(out);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Registers every metric with the platform MBean server, as
+     * {@code passwordmanager:type=Timer,name=<name>} and
+     * {@code passwordmanager:type=Counter,name=<name>}, so JConsole or a JMX
+     * exporter can read them. Metrics created later are registered on the next
+     * call; registering twice does nothing.
+     *
+     * @throws Exception
+     */
+    public static synchronized void registerMBeans() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (Timer timer : TIMERS.values()) {
+            register(server, new ObjectName(DOMAIN + ":type=Timer,name=" + timer.name()), timer);
+        }
+        for (Counter counter : COUNTERS.values()) {
+            register(server, new ObjectName(DOMAIN + ":type=Counter,name=" + counter.name()), counter);
+        }
+    }
+
+    private static void register(MBeanServer server, ObjectName name, Object metric) throws Exception {
+        if (!server.isRegistered(name)) {
+            server.registerMBean(metric, name);
+        }
+    }
+}
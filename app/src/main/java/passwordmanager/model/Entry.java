@@ -1,21 +1,60 @@
 package passwordmanager.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.Objects;
 
 public class Entry implements Serializable {
 
     private static final long serialVersionUID = 1L;
+    // Legacy vaults store the password as a String field, see readObject()
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("service", String.class),
+            new ObjectStreamField("username", String.class),
+            new ObjectStreamField("password", String.class) };
 
-    private final String service;
-    private final String username;
-    private final String password;
+    // Not final only so readObject() can set them
+    private String service;
+    private String username;
+    // Written by the thread that saves the vault while others read them, see
+    // openPassword()
+    private transient volatile Secret password;
+    // Set instead of password when it's still encrypted in the vault file
+    private transient volatile SealedSecret sealed;
 
     public Entry(String name, String username, String password) {
+        this(name, username, Secret.copyOf(password));
+    }
+
+    /**
+     * Creates an entry that owns the secret: it's destroyed with the entry.
+     *
+     * @param name
+     * @param username
+     * @param password
+     */
+    public Entry(String name, String username, Secret password) {
         this.service = name;
         this.username = username;
         this.password = password;
     }
 
+    /**
+     * Creates an entry whose password stays encrypted until it's read.
+     *
+     * @param name
+     * @param username
+     * @param sealed
+     */
+    Entry(String name, String username, SealedSecret sealed) {
+        this.service = name;
+        this.username = username;
+        this.sealed = sealed;
+    }
+
     public String getService() {
         return service;
     }
@@ -24,12 +63,141 @@ public class Entry implements Serializable {
         return username;
     }
 
+    /**
+     * Returns a copy of the password, decrypting it from the vault file if
+     * needed. The caller owns the copy and should destroy it when done.
+     *
+     * @return Secret
+     */
+    public Secret openPassword() {
+        SealedSecret secret = sealed;
+        if (secret == null) {
+            Secret plain = password;
+            Secret copy = plain == null ? null : plain.copyIfAlive();
+            if (copy != null) {
+                return copy;
+            }
+            // Sealed in the meantime: seal() sets sealed before destroying password
+            secret = sealed;
+        }
+        if (secret == null) {
+            throw new IllegalStateException("Password of " + service + " was destroyed");
+        }
+        return secret.open(this);
+    }
+
+    /**
+     * Returns the password as a String, for APIs that need one. Prefer
+     * {@link #openPassword()}, whose copy can be wiped.
+     *
+     * @return String
+     */
     public String getPassword() {
-        return password;
+        try (Secret secret = openPassword()) {
+            return secret.reveal();
+        }
+    }
+
+    SealedSecret getSealed() {
+        return sealed;
+    }
+
+    /**
+     * Points the entry at its encrypted password in the vault file, dropping the
+     * plain copy.
+     *
+     * @param sealed
+     */
+    void seal(SealedSecret sealed) {
+        this.sealed = sealed;
+        Secret plain = password;
+        this.password = null;
+        if (plain != null) {
+            plain.destroy();
+        }
+    }
+
+    /**
+     * Decrypts the password and keeps it in the entry, so it no longer depends
+     * on the vault file (needed before the file is written with a new key).
+     */
+    void unseal() {
+        SealedSecret secret = sealed;
+        if (secret != null) {
+            password = secret.open(this);
+            sealed = null;
+        }
+    }
+
+    /**
+     * Wipes the plain password, if the entry holds one. Only for entries that
+     * are no longer used: reading the password afterwards fails unless it's
+     * still in the vault file.
+     */
+    public void destroy() {
+        Secret plain = password;
+        if (plain != null) {
+            plain.destroy();
+        }
+    }
+
+    /**
+     * Checks whether two entries hold the same password, decrypting them if
+     * needed. Entries sealed at the same place in the vault file match without
+     * decrypting.
+     *
+     * @param other
+     * @return boolean
+     */
+    public boolean samePassword(Entry other) {
+        if (sealed != null && sealed == other.sealed) {
+            return true;
+        }
+        try (Secret mine = openPassword(); Secret theirs = other.openPassword()) {
+            return mine.contentEquals(theirs);
+        }
+    }
+
+    /**
+     * Entries are equal when they are for the same account: the same service
+     * and username. The password isn't compared, so sets and maps of entries
+     * never decrypt it, and keep working once the vault is locked. Use
+     * {@link #samePassword} where the password matters.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        return o instanceof Entry other && service.equals(other.service) && username.equals(other.username);
     }
 
+    @Override
+    public int hashCode() {
+        return Objects.hash(service, username);
+    }
+
+    /**
+     * Never shows the password, see {@link #openPassword()}.
+     */
     @Override
     public String toString() {
-        return "Service: " + service + " | User: " + username + " | Password: " + password;
+        return "Service: " + service + " | User: " + username;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("service", service);
+        fields.put("username", username);
+        fields.put("password", getPassword());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        service = (String) fields.get("service", null);
+        username = (String) fields.get("username", null);
+        String plain = (String) fields.get("password", null);
+        password = plain == null ? null : Secret.copyOf(plain);
     }
 }
@@ -0,0 +1,185 @@
+package passwordmanager.model;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Previous passwords of a vault's entries, kept when an entry is deleted (or
+ * replaced by restoring an older version) so it can be brought back.
+ * <p>
+ * The vault keeps its history sealed in the snapshot file, compressed, and only
+ * decrypts it to show or change it, see {@link Vault#history}. An instance is a
+ * decrypted copy: it owns the passwords of its versions and wipes them in
+ * {@link #destroy()}.
+ */
+public final class EntryHistory {
+    // Versions of the same entry, the oldest first. Names are compared ignoring
+    // case, as the entry store does
+    static final Comparator<Version> ORDER = Comparator
+            .comparing((Version version) -> EntryStore.fold(version.service()))
+            .thenComparing(version -> EntryStore.fold(version.username()))
+            .thenComparing(Version::replaced);
+
+    /**
+     * A password an entry used to have.
+     *
+     * @param service
+     * @param username
+     * @param replaced When the entry was deleted or replaced
+     * @param password
+     */
+    public record Version(String service, String username, Instant replaced, Secret password) {
+        /**
+         * Creates an entry with this version's password, for restoring it.
+         *
+         * @return Entry with its own copy of the password
+         */
+        public Entry toEntry() {
+            return new Entry(service, username, password.copy());
+        }
+
+        /**
+         * Checks whether this is a version of the given entry, ignoring case
+         * like {@link EntryStore#find(String, String)}.
+         *
+         * @param service
+         * @param username Null for every username
+         * @return boolean
+         */
+        boolean matches(String service, String username) {
+            return EntryStore.fold(this.service).equals(EntryStore.fold(service))
+                    && (username == null || EntryStore.fold(this.username).equals(EntryStore.fold(username)));
+        }
+
+        boolean sameEntry(Version other) {
+            return matches(other.service, other.username);
+        }
+    }
+
+    /**
+     * How much history is kept: at most a number of versions per entry, none
+     * older than an age. Versions past either limit are dropped the next time
+     * the history is written.
+     *
+     * @param maxVersions Per entry, 0 to keep no history
+     * @param maxAge      Zero to keep versions of any age
+     */
+    public record Retention(int maxVersions, Duration maxAge) {
+        public static final Retention DEFAULT = new Retention(10, Duration.ofDays(365));
+
+        public Retention {
+            if (maxVersions < 0 || maxVersions > 0xFFFF) {
+                throw new IllegalArgumentException("Versions to keep must be between 0 and 65535");
+            }
+            if (maxAge.isNegative()) {
+                throw new IllegalArgumentException("History age must not be negative");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return maxVersions + " versions per entry, "
+                    + (maxAge.isZero() ? "of any age" : "up to " + maxAge.toDays() + " days old");
+        }
+    }
+
+    private Retention retention;
+    private final List<Version> versions;
+
+    EntryHistory(Retention retention, List<Version> versions) {
+        this.retention = retention;
+        this.versions = new ArrayList<>(versions);
+    }
+
+    public Retention retention() {
+        return retention;
+    }
+
+    void setRetention(Retention retention) {
+        this.retention = retention;
+    }
+
+    /**
+     * Returns every version, sorted by entry and then from the oldest.
+     *
+     * @return List<Version>
+     */
+    List<Version> versions() {
+        versions.sort(ORDER);
+        return versions;
+    }
+
+    boolean isEmpty() {
+        return versions.isEmpty();
+    }
+
+    /**
+     * Adds a version, taking ownership of its password.
+     *
+     * @param version
+     */
+    void add(Version version) {
+        versions.add(version);
+    }
+
+    /**
+     * Returns the versions of a service's entries, newest first. Names are
+     * matched ignoring case.
+     *
+     * @param service
+     * @param username Null for every username
+     * @return List<Version> with their own copies of the passwords
+     */
+    public List<Version> of(String service, String username) {
+        List<Version> found = new ArrayList<>();
+        for (Version version : versions()) {
+            if (version.matches(service, username)) {
+                found.add(new Version(version.service(), version.username(), version.replaced(),
+                        version.password().copy()));
+            }
+        }
+        // Versions replaced in the same millisecond stay in the order they were added
+        found.sort(Comparator.comparing(Version::replaced));
+        return found.reversed();
+    }
+
+    /**
+     * Drops the versions the retention policy no longer keeps, wiping their
+     * passwords.
+     *
+     * @param now
+     * @return int how many were dropped
+     */
+    int prune(Instant now) {
+        Instant oldest = retention.maxAge().isZero() ? Instant.MIN : now.minus(retention.maxAge());
+        List<Version> sorted = versions();
+        List<Version> kept = new ArrayList<>(sorted.size());
+        // Walking back from the newest version of each entry
+        int newer = 0;
+        for (int i = sorted.size() - 1; i >= 0; i--) {
+            Version version = sorted.get(i);
+            newer = i < sorted.size() - 1 && version.sameEntry(sorted.get(i + 1)) ? newer + 1 : 0;
+            if (newer < retention.maxVersions() && !version.replaced().isBefore(oldest)) {
+                kept.add(version);
+            } else {
+                version.password().destroy();
+            }
+        }
+        int dropped = sorted.size() - kept.size();
+        versions.clear();
+        versions.addAll(kept.reversed());
+        return dropped;
+    }
+
+    /**
+     * Wipes every password in the history.
+     */
+    public void destroy() {
+        for (Version version : versions) {
+            version.password().destroy();
+        }
+    }
+}
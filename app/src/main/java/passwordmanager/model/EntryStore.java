@@ -0,0 +1,175 @@
+package passwordmanager.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import passwordmanager.metrics.Metrics;
+
+/**
+ * In-memory set of the vault entries, indexed by service name.
+ * Service names are case-folded, so lookups ignore case the same way the
+ * commands always did, but take constant time instead of scanning every entry.
+ * A service can hold several accounts, one entry per username.
+ * The store also keeps a {@link SearchIndex} over service names and usernames
+ * up to date for fuzzy searches. It's only built on the first search, so
+ * loading or importing many entries doesn't pay for it.
+ */
+public final class EntryStore implements Iterable<Entry> {
+    private static final Metrics.Timer LOOKUP_TIMER = Metrics.timer("lookup", "Finding the accounts of a service");
+    private static final Metrics.Timer SEARCH_TIMER = Metrics.timer("search", "Fuzzy searches");
+    private final Set<Entry> entries = new LinkedHashSet<>();
+    private final Map<String, List<Entry>> byService = new HashMap<>();
+    private SearchIndex searchIndex; // null until the first search
+
+    public EntryStore() {
+    }
+
+    /**
+     * Creates a store holding the given entries, in the same order.
+     *
+     * @param initial
+     */
+    public EntryStore(Collection<Entry> initial) {
+        for (Entry entry : initial) {
+            add(entry);
+        }
+    }
+
+    /**
+     * Adds an entry to the store.
+     *
+     * @param entry
+     * @return boolean false if an entry for the same account was already stored
+     */
+    public boolean add(Entry entry) {
+        if (!entries.add(entry)) {
+            return false;
+        }
+        byService.computeIfAbsent(fold(entry.getService()), k -> new ArrayList<>(1)).add(entry);
+        if (searchIndex != null) {
+            searchIndex.add(entry);
+        }
+        return true;
+    }
+
+    /**
+     * Removes an entry from the store.
+     *
+     * @param entry
+     * @return boolean false if the entry wasn't stored
+     */
+    public boolean remove(Entry entry) {
+        if (!entries.remove(entry)) {
+            return false;
+        }
+        String key = fold(entry.getService());
+        List<Entry> accounts = byService.get(key);
+        accounts.remove(entry);
+        if (accounts.isEmpty()) {
+            byService.remove(key);
+        }
+        if (searchIndex != null) {
+            searchIndex.remove(entry);
+        }
+        return true;
+    }
+
+    /**
+     * Returns every account stored for a service, ignoring case.
+     *
+     * @param service
+     * @return List<Entry> a copy, unchanged by later adds and removes; empty if
+     *         there is none
+     */
+    public List<Entry> find(String service) {
+        long start = System.nanoTime();
+        List<Entry> accounts = byService.get(fold(service));
+        LOOKUP_TIMER.recordSince(start);
+        return accounts == null ? List.of() : List.copyOf(accounts);
+    }
+
+    /**
+     * Returns the account stored for a service and username, ignoring case.
+     *
+     * @param service
+     * @param username
+     * @return Entry or null if there is none
+     */
+    public Entry find(String service, String username) {
+        for (Entry entry : find(service)) {
+            if (entry.getUsername().equalsIgnoreCase(username)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Searches service names and usernames for the query, allowing prefixes,
+     * substrings and small typos.
+     *
+     * @param query
+     * @param limit Maximum number of results
+     * @return List<Entry> best matches first
+     */
+    public List<Entry> search(String query, int limit) {
+        long start = System.nanoTime();
+        if (searchIndex == null) {
+            searchIndex = new SearchIndex();
+            for (Entry entry : entries) {
+                searchIndex.add(entry);
+            }
+        }
+        List<Entry> results = searchIndex.search(query, limit);
+        SEARCH_TIMER.recordSince(start);
+        return results;
+    }
+
+    /**
+     * Returns a read-only view of all entries, in insertion order.
+     *
+     * @return Collection<Entry>
+     */
+    public Collection<Entry> entries() {
+        return Collections.unmodifiableSet(entries);
+    }
+
+    /**
+     * Removes every entry and drops the search index.
+     */
+    public void clear() {
+        entries.clear();
+        byService.clear();
+        searchIndex = null;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    @Override
+    public Iterator<Entry> iterator() {
+        return entries().iterator();
+    }
+
+    /**
+     * Folds the case of a service name or username, as lookups compare them.
+     *
+     * @param name
+     * @return String
+     */
+    static String fold(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
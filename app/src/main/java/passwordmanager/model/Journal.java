@@ -0,0 +1,317 @@
+package passwordmanager.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Append-only log of the changes made since the vault snapshot was last
+ * written. Each change is sealed on its own with AES-GCM, so adding or deleting
+ * an entry only costs one small record instead of rewriting the whole vault.
+ * <p>
+ * Layout:
+ * <pre>
+ * header: snapshot IV (12 bytes)
+ * record: length (int) | IV (12 bytes) | ciphertext + tag
+ * </pre>
+ * A decrypted record is the operation (u8) followed by the entry, encoded the
+ * same way as in the vault file (see {@link VaultFormat}), and when the change
+ * was made (long, milliseconds since the epoch). Records written before the
+ * time was added end after the entry, and are dated with the journal's last
+ * modification. Journals written next to a legacy vault hold a Java serialized
+ * entry instead.
+ * The header ties the journal to the snapshot it applies to. A journal left
+ * behind by an older snapshot is ignored. Each record is authenticated together
+ * with the header and its position, so records can't be reordered or moved to
+ * another journal.
+ */
+class Journal {
+    private static final int IV_SIZE = 12; // bytes for GCM
+    private static final int TAG_BITS = 128;
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+
+    enum Op {
+        ADD, DELETE
+    }
+
+    /**
+     * @param op
+     * @param entry
+     * @param time  When the change was made
+     */
+    record Mutation(Op op, Entry entry, Instant time) {
+        Mutation(Op op, Entry entry) {
+            this(op, entry, Instant.now());
+        }
+    }
+
+    private final Path path;
+    private byte[] snapshotIv;
+    private int records;
+    private long size;
+
+    Journal(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Reads every record that belongs to the given snapshot.
+     * A torn final record, left by a crash in the middle of an append, is
+     * discarded and cut off the file. Any other record that fails to decrypt
+     * means the journal was tampered with, so it throws.
+     *
+     * @param key
+     * @param snapshotIv
+     * @param legacy     Whether the snapshot is a legacy, Java serialized vault
+     * @return List<Mutation>
+     * @throws Exception
+     */
+    List<Mutation> replay(SecretKey key, byte[] snapshotIv, boolean legacy) throws Exception {
+        reset(snapshotIv, false);
+        List<Mutation> mutations = new ArrayList<>();
+        if (!Files.exists(path)) {
+            return mutations;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // 1. Check the journal belongs to this snapshot
+            byte[] header = new byte[IV_SIZE];
+            if (!readFully(channel, ByteBuffer.wrap(header)) || !Arrays.equals(header, snapshotIv)) {
+                return mutations;
+            }
+            long end = channel.size();
+            long position = IV_SIZE;
+            // The closest date for records that have none
+            Instant modified = Files.getLastModifiedTime(path).toInstant();
+
+            // 2. Read records until the end or the first torn one
+            Cipher cipher = Cipher.getInstance(ALGORITHM);
+            ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+            while (position < end) {
+                lengthBuffer.clear();
+                if (!readFully(channel, lengthBuffer)) {
+                    break;
+                }
+                int length = lengthBuffer.flip().getInt();
+                long recordEnd = position + Integer.BYTES + length;
+                if (length < IV_SIZE + TAG_BITS / 8 || recordEnd > end) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.allocate(length);
+                readFully(channel, record);
+
+                cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, record.array(), 0, IV_SIZE));
+                cipher.updateAAD(associatedData(records));
+                byte[] plain;
+                try {
+                    plain = cipher.doFinal(record.array(), IV_SIZE, length - IV_SIZE);
+                } catch (AEADBadTagException e) {
+                    if (recordEnd == end) {
+                        break;
+                    }
+                    throw new IOException("Journal record " + records + " is corrupted", e);
+                }
+                mutations.add(legacy ? decodeLegacy(plain, modified) : decode(plain, modified));
+                records++;
+                position = recordEnd;
+            }
+
+            // 3. Drop whatever is left after the last good record
+            if (position < end) {
+                System.out.println("\t-> Discarded torn journal record at offset " + position);
+                channel.truncate(position);
+                channel.force(true);
+            }
+            this.size = position;
+        }
+        return mutations;
+    }
+
+    /**
+     * Reads the records this journal appended or replayed so far, without
+     * replaying them again: nothing past the end of the last good append is
+     * read, and the journal is left as it is.
+     *
+     * @param key
+     * @param legacy Whether the snapshot is a legacy, Java serialized vault
+     * @return List<Mutation>
+     * @throws Exception IOException if a record no longer decrypts
+     */
+    List<Mutation> read(SecretKey key, boolean legacy) throws Exception {
+        List<Mutation> mutations = new ArrayList<>(records);
+        if (size == 0) {
+            return mutations;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Instant modified = Files.getLastModifiedTime(path).toInstant();
+            Cipher cipher = Cipher.getInstance(ALGORITHM);
+            ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+            channel.position(IV_SIZE);
+            for (int i = 0; i < records; i++) {
+                lengthBuffer.clear();
+                if (!readFully(channel, lengthBuffer)) {
+                    throw new EOFException("Journal ends before record " + i);
+                }
+                int length = lengthBuffer.flip().getInt();
+                if (length < IV_SIZE + TAG_BITS / 8 || length > size) {
+                    throw new IOException("Journal record " + i + " is corrupted");
+                }
+                ByteBuffer record = ByteBuffer.allocate(length);
+                if (!readFully(channel, record)) {
+                    throw new EOFException("Journal ends before record " + i);
+                }
+                cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, record.array(), 0, IV_SIZE));
+                cipher.updateAAD(associatedData(i));
+                byte[] plain;
+                try {
+                    plain = cipher.doFinal(record.array(), IV_SIZE, length - IV_SIZE);
+                } catch (AEADBadTagException e) {
+                    throw new IOException("Journal record " + i + " is corrupted", e);
+                }
+                mutations.add(legacy ? decodeLegacy(plain, modified) : decode(plain, modified));
+            }
+        }
+        return mutations;
+    }
+
+    /**
+     * Seals a single change and appends it to the journal, creating it first if
+     * it doesn't belong to the current snapshot yet. The record is forced to
+     * disk before returning.
+     *
+     * @param mutation
+     * @param key
+     * @param iv
+     * @throws Exception
+     */
+    void append(Mutation mutation, SecretKey key, byte[] iv) throws Exception {
+        append(List.of(mutation), key, () -> iv);
+    }
+
+    /**
+     * Seals a batch of changes, one record each, and appends them all with a
+     * single write and a single force to disk.
+     *
+     * @param mutations
+     * @param key
+     * @param ivs Hands out a fresh IV for each record
+     * @throws Exception
+     */
+    void append(List<Mutation> mutations, SecretKey key, Supplier<byte[]> ivs) throws Exception {
+        // 1. Seal the records
+        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        ByteBuffer[] batch = new ByteBuffer[mutations.size()];
+        byte[] iv = null;
+        for (int i = 0; i < batch.length; i++) {
+            iv = ivs.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(associatedData(records + i));
+            byte[] sealed = cipher.doFinal(encode(mutations.get(i)));
+            batch[i] = ByteBuffer.allocate(Integer.BYTES + IV_SIZE + sealed.length);
+            batch[i].putInt(IV_SIZE + sealed.length).put(iv).put(sealed).flip();
+        }
+        if (iv == null) {
+            return;
+        }
+
+        // 2. Append them, writing the header for a new journal
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (size == 0) {
+                channel.truncate(0);
+                channel.write(ByteBuffer.wrap(snapshotIv));
+                size = IV_SIZE;
+            }
+            // Records of an append that failed after writing were rolled back,
+            // they would still authenticate if a shorter batch left their tail
+            channel.truncate(size);
+            channel.position(size);
+            for (ByteBuffer record : batch) {
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+            }
+            channel.force(false);
+            size = channel.position();
+        }
+        records += batch.length;
+    }
+
+    /**
+     * Starts an empty journal for a newly written snapshot and removes the old
+     * file.
+     *
+     * @param snapshotIv
+     * @throws IOException
+     */
+    void reset(byte[] snapshotIv) throws IOException {
+        reset(snapshotIv, true);
+    }
+
+    private void reset(byte[] snapshotIv, boolean deleteFile) throws IOException {
+        this.snapshotIv = snapshotIv.clone();
+        this.records = 0;
+        this.size = 0;
+        if (deleteFile) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    int records() {
+        return records;
+    }
+
+    long size() {
+        return size;
+    }
+
+    private byte[] associatedData(int index) {
+        return ByteBuffer.allocate(IV_SIZE + Integer.BYTES).put(snapshotIv).putInt(index).array();
+    }
+
+    private static byte[] encode(Mutation mutation) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + VaultFormat.encodedSize(mutation.entry()) + Long.BYTES);
+        buffer.put((byte) mutation.op().ordinal());
+        VaultFormat.writeEntry(buffer, mutation.entry());
+        buffer.putLong(mutation.time().toEpochMilli());
+        return buffer.array();
+    }
+
+    private static Mutation decode(byte[] plain, Instant undated) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(plain);
+        Op op = Op.values()[buffer.get()];
+        Entry entry = VaultFormat.readEntry(buffer);
+        Instant time = buffer.remaining() >= Long.BYTES ? Instant.ofEpochMilli(buffer.getLong()) : undated;
+        return new Mutation(op, entry, time);
+    }
+
+    private static Mutation decodeLegacy(byte[] plain, Instant undated) throws Exception {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(plain))) {
+            Op op = Op.values()[ois.readByte()];
+            return new Mutation(op, (Entry) ois.readObject(), undated);
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
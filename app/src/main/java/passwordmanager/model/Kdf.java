@@ -0,0 +1,187 @@
+package passwordmanager.model;
+
+import java.time.Duration;
+import java.util.Arrays;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Key derivation function that turns the master password into the vault key,
+ * along with its cost parameters. The parameters are stored in the vault
+ * header, so a vault always opens with the ones it was written with.
+ * <p>
+ * Each function can be calibrated: it's timed on this machine and its cost is
+ * raised until a derivation takes about the target time, which is what
+ * unlocking the vault will cost here, and a lower bound of what every guess
+ * costs an attacker.
+ */
+public sealed interface Kdf permits Kdf.Pbkdf2, Kdf.Scrypt {
+    int KEY_BITS = 256;
+
+    /**
+     * Derives a 256 bit key. The caller should wipe it when done.
+     *
+     * @param password Only read, the caller still owns it
+     * @param salt
+     * @return byte[]
+     * @throws Exception
+     */
+    byte[] derive(char[] password, byte[] salt) throws Exception;
+
+    /**
+     * PBKDF2 with HMAC-SHA256. Cheap in memory, so its cost is only time.
+     *
+     * @param iterations
+     */
+    record Pbkdf2(int iterations) implements Kdf {
+        static final int MIN_ITERATIONS = 10_000;
+        static final int MAX_ITERATIONS = 100_000_000;
+
+        public Pbkdf2 {
+            if (iterations < 1 || iterations > MAX_ITERATIONS) {
+                throw new IllegalArgumentException("PBKDF2 iterations must be between 1 and " + MAX_ITERATIONS);
+            }
+        }
+
+        @Override
+        public byte[] derive(char[] password, byte[] salt) throws Exception {
+            // 1. Pass + Salt + iterations + 256 bits (the spec keeps its own copy)
+            PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, KEY_BITS);
+            // 2. Generate the key
+            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            try {
+                return factory.generateSecret(spec).getEncoded();
+            } finally {
+                spec.clearPassword();
+            }
+        }
+
+        /**
+         * Picks the iteration count that takes about the target time here. The
+         * time grows linearly with the iterations, so each measurement gives
+         * the next guess. It's repeated a few times, since the first runs are
+         * slowed down by JIT compilation.
+         *
+         * @param target
+         * @return Pbkdf2
+         * @throws Exception
+         */
+        public static Pbkdf2 calibrate(Duration target) throws Exception {
+            Pbkdf2 guess = new Pbkdf2(MIN_ITERATIONS);
+            for (int round = 0; round < 5; round++) {
+                double ratio = (double) target.toNanos() / Kdf.time(guess);
+                long iterations = Math.round(guess.iterations() * ratio / 1000) * 1000;
+                guess = new Pbkdf2((int) Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, iterations)));
+                if (Math.abs(ratio - 1) < 0.1) {
+                    break;
+                }
+            }
+            return guess;
+        }
+
+        @Override
+        public String toString() {
+            return "PBKDF2-HMAC-SHA256, " + iterations + " iterations";
+        }
+    }
+
+    /**
+     * scrypt (RFC 7914), memory hard: every derivation needs
+     * {@code 128 * r * 2^logN} bytes of memory, which makes guessing on GPUs
+     * and dedicated hardware much more expensive than with PBKDF2.
+     *
+     * @param logN Base 2 logarithm of the CPU and memory cost N
+     * @param r    Block size
+     * @param p    Parallelization, the number of independent mixes run one
+     *             after another
+     */
+    record Scrypt(int logN, int r, int p) implements Kdf {
+        static final int MAX_LOG_N = 24;
+        static final int MAX_R = 64;
+        static final int MAX_P = 1024;
+        static final long MAX_MEMORY = 1L << 30;
+        private static final int CALIBRATION_LOG_N = 10;
+        private static final long CALIBRATION_MEMORY = 256L << 20;
+
+        public Scrypt {
+            if (logN < 1 || logN > MAX_LOG_N || r < 1 || r > MAX_R || p < 1 || p > MAX_P) {
+                throw new IllegalArgumentException("scrypt parameters out of range: logN " + logN + ", r " + r
+                        + ", p " + p);
+            }
+            if (128L * r << logN > MAX_MEMORY) {
+                throw new IllegalArgumentException("scrypt parameters need more than 1 GiB of memory");
+            }
+        }
+
+        /**
+         * Memory used by one derivation, in bytes.
+         *
+         * @return long
+         */
+        public long memory() {
+            return 128L * r << logN;
+        }
+
+        @Override
+        public byte[] derive(char[] password, byte[] salt) throws Exception {
+            byte[] bytes = Secret.encode(password);
+            try {
+                return ScryptFunction.derive(bytes, salt, logN, r, p, KEY_BITS / 8);
+            } finally {
+                Arrays.fill(bytes, (byte) 0);
+            }
+        }
+
+        /**
+         * Picks parameters that take about the target time here, with r = 8.
+         * First, it doubles N while the next doubling still fits in the target
+         * time, up to 256 MiB of memory (or a quarter of the heap).
+         * Then, if the target time is still far away, it raises p, which adds
+         * time without adding memory.
+         *
+         * @param target
+         * @return Scrypt
+         * @throws Exception
+         */
+        public static Scrypt calibrate(Duration target) throws Exception {
+            int r = 8;
+            long budget = Math.min(CALIBRATION_MEMORY, Runtime.getRuntime().maxMemory() / 4);
+            // 1. Largest N that fits in the time and memory budget
+            Scrypt best = new Scrypt(CALIBRATION_LOG_N, r, 1);
+            long nanos = Kdf.time(best);
+            while (best.logN() < MAX_LOG_N && best.memory() * 2 <= budget && nanos * 2 <= target.toNanos()) {
+                best = new Scrypt(best.logN() + 1, r, 1);
+                nanos = Kdf.time(best);
+            }
+            // 2. Repeat the mix to use up the remaining time
+            int p = (int) Math.max(1, Math.min(MAX_P, target.toNanos() / nanos));
+            return new Scrypt(best.logN(), r, p);
+        }
+
+        @Override
+        public String toString() {
+            return "scrypt, N = 2^" + logN + ", r = " + r + ", p = " + p + " (" + (memory() >> 20) + " MiB)";
+        }
+    }
+
+    /**
+     * Times a derivation, best of three after a warm-up run.
+     *
+     * @param kdf
+     * @return long Nanoseconds
+     * @throws Exception
+     */
+    static long time(Kdf kdf) throws Exception {
+        byte[] salt = new byte[16];
+        char[] password = "calibration".toCharArray();
+        Arrays.fill(kdf.derive(password, salt), (byte) 0);
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            byte[] key = kdf.derive(password, salt);
+            best = Math.min(best, System.nanoTime() - start);
+            Arrays.fill(key, (byte) 0);
+        }
+        return Math.max(1, best);
+    }
+}
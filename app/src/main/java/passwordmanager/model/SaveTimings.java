@@ -0,0 +1,29 @@
+package passwordmanager.model;
+
+import java.time.Duration;
+
+/**
+ * How long each phase of a vault save took.
+ *
+ * @param seal   Encrypting the passwords and the metadata
+ * @param write  Writing the temporary file
+ * @param force  Flushing it to the disk
+ * @param backup Keeping the previous file as a backup
+ * @param move   Replacing the vault file
+ * @param sync   Flushing the directory, so the new name is durable
+ * @param bytes  Size of the new file
+ */
+public record SaveTimings(Duration seal, Duration write, Duration force, Duration backup, Duration move,
+        Duration sync, long bytes) {
+
+    public Duration total() {
+        return seal.plus(write).plus(force).plus(backup).plus(move).plus(sync);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d ms (seal %d, write %d, fsync %d, backup %d, move %d, dir fsync %d), %d KiB",
+                total().toMillis(), seal.toMillis(), write.toMillis(), force.toMillis(), backup.toMillis(),
+                move.toMillis(), sync.toMillis(), bytes / 1024);
+    }
+}
@@ -0,0 +1,186 @@
+package passwordmanager.model;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * scrypt as specified in RFC 7914, which the JDK doesn't provide.
+ * <p>
+ * The password is stretched with one round of PBKDF2-HMAC-SHA256 into p blocks
+ * of 128 * r bytes. Each block goes through ROMix, which fills N blocks of
+ * memory with Salsa20/8 and then reads them back in an order that depends on
+ * the data, so the memory can't be traded for time cheaply. A last round of
+ * PBKDF2 turns the mixed blocks into the key. Blocks are kept as little-endian
+ * ints, the word size Salsa20 works on.
+ */
+final class ScryptFunction {
+    private ScryptFunction() {
+    }
+
+    /**
+     * Derives a key with scrypt.
+     *
+     * @param password
+     * @param salt
+     * @param logN
+     * @param r
+     * @param p
+     * @param length Key length in bytes
+     * @return byte[]
+     * @throws GeneralSecurityException
+     */
+    static byte[] derive(byte[] password, byte[] salt, int logN, int r, int p, int length)
+            throws GeneralSecurityException {
+        int n = 1 << logN;
+        int blockInts = 32 * r;
+        // 1. Stretch the password into p blocks
+        byte[] b = pbkdf2(password, salt, p * 128 * r);
+        int[] x = new int[blockInts];
+        int[] v = new int[blockInts * n];
+        int[] scratch = new int[blockInts];
+        try {
+            // 2. Mix each block on its own
+            for (int i = 0; i < p; i++) {
+                int offset = i * 128 * r;
+                for (int k = 0; k < blockInts; k++) {
+                    x[k] = littleEndian(b, offset + k * 4);
+                }
+                roMix(x, v, scratch, n, r);
+                for (int k = 0; k < blockInts; k++) {
+                    putLittleEndian(b, offset + k * 4, x[k]);
+                }
+            }
+            // 3. Compress the mixed blocks into the key
+            return pbkdf2(password, b, length);
+        } finally {
+            Arrays.fill(b, (byte) 0);
+            Arrays.fill(x, 0);
+            Arrays.fill(v, 0);
+            Arrays.fill(scratch, 0);
+        }
+    }
+
+    private static void roMix(int[] x, int[] v, int[] scratch, int n, int r) {
+        int blockInts = 32 * r;
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(x, 0, v, i * blockInts, blockInts);
+            blockMix(x, scratch, r);
+        }
+        for (int i = 0; i < n; i++) {
+            // Integerify: first word of the last 64 byte block, N is a power of 2
+            int j = x[(2 * r - 1) * 16] & (n - 1);
+            int start = j * blockInts;
+            for (int k = 0; k < blockInts; k++) {
+                x[k] ^= v[start + k];
+            }
+            blockMix(x, scratch, r);
+        }
+    }
+
+    /**
+     * Runs Salsa20/8 over the 2r 64 byte blocks of b, chaining each one into
+     * the next, and stores the outputs even blocks first, then odd ones.
+     *
+     * @param b
+     * @param y
+     * @param r
+     */
+    private static void blockMix(int[] b, int[] y, int r) {
+        int[] x = Arrays.copyOfRange(b, (2 * r - 1) * 16, 2 * r * 16);
+        for (int i = 0; i < 2 * r; i++) {
+            for (int k = 0; k < 16; k++) {
+                x[k] ^= b[i * 16 + k];
+            }
+            salsa8(x);
+            int target = (i % 2 == 0 ? i / 2 : r + i / 2) * 16;
+            System.arraycopy(x, 0, y, target, 16);
+        }
+        System.arraycopy(y, 0, b, 0, 32 * r);
+    }
+
+    private static void salsa8(int[] b) {
+        int x0 = b[0], x1 = b[1], x2 = b[2], x3 = b[3], x4 = b[4], x5 = b[5], x6 = b[6], x7 = b[7];
+        int x8 = b[8], x9 = b[9], x10 = b[10], x11 = b[11], x12 = b[12], x13 = b[13], x14 = b[14], x15 = b[15];
+        for (int i = 0; i < 8; i += 2) {
+            // Columns
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);
+            x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);
+            x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);
+            x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);
+            x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);
+            x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);
+            x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);
+            x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);
+            x15 ^= Integer.rotateLeft(x11 + x7, 18);
+            // Rows
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);
+            x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);
+            x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);
+            x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);
+            x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);
+            x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);
+            x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        b[0] += x0; b[1] += x1; b[2] += x2; b[3] += x3; b[4] += x4; b[5] += x5; b[6] += x6; b[7] += x7;
+        b[8] += x8; b[9] += x9; b[10] += x10; b[11] += x11; b[12] += x12; b[13] += x13; b[14] += x14; b[15] += x15;
+    }
+
+    /**
+     * PBKDF2-HMAC-SHA256 with a single iteration, over a password given as
+     * bytes (the JDK's version only takes chars).
+     *
+     * @param password
+     * @param salt
+     * @param length
+     * @return byte[]
+     * @throws GeneralSecurityException
+     */
+    private static byte[] pbkdf2(byte[] password, byte[] salt, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        // HMAC pads short keys with zeros, so an empty key is the same as a single zero
+        mac.init(new SecretKeySpec(password.length == 0 ? new byte[1] : password, "HmacSHA256"));
+        byte[] out = new byte[length];
+        byte[] counter = new byte[4];
+        for (int block = 1, offset = 0; offset < length; block++, offset += 32) {
+            mac.update(salt);
+            counter[0] = (byte) (block >>> 24);
+            counter[1] = (byte) (block >>> 16);
+            counter[2] = (byte) (block >>> 8);
+            counter[3] = (byte) block;
+            byte[] t = mac.doFinal(counter);
+            System.arraycopy(t, 0, out, offset, Math.min(32, length - offset));
+            Arrays.fill(t, (byte) 0);
+        }
+        return out;
+    }
+
+    private static int littleEndian(byte[] b, int offset) {
+        return (b[offset] & 0xFF) | (b[offset + 1] & 0xFF) << 8 | (b[offset + 2] & 0xFF) << 16
+                | (b[offset + 3] & 0xFF) << 24;
+    }
+
+    private static void putLittleEndian(byte[] b, int offset, int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >>> 8);
+        b[offset + 2] = (byte) (value >>> 16);
+        b[offset + 3] = (byte) (value >>> 24);
+    }
+}
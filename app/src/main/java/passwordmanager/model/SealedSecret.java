@@ -0,0 +1,44 @@
+package passwordmanager.model;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A password that is still encrypted inside the memory-mapped vault file.
+ * It only points at the IV and ciphertext, and asks the vault that owns the
+ * file to decrypt them when the password is needed.
+ */
+final class SealedSecret {
+    private final Vault owner;
+    private final ByteBuffer sealed;
+
+    /**
+     * @param owner
+     * @param sealed IV followed by the ciphertext and tag, read-only
+     */
+    SealedSecret(Vault owner, ByteBuffer sealed) {
+        this.owner = owner;
+        this.sealed = sealed;
+    }
+
+    Vault owner() {
+        return owner;
+    }
+
+    /**
+     * Returns a new view of the IV and ciphertext, so callers can read it without
+     * affecting each other.
+     *
+     * @return ByteBuffer
+     */
+    ByteBuffer sealed() {
+        return sealed.duplicate();
+    }
+
+    int length() {
+        return sealed.remaining();
+    }
+
+    Secret open(Entry entry) {
+        return owner.openSecret(this, entry);
+    }
+}
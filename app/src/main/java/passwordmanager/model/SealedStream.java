@@ -0,0 +1,309 @@
+package passwordmanager.model;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypted file written and read as a stream, in constant memory, with a key
+ * derived from a passphrase. Used for exports, so a plaintext copy of the
+ * entries never reaches the disk.
+ * <p>
+ * Layout:
+ * <pre>
+ * header:  magic "PWMX" | version (u8) | content type (u8) | KDF iterations (int)
+ *          | salt length (u8) | salt | nonce prefix (7 bytes)
+ * segment: AES-GCM ciphertext + tag of up to 64 KiB of plaintext
+ * </pre>
+ * The IV of each segment is the nonce prefix, the segment number (int) and a
+ * flag (u8) that is 1 only for the last segment. Every segment is authenticated
+ * with the header as associated data. Segments can't be reordered, and a file
+ * cut at a segment boundary fails on what looks like its last segment, so
+ * truncation is always detected. This is the STREAM construction used by
+ * online authenticated encryption schemes such as Tink's streaming AEAD.
+ */
+public final class SealedStream {
+    static final byte[] MAGIC = { 'P', 'W', 'M', 'X' };
+    static final int VERSION = 1;
+    static final int SEGMENT_SIZE = 64 * 1024; // plaintext bytes
+    // Header up to the salt
+    private static final int FIXED_HEADER_SIZE = MAGIC.length + 1 + 1 + 4 + 1;
+    private static final int SALT_SIZE = 16;
+    private static final int PREFIX_SIZE = 7;
+    private static final int ITERATIONS = 65536;
+    private static final int TAG_BITS = 128;
+    private static final int TAG_SIZE = TAG_BITS / 8;
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+
+    /**
+     * Plaintext side of an opened stream.
+     *
+     * @param contentType Given by the writer, see {@link #encrypt}
+     * @param plain
+     */
+    public record Opened(int contentType, InputStream plain) {
+    }
+
+    private SealedStream() {
+    }
+
+    /**
+     * Checks whether a stream starts like a sealed stream, without consuming
+     * it. The stream must support mark and reset.
+     *
+     * @param in
+     * @return boolean
+     * @throws IOException
+     */
+    public static boolean isSealed(InputStream in) throws IOException {
+        in.mark(MAGIC.length);
+        byte[] magic = in.readNBytes(MAGIC.length);
+        in.reset();
+        return Arrays.equals(magic, MAGIC);
+    }
+
+    /**
+     * Starts a sealed stream: derives a key from the passphrase with a new salt
+     * and writes the header. Everything written to the returned stream is
+     * encrypted one segment at a time; closing it writes the last segment.
+     *
+     * @param out
+     * @param passphrase  Still owned by the caller, who wipes it
+     * @param contentType Any value from 0 to 255, returned to the reader as is
+     * @return OutputStream
+     * @throws Exception
+     */
+    public static OutputStream encrypt(OutputStream out, Secret passphrase, int contentType) throws Exception {
+        // 1. New salt and nonce prefix for every file
+        SecureRandom random = new SecureRandom();
+        byte[] salt = new byte[SALT_SIZE];
+        byte[] prefix = new byte[PREFIX_SIZE];
+        random.nextBytes(salt);
+        random.nextBytes(prefix);
+        // 2. Derive the key
+        SecretKey key = deriveKey(passphrase, salt, ITERATIONS);
+        // 3. Write the header
+        byte[] header = ByteBuffer.allocate(FIXED_HEADER_SIZE + SALT_SIZE + PREFIX_SIZE)
+                .put(MAGIC)
+                .put((byte) VERSION)
+                .put((byte) contentType)
+                .putInt(ITERATIONS)
+                .put((byte) SALT_SIZE)
+                .put(salt)
+                .put(prefix)
+                .array();
+        out.write(header);
+        return new Encrypting(out, key, header, prefix);
+    }
+
+    /**
+     * Opens a sealed stream: reads the header and derives the key from the
+     * passphrase. The returned stream decrypts one segment at a time and throws
+     * an IOException if any segment was modified, or the file was cut short.
+     *
+     * @param in
+     * @param passphrase
+     * @return Opened
+     * @throws Exception
+     */
+    public static Opened decrypt(InputStream in, Secret passphrase) throws Exception {
+        // 1. Read the header
+        byte[] fixed = in.readNBytes(FIXED_HEADER_SIZE);
+        if (fixed.length < FIXED_HEADER_SIZE || !Arrays.equals(Arrays.copyOf(fixed, MAGIC.length), MAGIC)) {
+            throw new IOException("Not an encrypted export file");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(fixed, MAGIC.length, fixed.length - MAGIC.length);
+        int version = Byte.toUnsignedInt(buffer.get());
+        if (version != VERSION) {
+            throw new IOException("Unsupported export file version " + version);
+        }
+        int contentType = Byte.toUnsignedInt(buffer.get());
+        int iterations = buffer.getInt();
+        byte[] rest = in.readNBytes(Byte.toUnsignedInt(buffer.get()) + PREFIX_SIZE);
+        if (rest.length < PREFIX_SIZE || iterations <= 0 || iterations > Kdf.Pbkdf2.MAX_ITERATIONS) {
+            throw new EOFException("Export file header is incomplete");
+        }
+        byte[] salt = Arrays.copyOf(rest, rest.length - PREFIX_SIZE);
+        byte[] prefix = Arrays.copyOfRange(rest, salt.length, rest.length);
+        byte[] header = ByteBuffer.allocate(fixed.length + rest.length).put(fixed).put(rest).array();
+        // 2. Derive the key
+        SecretKey key = deriveKey(passphrase, salt, iterations);
+        return new Opened(contentType, new Decrypting(in, key, header, prefix));
+    }
+
+    private static SecretKey deriveKey(Secret passphrase, byte[] salt, int iterations) throws Exception {
+        byte[] rawKey = new Kdf.Pbkdf2(iterations).derive(passphrase.chars(), salt);
+        SecretKey key = new SecretKeySpec(rawKey, "AES");
+        Arrays.fill(rawKey, (byte) 0);
+        return key;
+    }
+
+    private static byte[] iv(byte[] prefix, int segment, boolean last) {
+        return ByteBuffer.allocate(PREFIX_SIZE + 5).put(prefix).putInt(segment).put((byte) (last ? 1 : 0)).array();
+    }
+
+    private static final class Encrypting extends OutputStream {
+        private final OutputStream out;
+        private final SecretKey key;
+        private final byte[] header;
+        private final byte[] prefix;
+        private final Cipher cipher;
+        private final byte[] plain = new byte[SEGMENT_SIZE];
+        private final byte[] sealed = new byte[SEGMENT_SIZE + TAG_SIZE];
+        private int buffered;
+        private int segment;
+        private boolean closed;
+
+        Encrypting(OutputStream out, SecretKey key, byte[] header, byte[] prefix) throws GeneralSecurityException {
+            this.out = out;
+            this.key = key;
+            this.header = header;
+            this.prefix = prefix;
+            this.cipher = Cipher.getInstance(ALGORITHM);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            while (len > 0) {
+                // A full segment is only sealed once more data follows, so the
+                // last one is always sealed as last
+                if (buffered == SEGMENT_SIZE) {
+                    seal(false);
+                }
+                int n = Math.min(len, SEGMENT_SIZE - buffered);
+                System.arraycopy(b, off, plain, buffered, n);
+                buffered += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void seal(boolean last) throws IOException {
+            if (segment < 0) {
+                throw new IOException("Export is too large");
+            }
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv(prefix, segment++, last)));
+                cipher.updateAAD(header);
+                int n = cipher.doFinal(plain, 0, buffered, sealed, 0);
+                out.write(sealed, 0, n);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not encrypt export", e);
+            }
+            Arrays.fill(plain, 0, buffered, (byte) 0);
+            buffered = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                seal(true);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static final class Decrypting extends InputStream {
+        private final PushbackInputStream in;
+        private final SecretKey key;
+        private final byte[] header;
+        private final byte[] prefix;
+        private final Cipher cipher;
+        private final byte[] sealed = new byte[SEGMENT_SIZE + TAG_SIZE];
+        private final byte[] plain = new byte[SEGMENT_SIZE + TAG_SIZE];
+        private int position;
+        private int limit;
+        private int segment;
+        private boolean last;
+
+        Decrypting(InputStream in, SecretKey key, byte[] header, byte[] prefix) throws GeneralSecurityException {
+            this.in = new PushbackInputStream(in, 1);
+            this.key = key;
+            this.header = header;
+            this.prefix = prefix;
+            this.cipher = Cipher.getInstance(ALGORITHM);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : Byte.toUnsignedInt(b[0]);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (position == limit) {
+                if (last) {
+                    return -1;
+                }
+                open();
+            }
+            int n = Math.min(len, limit - position);
+            System.arraycopy(plain, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        /**
+         * Reads and decrypts the next segment. It's the last one when the file
+         * ends right after it.
+         *
+         * @throws IOException
+         */
+        private void open() throws IOException {
+            int n = in.readNBytes(sealed, 0, sealed.length);
+            int next = in.read();
+            if (next != -1) {
+                in.unread(next);
+            }
+            last = next == -1;
+            if (n < TAG_SIZE) {
+                throw new EOFException("Export file is truncated");
+            }
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv(prefix, segment, last)));
+                cipher.updateAAD(header);
+                Arrays.fill(plain, 0, limit, (byte) 0);
+                limit = cipher.doFinal(sealed, 0, n, plain, 0);
+                position = 0;
+                segment++;
+            } catch (AEADBadTagException e) {
+                throw new IOException(segment == 0
+                        ? "Wrong passphrase, or the export file is corrupted"
+                        : "Export file is corrupted or truncated", e);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not decrypt export", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            Arrays.fill(plain, (byte) 0);
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package passwordmanager.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Search index over the service names and usernames of the entries. Passwords
+ * are never indexed.
+ * <p>
+ * Every service name and username is stored case-folded as a term. Terms are
+ * kept sorted for prefix matches, and each term is also split into trigrams
+ * (three character substrings) for substring and fuzzy matches. The index is
+ * updated one entry at a time as entries are added or removed.
+ */
+class SearchIndex {
+    private static final int GRAM = 3;
+    private static final int SCAN_BUDGET = 1024; // terms
+    private static final int EXACT = 1000;
+    private static final int PREFIX = 500;
+    private static final int SUBSTRING = 300;
+    private static final int FUZZY = 200;
+
+    private final NavigableMap<String, Set<Entry>> terms = new TreeMap<>();
+    private final Map<String, Set<String>> grams = new HashMap<>();
+
+    /**
+     * Indexes the service name and username of an entry.
+     *
+     * @param entry
+     */
+    void add(Entry entry) {
+        addTerm(fold(entry.getService()), entry);
+        addTerm(fold(entry.getUsername()), entry);
+    }
+
+    /**
+     * Removes an entry from the index, dropping terms no other entry uses.
+     *
+     * @param entry
+     */
+    void remove(Entry entry) {
+        removeTerm(fold(entry.getService()), entry);
+        removeTerm(fold(entry.getUsername()), entry);
+    }
+
+    /**
+     * Finds the entries whose service name or username matches the query, best
+     * matches first. Exact matches rank above prefix matches, then substring
+     * matches, then fuzzy matches sharing enough trigrams with the query.
+     * Service name matches rank above username matches of the same kind.
+     *
+     * @param query
+     * @param limit
+     * @return List<Entry>
+     */
+    List<Entry> search(String query, int limit) {
+        String q = fold(query.trim());
+        Map<Entry, Integer> scores = new HashMap<>();
+        if (q.isEmpty() || limit <= 0) {
+            return List.of();
+        }
+
+        // 1. Prefix matches, in term order, until the limit is reached
+        for (Map.Entry<String, Set<Entry>> match : terms.subMap(q, true, q + Character.MAX_VALUE, false).entrySet()) {
+            String term = match.getKey();
+            int score = term.length() == q.length() ? EXACT : PREFIX - Math.min(term.length() - q.length(), 99);
+            score(scores, term, match.getValue(), score);
+            if (scores.size() >= limit) {
+                break;
+            }
+        }
+
+        // 2. Substring and fuzzy matches through the trigrams
+        if (scores.size() < limit && q.length() >= GRAM) {
+            String[] queryGrams = trigrams(q).toArray(new String[0]);
+            Arrays.sort(queryGrams, Comparator.comparingInt(g -> posting(g).size()));
+            for (String term : substringTerms(q, queryGrams[0], limit - scores.size())) {
+                score(scores, term, terms.get(term), SUBSTRING);
+            }
+            if (scores.size() < limit) {
+                List<Map.Entry<String, Double>> similar = new ArrayList<>(similarTerms(queryGrams).entrySet());
+                similar.sort(Map.Entry.comparingByValue(Comparator.reverseOrder()));
+                for (Map.Entry<String, Double> match : similar) {
+                    score(scores, match.getKey(), terms.get(match.getKey()), FUZZY + (int) (match.getValue() * 99));
+                    if (scores.size() >= limit) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        List<Map.Entry<Entry, Integer>> ranked = new ArrayList<>(scores.entrySet());
+        ranked.sort(Map.Entry.<Entry, Integer>comparingByValue(Comparator.reverseOrder())
+                .thenComparing(e -> e.getKey().getService(), String.CASE_INSENSITIVE_ORDER));
+        List<Entry> results = new ArrayList<>(Math.min(limit, ranked.size()));
+        for (int i = 0; i < ranked.size() && i < limit; i++) {
+            results.add(ranked.get(i).getKey());
+        }
+        return results;
+    }
+
+    /**
+     * Finds up to {@code wanted} terms containing the whole query. They all
+     * contain its rarest trigram, so only that posting is scanned, and at most
+     * {@link #SCAN_BUDGET} terms of it.
+     *
+     * @param q
+     * @param rarestGram
+     * @param wanted
+     * @return List<String>
+     */
+    private List<String> substringTerms(String q, String rarestGram, int wanted) {
+        List<String> matches = new ArrayList<>();
+        int scanned = 0;
+        for (String term : posting(rarestGram)) {
+            if (matches.size() >= wanted || scanned++ >= SCAN_BUDGET) {
+                break;
+            }
+            if (term.contains(q)) {
+                matches.add(term);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Finds the terms that share at least half of the query's trigrams, along
+     * with their similarity (shared trigrams over all distinct trigrams of both).
+     * Shared trigrams are counted from the postings, rarest first. Postings too
+     * large to scan whole only count towards terms already found, plus at most
+     * {@link #SCAN_BUDGET} terms taken from them, which keeps the work bounded
+     * on large vaults.
+     *
+     * @param queryGrams Query trigrams, rarest first
+     * @return Map<String, Double>
+     */
+    private Map<String, Double> similarTerms(String[] queryGrams) {
+        int required = Math.max(1, (queryGrams.length + 1) / 2);
+        Map<String, Integer> shared = new HashMap<>();
+        for (String gram : queryGrams) {
+            Set<String> posting = posting(gram);
+            if (posting.size() <= SCAN_BUDGET - shared.size()) {
+                for (String term : posting) {
+                    shared.merge(term, 1, Integer::sum);
+                }
+                continue;
+            }
+            for (String term : posting) {
+                if (shared.size() >= SCAN_BUDGET) {
+                    break;
+                }
+                shared.putIfAbsent(term, 0);
+            }
+            for (Map.Entry<String, Integer> candidate : shared.entrySet()) {
+                if (posting.contains(candidate.getKey())) {
+                    candidate.setValue(candidate.getValue() + 1);
+                }
+            }
+        }
+
+        Map<String, Double> similar = new HashMap<>();
+        for (Map.Entry<String, Integer> candidate : shared.entrySet()) {
+            String term = candidate.getKey();
+            int count = candidate.getValue();
+            int termGrams = Math.max(1, term.length() - GRAM + 1);
+            if (count >= required) {
+                similar.put(term, (double) count / (queryGrams.length + termGrams - count));
+            }
+        }
+        return similar;
+    }
+
+    private Set<String> posting(String gram) {
+        return grams.getOrDefault(gram, Set.of());
+    }
+
+    private static void score(Map<Entry, Integer> scores, String term, Set<Entry> entries, int score) {
+        for (Entry entry : entries) {
+            // Same kind of match on the username ranks a bit lower
+            int weighted = fold(entry.getService()).equals(term) ? score : score - 50;
+            scores.merge(entry, weighted, Math::max);
+        }
+    }
+
+    private void addTerm(String term, Entry entry) {
+        Set<Entry> entries = terms.get(term);
+        if (entries == null) {
+            entries = new HashSet<>(2);
+            terms.put(term, entries);
+            for (String gram : trigrams(term)) {
+                grams.computeIfAbsent(gram, k -> new HashSet<>()).add(term);
+            }
+        }
+        entries.add(entry);
+    }
+
+    private void removeTerm(String term, Entry entry) {
+        Set<Entry> entries = terms.get(term);
+        if (entries == null || !entries.remove(entry) || !entries.isEmpty()) {
+            return;
+        }
+        terms.remove(term);
+        for (String gram : trigrams(term)) {
+            Set<String> posting = grams.get(gram);
+            posting.remove(term);
+            if (posting.isEmpty()) {
+                grams.remove(gram);
+            }
+        }
+    }
+
+    private static Set<String> trigrams(String term) {
+        Set<String> result = new HashSet<>();
+        for (int i = 0; i + GRAM <= term.length(); i++) {
+            result.add(term.substring(i, i + GRAM));
+        }
+        return result;
+    }
+
+    private static String fold(String value) {
+        return value.toLowerCase(Locale.ROOT);
+    }
+}
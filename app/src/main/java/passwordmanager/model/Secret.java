@@ -0,0 +1,207 @@
+package passwordmanager.model;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A password kept in a {@code char[]} that can be wiped, unlike a String which
+ * stays on the heap until it's collected and gets copied around.
+ * <p>
+ * {@link #destroy()} overwrites the characters with zeros; afterwards every
+ * method that reads them throws {@link IllegalStateException}. A secret can be
+ * shared between threads, its methods are synchronized so it's never read
+ * while it's being wiped.
+ * <p>
+ * Conversions avoid String: {@link #chars()} hands out the backing array
+ * itself (to {@code PBEKeySpec}, or to print it), and UTF-8 is encoded and
+ * decoded through buffers that are wiped after use.
+ */
+public final class Secret implements AutoCloseable {
+    private final char[] chars;
+    private boolean destroyed;
+
+    private Secret(char[] chars) {
+        this.chars = chars;
+    }
+
+    /**
+     * Takes ownership of an array, without copying it. The array is wiped when
+     * the secret is destroyed.
+     *
+     * @param chars
+     * @return Secret
+     */
+    public static Secret wrap(char[] chars) {
+        return new Secret(chars);
+    }
+
+    /**
+     * Copies a value that is already in a String or buffer, for callers that
+     * can't avoid one (a line read from the console, an imported file).
+     *
+     * @param value
+     * @return Secret
+     */
+    public static Secret copyOf(CharSequence value) {
+        char[] chars = new char[value.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = value.charAt(i);
+        }
+        return new Secret(chars);
+    }
+
+    /**
+     * Decodes UTF-8 bytes straight into a secret. The caller still owns, and
+     * should wipe, the bytes.
+     *
+     * @param utf8
+     * @param offset
+     * @param length
+     * @return Secret
+     */
+    static Secret decode(byte[] utf8, int offset, int length) {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        // UTF-8 never decodes to more chars than it has bytes
+        CharBuffer buffer = CharBuffer.allocate(length);
+        decoder.decode(ByteBuffer.wrap(utf8, offset, length), buffer, true);
+        decoder.flush(buffer);
+        char[] chars = Arrays.copyOf(buffer.array(), buffer.position());
+        Arrays.fill(buffer.array(), '\0');
+        return new Secret(chars);
+    }
+
+    /**
+     * Encodes characters to UTF-8 without going through a String. The caller
+     * should wipe the result.
+     *
+     * @param chars
+     * @return byte[]
+     */
+    static byte[] encode(char[] chars) {
+        try {
+            ByteBuffer buffer = StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                    .encode(CharBuffer.wrap(chars));
+            byte[] bytes = Arrays.copyOf(buffer.array(), buffer.limit());
+            Arrays.fill(buffer.array(), (byte) 0);
+            return bytes;
+        } catch (CharacterCodingException e) {
+            // Errors are replaced, not reported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the backing array, not a copy: it's valid until the secret is
+     * destroyed and shouldn't be kept or changed.
+     *
+     * @return char[]
+     */
+    public synchronized char[] chars() {
+        ensureAlive();
+        return chars;
+    }
+
+    public synchronized int length() {
+        ensureAlive();
+        return chars.length;
+    }
+
+    /**
+     * Returns an independent copy, which the caller destroys.
+     *
+     * @return Secret
+     */
+    public synchronized Secret copy() {
+        ensureAlive();
+        return new Secret(chars.clone());
+    }
+
+    /**
+     * Like {@link #copy()}, but returns null instead of failing once destroyed.
+     *
+     * @return Secret
+     */
+    synchronized Secret copyIfAlive() {
+        return destroyed ? null : new Secret(chars.clone());
+    }
+
+    /**
+     * Encodes the secret to UTF-8. The caller should wipe the result.
+     *
+     * @return byte[]
+     */
+    public synchronized byte[] toUtf8() {
+        ensureAlive();
+        return encode(chars);
+    }
+
+    /**
+     * Copies the secret into a String, for APIs that only take one (the
+     * clipboard, export formats, HTTP responses). The String can't be wiped.
+     *
+     * @return String
+     */
+    public synchronized String reveal() {
+        ensureAlive();
+        return new String(chars);
+    }
+
+    /**
+     * Compares two secrets in time that only depends on their length.
+     *
+     * @param other
+     * @return boolean
+     */
+    public boolean contentEquals(Secret other) {
+        char[] a = chars();
+        char[] b = other.chars();
+        if (a.length != b.length) {
+            return false;
+        }
+        int difference = 0;
+        for (int i = 0; i < a.length; i++) {
+            difference |= a[i] ^ b[i];
+        }
+        return difference == 0;
+    }
+
+    /**
+     * Overwrites the characters with zeros. Destroying twice does nothing.
+     */
+    public synchronized void destroy() {
+        Arrays.fill(chars, '\0');
+        destroyed = true;
+    }
+
+    public synchronized boolean isDestroyed() {
+        return destroyed;
+    }
+
+    @Override
+    public void close() {
+        destroy();
+    }
+
+    private void ensureAlive() {
+        if (destroyed) {
+            throw new IllegalStateException("Secret was destroyed");
+        }
+    }
+
+    /**
+     * Never shows the characters, so secrets can be logged safely.
+     */
+    @Override
+    public String toString() {
+        return destroyed ? "Secret[destroyed]" : "Secret[" + chars.length + " chars]";
+    }
+}
@@ -0,0 +1,163 @@
+package passwordmanager.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+
+/**
+ * Replaces a file atomically and durably, keeping the previous versions as
+ * numbered backups ({@code vault.dat.1} is the newest).
+ * <p>
+ * The new content is written to a temporary file through a large buffer, so
+ * thousands of small parts cost a few writes, and flushed to the disk. The
+ * current file is then kept as the first backup and the temporary file is
+ * moved over it in one step. A crash at any point leaves either the old or the
+ * new file in place, never a partial one.
+ */
+final class SnapshotWriter {
+    static final int BUFFER_SIZE = 1 << 20;
+
+    private final Path file;
+    private final int backups;
+    private ByteBuffer buffer; // direct, reused for every save
+
+    /**
+     * @param file
+     * @param backups Number of previous versions kept, 0 for none
+     */
+    SnapshotWriter(Path file, int backups) {
+        if (backups < 0) {
+            throw new IllegalArgumentException("Number of backups must not be negative");
+        }
+        this.file = file;
+        this.backups = backups;
+    }
+
+    Path backup(int number) {
+        return file.resolveSibling(file.getFileName() + "." + number);
+    }
+
+    /**
+     * Replaces the file with the given parts, written one after another.
+     * First, it writes them to a temporary file through the buffer, then
+     * forces it to the disk.
+     * Then, it shifts the backups by one and links the current file as the
+     * newest backup.
+     * Next, it moves the temporary file over the current one.
+     * Finally, it forces the directory, so the new entry survives a crash.
+     *
+     * @param parts
+     * @param seal  Time already spent preparing the parts
+     * @return SaveTimings
+     * @throws IOException
+     */
+    synchronized SaveTimings write(Iterable<ByteBuffer> parts, Duration seal) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        long start = System.nanoTime();
+        long bytes;
+        long written;
+        // 1. Write and flush the temporary file
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            bytes = writeAll(channel, parts);
+            written = System.nanoTime();
+            channel.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        long forced = System.nanoTime();
+        // 2. Keep the current file as a backup
+        rotateBackups();
+        long backedUp = System.nanoTime();
+        // 3. Swap in the new file
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        long moved = System.nanoTime();
+        // 4. Make the rename durable
+        syncDirectory();
+        long synced = System.nanoTime();
+        return new SaveTimings(seal, Duration.ofNanos(written - start), Duration.ofNanos(forced - written),
+                Duration.ofNanos(backedUp - forced), Duration.ofNanos(moved - backedUp),
+                Duration.ofNanos(synced - moved), bytes);
+    }
+
+    private long writeAll(FileChannel channel, Iterable<ByteBuffer> parts) throws IOException {
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        buffer.clear();
+        long bytes = 0;
+        for (ByteBuffer part : parts) {
+            ByteBuffer source = part.duplicate();
+            bytes += source.remaining();
+            if (source.remaining() > buffer.remaining()) {
+                drain(channel);
+                if (source.remaining() >= buffer.capacity()) {
+                    // Large parts skip the buffer
+                    while (source.hasRemaining()) {
+                        channel.write(source);
+                    }
+                    continue;
+                }
+            }
+            buffer.put(source);
+        }
+        drain(channel);
+        return bytes;
+    }
+
+    private void drain(FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Shifts {@code file.1 .. file.(n-1)} to {@code file.2 .. file.n}, dropping
+     * the oldest, and makes {@code file.1} a hard link to the current file. The
+     * current file stays in place until it's replaced, and a file system
+     * without hard links gets a copy instead.
+     *
+     * @throws IOException
+     */
+    private void rotateBackups() throws IOException {
+        if (backups == 0 || !Files.exists(file)) {
+            return;
+        }
+        Files.deleteIfExists(backup(backups));
+        for (int i = backups - 1; i >= 1; i--) {
+            if (Files.exists(backup(i))) {
+                Files.move(backup(i), backup(i + 1), StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        try {
+            Files.createLink(backup(1), file);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(file, backup(1), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Forces the directory holding the file, which is what makes a rename
+     * durable on Linux. Not every platform can open a directory, and there it's
+     * skipped.
+     */
+    private void syncDirectory() {
+        Path directory = file.toAbsolutePath().getParent();
+        if (directory == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Windows can't open directories, its renames are already durable
+        }
+    }
+}
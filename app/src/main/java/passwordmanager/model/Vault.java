@@ -1,155 +1,1362 @@
 package passwordmanager.model;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javax.crypto.AEADBadTagException;
 import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.spec.GCMParameterSpec;
+import passwordmanager.metrics.Metrics;
 
 public class Vault {
     private static final int SALT_SIZE = 16; // bytes
-    private static final int IV_SIZE = 12; // bytes for GCM
+    // Used by new vaults until another KDF is chosen
+    public static final Kdf DEFAULT_KDF = new Kdf.Pbkdf2(65536);
+    private static final int TAG_BITS = 128;
     private static final String ALGORITHM = "AES/GCM/NoPadding";
     private static final String PATH = "vault.dat";
+    public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(5);
+    // Journal size that triggers folding it back into the snapshot
+    private static final int MAX_JOURNAL_RECORDS = 512;
+    private static final long MAX_JOURNAL_BYTES = 1 << 20;
+    // Previous snapshots kept next to the vault file
+    public static final int DEFAULT_BACKUPS = 3;
+
+    // Shared by every vault, see Metrics
+    private static final Metrics.Timer KDF_TIMER = Metrics.timer("kdf", "Deriving a key from the master password");
+    private static final Metrics.Timer CIPHER_INIT_TIMER = Metrics.timer("cipher_init",
+            "Setting up AES-GCM with a key and IV");
+    private static final Metrics.Timer SERIALIZE_TIMER = Metrics.timer("serialize",
+            "Encoding the metadata of a snapshot");
+    private static final Metrics.Timer ENCRYPT_TIMER = Metrics.timer("encrypt",
+            "Sealing the passwords and metadata of a snapshot");
+    private static final Metrics.Timer WRITE_TIMER = Metrics.timer("write",
+            "Writing, flushing and swapping in a snapshot file");
+    private static final Metrics.Timer SAVE_TIMER = Metrics.timer("save", "Saving a whole snapshot");
+    private static final Metrics.Timer JOURNAL_TIMER = Metrics.timer("journal_append",
+            "Appending changes to the journal");
+    private static final Metrics.Timer LOAD_TIMER = Metrics.timer("load", "Loading a vault and replaying its journal");
+    private static final Metrics.Timer DECRYPT_TIMER = Metrics.timer("decrypt", "Decrypting one password");
+    private static final Metrics.Counter ENTRIES_SAVED = Metrics.counter("entries_saved",
+            "Entries written in snapshots");
+    private static final Metrics.Counter ENTRIES_LOADED = Metrics.counter("entries_loaded", "Entries loaded");
+    private static final Metrics.Counter BYTES_WRITTEN = Metrics.counter("bytes_written",
+            "Bytes written in snapshots");
+    private static final Metrics.Counter BYTES_JOURNALED = Metrics.counter("bytes_journaled",
+            "Bytes appended to journals");
+
+    // Shared by every vault, only wipes idle sessions
+    private static final ScheduledExecutorService IDLE_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "vault-idle-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // One per thread reading passwords, initialized again for every password
+    private static final ThreadLocal<Cipher> SECRET_CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final Path file;
+    private final Journal journal;
+    private final Duration idleTimeout;
+    private final int maxJournalRecords;
+    private final long maxJournalBytes;
+    private final SnapshotWriter snapshotWriter;
+    private SaveTimings lastSave;
+    // KDF for the next key, when there is no vault file yet
+    private Kdf kdf = DEFAULT_KDF;
+    private boolean closed;
+    // Read without the lock when decrypting a password
+    private volatile VaultSession session;
+    // Held while there is a session
+    private VaultFileLock fileLock;
+    private ScheduledFuture<?> idleCheck;
+    // Data key wrapped for the master password, as written in the header. Null
+    // until the vault has a data key.
+    private VaultFormat.KeySlot[] keySlots;
+    // Snapshot on disk, mapped read-only. Null until the vault is loaded or saved.
+    private VaultFormat.Header header;
+    private MappedByteBuffer mapped;
+    // History sealed in the snapshot file, null if it has none
+    private ByteBuffer sealedHistory;
+    // Versions deleted since the snapshot was written, and the retention policy
+    // set since, if any: both go into the next snapshot's history
+    private final List<EntryHistory.Version> retired = new ArrayList<>();
+    private EntryHistory.Retention newRetention;
+
+    public Vault() {
+        this(DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Creates a vault whose derived key is cached for the session and wiped after
+     * being idle for the given time. Passwords can't be read while the key is
+     * wiped, until the vault is unlocked again.
+     *
+     * @param idleTimeout Must be positive.
+     */
+    public Vault(Duration idleTimeout) {
+        this(Path.of(PATH), idleTimeout);
+    }
 
     /**
-     * Saves the list of entries to a file, encrypting them with a key derived
-     * from the master password.
-     * First, it generates a random salt and IV.
-     * Then, it derives a SecretKey from the master password and salt.
-     * Next, it initializes a Cipher in encryption mode with the derived key and IV.
-     * Finally, it writes the salt, IV, and encrypted entries to a file.
-     * 
+     * Creates a vault stored at the given file. Changes are journaled next to it,
+     * in a file with the same name plus ".journal".
+     *
+     * @param file
+     * @param idleTimeout Must be positive.
+     */
+    public Vault(Path file, Duration idleTimeout) {
+        this(file, idleTimeout, DEFAULT_BACKUPS);
+    }
+
+    /**
+     * Creates a vault stored at the given file that keeps a number of previous
+     * snapshots, as "vault.dat.1" (the newest) to "vault.dat.N". Backups hold
+     * only what was saved in the snapshot, not the journal written after it.
+     *
+     * @param file
+     * @param idleTimeout Must be positive.
+     * @param backups     0 for none.
+     */
+    public Vault(Path file, Duration idleTimeout, int backups) {
+        this(file, idleTimeout, MAX_JOURNAL_RECORDS, MAX_JOURNAL_BYTES, backups);
+    }
+
+    Vault(Path file, Duration idleTimeout, int maxJournalRecords, long maxJournalBytes) {
+        this(file, idleTimeout, maxJournalRecords, maxJournalBytes, DEFAULT_BACKUPS);
+    }
+
+    Vault(Path file, Duration idleTimeout, int maxJournalRecords, long maxJournalBytes, int backups) {
+        if (idleTimeout.isZero() || idleTimeout.isNegative()) {
+            throw new IllegalArgumentException("Idle timeout must be positive");
+        }
+        this.file = file;
+        this.journal = new Journal(file.resolveSibling(file.getFileName() + ".journal"));
+        this.idleTimeout = idleTimeout;
+        this.maxJournalRecords = maxJournalRecords;
+        this.maxJournalBytes = maxJournalBytes;
+        this.snapshotWriter = new SnapshotWriter(file, backups);
+    }
+
+    /**
+     * Saves the list of entries to a file, encrypting them with the vault's data
+     * key.
+     * First, it takes the key from the current session, unlocking the vault if
+     * needed. A vault that was never saved gets a new data key, wrapped with a
+     * key derived from the master password and a random salt.
+     * Then, it seals every password on its own, with a fresh IV. Passwords that
+     * are still sealed in the current file are copied as they are, without
+     * decrypting them, and so is the history unless it changed.
+     * Next, it packs the metadata (service, username and where each password
+     * is) into segments and seals each one with one more IV, authenticating the
+     * header up to the key slots and the segment's place along with it.
+     * Finally, it writes everything to a new file that replaces the old one,
+     * points the entries at their passwords in it, and clears the journal since
+     * the new snapshot already holds every change.
+     *
      * @param entries
-     * @param masterPassword
+     * @param masterPassword Only used when there is no unlocked session.
      * @throws Exception
      */
-    public void save(List<Entry> entries, String masterPassword) throws Exception {
-        // 1. Generate salt & iv
-        byte[] salt = generateRandom(SALT_SIZE);
-        byte[] iv = generateRandom(IV_SIZE);
-        // 2. Derive key
-        SecretKey key = deriveKey(masterPassword, salt);
-        // 3. Initialize cipher
+    public synchronized void save(Collection<Entry> entries, Secret masterPassword) throws Exception {
+        // 1. Reuse the session key or derive it
+        long saveStart = System.nanoTime();
+        ensureUnlocked(masterPassword);
+        long start = System.nanoTime();
+        List<Entry> ordered = new ArrayList<>(entries);
         Cipher cipher = Cipher.getInstance(ALGORITHM);
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(128, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, key, gcmSpec);
 
-        // 4. Write to file
-        writeToFile(salt, iv, cipher, entries);
-        System.out.println("\t-> Vault saved successfully: " + PATH + "\n\t-> Number of entries: " + entries.size());
+        // 2. Seal each password with its own IV
+        ByteBuffer[] secrets = new ByteBuffer[ordered.size()];
+        long historyOffset = 0;
+        for (int i = 0; i < secrets.length; i++) {
+            secrets[i] = sealSecret(cipher, ordered.get(i));
+            historyOffset += secrets[i].remaining();
+        }
+        ByteBuffer history = sealHistory(cipher);
+        long sealed = System.nanoTime();
+        // Whole records per segment, the count and history at the start of the first one
+        List<ByteBuffer> segments = new ArrayList<>();
+        ByteBuffer segment = ByteBuffer.allocate(VaultFormat.SEGMENT_SIZE)
+                .putInt(secrets.length)
+                .putLong(historyOffset)
+                .putInt(history == null ? 0 : history.remaining());
+        long offset = 0;
+        for (int i = 0; i < secrets.length; i++) {
+            int size = VaultFormat.metadataSize(ordered.get(i));
+            if (size > segment.remaining()) {
+                segments.add(segment.flip());
+                segment = ByteBuffer.allocate(Math.max(VaultFormat.SEGMENT_SIZE, size));
+            }
+            VaultFormat.writeMetadata(segment, ordered.get(i), offset, secrets[i].remaining());
+            offset += secrets[i].remaining();
+        }
+        segments.add(segment.flip());
+        long serialized = System.nanoTime();
+        SERIALIZE_TIMER.record(serialized - sealed);
+
+        // 3. Seal the metadata last, so the header holds the highest IV used
+        byte[][] ivs = new byte[segments.size()][];
+        int metadataLength = 0;
+        for (int i = 0; i < ivs.length; i++) {
+            ivs[i] = session.nextIv();
+            metadataLength += VaultFormat.SEGMENT_OVERHEAD + segments.get(i).remaining();
+        }
+        byte[] iv = ivs[ivs.length - 1];
+        byte[] headerBytes = VaultFormat.encodeHeader(iv, metadataLength, keySlots);
+        ByteBuffer sealedMetadata = ByteBuffer.allocate(metadataLength);
+        for (int i = 0; i < ivs.length; i++) {
+            ByteBuffer plain = segments.get(i);
+            sealedMetadata.putInt(plain.remaining()).put(ivs[i]);
+            initCipher(cipher, Cipher.ENCRYPT_MODE, session.key(), ivs[i]);
+            cipher.updateAAD(VaultFormat.segmentAad(ByteBuffer.wrap(headerBytes), i, i == ivs.length - 1));
+            cipher.doFinal(plain, sealedMetadata);
+        }
+        ENCRYPT_TIMER.record(sealed - start + System.nanoTime() - serialized);
+
+        // 4. Write to file and read the passwords from it from now on
+        List<ByteBuffer> parts = new ArrayList<>(secrets.length + 3);
+        parts.add(ByteBuffer.wrap(headerBytes));
+        parts.add(sealedMetadata.flip());
+        parts.addAll(Arrays.asList(secrets));
+        if (history != null) {
+            parts.add(history.duplicate());
+        }
+        lastSave = snapshotWriter.write(parts, Duration.ofNanos(System.nanoTime() - start));
+        WRITE_TIMER.record(lastSave.total().minus(lastSave.seal()).toNanos());
+        BYTES_WRITTEN.add(lastSave.bytes());
+        ENTRIES_SAVED.add(secrets.length);
+        mapSnapshot();
+        long secretsStart = header.length() + (long) header.metadataLength();
+        offset = 0;
+        for (int i = 0; i < secrets.length; i++) {
+            int length = secrets[i].remaining();
+            ordered.get(i).seal(new SealedSecret(this, mapped.slice((int) (secretsStart + offset), length)));
+            offset += length;
+        }
+        sealedHistory = history == null ? null
+                : mapped.slice((int) (secretsStart + historyOffset), history.remaining());
+        clearHistoryChanges();
+        journal.reset(iv);
+        SAVE_TIMER.recordSince(saveStart);
+        System.out.println("\t-> Vault saved successfully: " + file + "\n\t-> Number of entries: " + entries.size()
+                + "\n\t-> Saved in " + lastSave);
     }
 
     /**
-     * Loads and decrypts the list of entries from a file using the provided master
-     * password.
-     * First, it reads the salt and IV from the beginning of the file.
-     * Then, it derives a SecretKey from the master password and salt.
-     * Next, it initializes a Cipher in decryption mode with the derived key and IV.
-     * Finally, it reads and decrypts the entries from the file.
-     * 
+     * Returns the sealed password of an entry: the one already in this vault's
+     * file, or a new one encrypted with a fresh IV.
+     *
+     * @param cipher
+     * @param entry
+     * @return ByteBuffer IV followed by the ciphertext and tag
+     * @throws Exception
+     */
+    private ByteBuffer sealSecret(Cipher cipher, Entry entry) throws Exception {
+        SealedSecret sealed = entry.getSealed();
+        if (sealed != null && sealed.owner() == this) {
+            return sealed.sealed();
+        }
+        byte[] iv = session.nextIv();
+        byte[] password;
+        try (Secret plain = entry.openPassword()) {
+            password = plain.toUtf8();
+        }
+        initCipher(cipher, Cipher.ENCRYPT_MODE, session.key(), iv);
+        cipher.updateAAD(VaultFormat.secretAad(entry.getService(), entry.getUsername()));
+        ByteBuffer secret = ByteBuffer.allocate(iv.length + cipher.getOutputSize(password.length));
+        secret.put(iv);
+        cipher.doFinal(ByteBuffer.wrap(password), secret);
+        Arrays.fill(password, (byte) 0);
+        return secret.flip();
+    }
+
+    /**
+     * Returns the sealed history for a new snapshot: the one in the current file
+     * if nothing changed since it was written, or the history with the changes
+     * applied, sealed with a fresh IV.
+     *
+     * @param cipher
+     * @return ByteBuffer IV followed by the ciphertext and tag, null for no
+     *         history
+     * @throws Exception
+     */
+    private ByteBuffer sealHistory(Cipher cipher) throws Exception {
+        if (retired.isEmpty() && newRetention == null) {
+            return sealedHistory == null ? null : sealedHistory.duplicate();
+        }
+        EntryHistory history = readHistory();
+        try {
+            if (history.isEmpty() && history.retention().equals(EntryHistory.Retention.DEFAULT)) {
+                return null;
+            }
+            byte[] plain = VaultFormat.encodeHistory(history);
+            byte[] iv = session.nextIv();
+            initCipher(cipher, Cipher.ENCRYPT_MODE, session.key(), iv);
+            cipher.updateAAD(VaultFormat.HISTORY_AAD);
+            ByteBuffer sealed = ByteBuffer.allocate(iv.length + cipher.getOutputSize(plain.length));
+            sealed.put(iv);
+            cipher.doFinal(ByteBuffer.wrap(plain), sealed);
+            Arrays.fill(plain, (byte) 0);
+            return sealed.flip();
+        } finally {
+            history.destroy();
+        }
+    }
+
+    /**
+     * Records a new entry by appending it to the journal. The whole vault is
+     * saved instead when there is no file yet or the journal grew too large.
+     *
+     * @param entry
+     * @param entries All entries, including the new one.
+     * @param masterPassword Only used when there is no unlocked session.
+     * @throws Exception
+     */
+    public synchronized void add(Entry entry, Collection<Entry> entries, Secret masterPassword) throws Exception {
+        commit(new Journal.Mutation(Journal.Op.ADD, entry), entries, masterPassword);
+    }
+
+    /**
+     * Records a batch of new entries with a single commit: one journal write, or
+     * a single save when the batch doesn't fit in the journal.
+     *
+     * @param added
+     * @param entries All entries, including the new ones.
+     * @param masterPassword Only used when there is no unlocked session.
+     * @throws Exception
+     */
+    public synchronized void addAll(Collection<Entry> added, Collection<Entry> entries, Secret masterPassword)
+            throws Exception {
+        List<Journal.Mutation> mutations = new ArrayList<>(added.size());
+        for (Entry entry : added) {
+            mutations.add(new Journal.Mutation(Journal.Op.ADD, entry));
+        }
+        commit(mutations, entries, masterPassword);
+    }
+
+    /**
+     * Records the removal of an entry, the same way as {@link #add}. Its password
+     * is kept in the history, see {@link #history}.
+     *
+     * @param entry
+     * @param entries All entries, without the removed one.
+     * @param masterPassword Only used when there is no unlocked session.
+     * @throws Exception
+     */
+    public synchronized void delete(Entry entry, Collection<Entry> entries, Secret masterPassword) throws Exception {
+        commit(new Journal.Mutation(Journal.Op.DELETE, entry), entries, masterPassword);
+    }
+
+    private void commit(Journal.Mutation mutation, Collection<Entry> entries, Secret masterPassword) throws Exception {
+        commit(List.of(mutation), entries, masterPassword);
+    }
+
+    /**
+     * Appends changes to the journal, or compacts the journal into a new
+     * snapshot when there is no snapshot yet or when the changes would take the
+     * journal over its size or record limit.
+     *
+     * @param mutations
+     * @param entries
+     * @param masterPassword
+     * @throws Exception
+     */
+    synchronized void commit(List<Journal.Mutation> mutations, Collection<Entry> entries, Secret masterPassword)
+            throws Exception {
+        if (mutations.isEmpty()) {
+            return;
+        }
+        // Deleted passwords go into the history, unless the change fails
+        ensureUnlocked(masterPassword);
+        int retiredBefore = retired.size();
+        for (Journal.Mutation mutation : mutations) {
+            retire(mutation);
+        }
+        try {
+            if (header == null || journal.records() + mutations.size() > maxJournalRecords
+                    || journal.size() >= maxJournalBytes) {
+                save(entries, masterPassword);
+                return;
+            }
+        } catch (Exception e) {
+            dropRetired(retiredBefore);
+            throw e;
+        }
+        long start = System.nanoTime();
+        long size = journal.size();
+        try {
+            journal.append(mutations, session.key(), session::nextIv);
+        } catch (Exception e) {
+            dropRetired(retiredBefore);
+            throw e;
+        }
+        JOURNAL_TIMER.recordSince(start);
+        BYTES_JOURNALED.add(journal.size() - size);
+        System.out.println("\t-> " + (mutations.size() == 1 ? "Change" : mutations.size() + " changes")
+                + " appended to journal (" + journal.records() + " pending)");
+    }
+
+    /**
+     * Loads the list of entries from a file using the provided master password,
+     * see {@link #open}. The data key is kept as the session key, so later
+     * saves and password reads don't need to derive it again. Files in an older
+     * format are rewritten in the current one.
+     *
      * @param masterPassword
      * @return List<Entry>
      * @throws Exception
      */
-    public List<Entry> load(String masterPassword) throws Exception {
-        // 1. Read salt & iv from file
-        try (FileInputStream fis = new FileInputStream(PATH);) {
-            byte[] salt = new byte[SALT_SIZE];
-            byte[] iv = new byte[IV_SIZE];
-            if (fis.read(salt) != SALT_SIZE || fis.read(iv) != IV_SIZE) {
-                throw new IOException("Archivo corrupto o incompleto");
+    public synchronized List<Entry> load(Secret masterPassword) throws Exception {
+        long start = System.nanoTime();
+        List<Entry> entries = new ArrayList<>();
+        try (Stream<Entry> stream = open(masterPassword)) {
+            stream.forEach(entries::add);
+        } catch (UncheckedIOException e) {
+            lock();
+            throw e.getCause();
+        }
+        // One-time migration of vaults written in an older format
+        if (!header.isCurrent()) {
+            System.out.println("\t-> Migrating vault to format version " + VaultFormat.VERSION);
+            migrate(entries, masterPassword);
+        }
+        LOAD_TIMER.recordSince(start);
+        ENTRIES_LOADED.add(entries.size());
+        return entries;
+    }
+
+    /**
+     * Streams the entries of the vault file instead of loading them all, for
+     * vaults too large to keep in memory: the metadata is decrypted and
+     * authenticated one segment at a time and passwords stay sealed in the
+     * mapped file, so going through the entries once (to export or audit them)
+     * takes constant memory. A vault that is already loaded keeps its session,
+     * unlocking it if needed, see {@link #reread}; otherwise it's opened as
+     * with {@link #load}, but files in an older format aren't migrated.
+     * <p>
+     * Errors found while streaming, such as a modified segment, are thrown as
+     * {@link UncheckedIOException}.
+     *
+     * @param masterPassword Only used when there is no unlocked session.
+     * @return Stream<Entry> Read lazily, in the file's order
+     * @throws Exception if the password is wrong or the file can't be read
+     */
+    public synchronized Stream<Entry> stream(Secret masterPassword) throws Exception {
+        if (mapped != null && !closed) {
+            unlock(masterPassword);
+            return reread();
+        }
+        return open(masterPassword);
+    }
+
+    /**
+     * Reads the entries of a loaded vault again with the session key: the
+     * mapped snapshot, then the journal records written since, up to the last
+     * append that succeeded. Unlike {@link #open} it doesn't run the KDF, and
+     * leaves the session, its IVs and the history changes as they are.
+     *
+     * @return Stream<Entry>
+     * @throws Exception
+     */
+    private Stream<Entry> reread() throws Exception {
+        SecretKey key = session.key();
+        Iterator<Entry> snapshot = header.hasMetadata() ? new SnapshotIterator(key) : readPayload(key).iterator();
+        return withChanges(snapshot, journal.read(key, header.isLegacy()));
+    }
+
+    /**
+     * Opens the vault file for reading its entries.
+     * First, it maps the file into memory and reads the header with the IV and
+     * the key slots.
+     * Then, it unwraps the data key with a key derived from the master password.
+     * Next, it decrypts the first metadata segment and replays the journal,
+     * which both check the key.
+     * Finally, it keeps the key as the session key and returns the entries,
+     * skipping those the journal removed (their passwords go into the history)
+     * and adding the ones it added at the end. Entries are decoded as they're read, and each password stays
+     * encrypted in the mapped file until it's needed.
+     *
+     * @param masterPassword
+     * @return Stream<Entry>
+     * @throws Exception
+     */
+    private Stream<Entry> open(Secret masterPassword) throws Exception {
+        // 1. Map the file and read its header
+        if (!Files.exists(file)) {
+            throw new FileNotFoundException(file.toString());
+        }
+        lock();
+        holdFileLock();
+        try {
+            closed = false;
+            clearHistoryChanges();
+            mapSnapshot();
+            // 2. Get the key
+            byte[] rawKey = vaultKey(masterPassword);
+            SecretKey key = new SecretKeySpec(rawKey, "AES");
+            // 3. Start reading entries and replay the changes made since
+            Iterator<Entry> snapshot;
+            List<Journal.Mutation> mutations;
+            try {
+                if (header.hasMetadata()) {
+                    SnapshotIterator metadata = new SnapshotIterator(key);
+                    sealedHistory = metadata.history();
+                    snapshot = metadata;
+                } else {
+                    sealedHistory = null;
+                    snapshot = readPayload(key).iterator();
+                }
+                mutations = journal.replay(key, header.iv(), header.isLegacy());
+            } catch (Exception e) {
+                Arrays.fill(rawKey, (byte) 0);
+                throw e;
             }
-            // 2. Derive key
-            SecretKey key = deriveKey(masterPassword, salt);
-            // 3. Initialize cipher
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
-            GCMParameterSpec ivSpec = new GCMParameterSpec(128, iv);
-            cipher.init(Cipher.DECRYPT_MODE, key, ivSpec);
-            // 4. Read entries
-            return readFromFile(fis, cipher);
+            // 4. Keep the key, with IVs no earlier session issued
+            openSession(new VaultSession(rawKey));
+            for (Journal.Mutation mutation : mutations) {
+                retire(mutation);
+            }
+            return withChanges(snapshot, mutations);
+        } catch (Exception e) {
+            lock();
+            throw e;
         }
     }
 
     /**
-     * Reads and decrypts the list of entries from a file using the provided Cipher.
-     * 
-     * @param cipher
+     * Streams the entries of a snapshot with the journal's changes applied:
+     * skipping those it removed and adding the ones it added at the end. A
+     * removal only matches an entry with the same account and password.
+     *
+     * @param snapshot
+     * @param mutations
+     * @return Stream<Entry>
+     */
+    private static Stream<Entry> withChanges(Iterator<Entry> snapshot, List<Journal.Mutation> mutations) {
+        List<Entry> added = new ArrayList<>();
+        // Removed entries by account
+        Map<Entry, List<Entry>> removed = new HashMap<>();
+        for (Journal.Mutation mutation : mutations) {
+            switch (mutation.op()) {
+                case ADD -> added.add(mutation.entry());
+                case DELETE -> {
+                    if (!takeOne(added, mutation.entry())) {
+                        removed.computeIfAbsent(mutation.entry(), k -> new ArrayList<>(1)).add(mutation.entry());
+                    }
+                }
+            }
+        }
+        // Removals compare passwords, which needs the session key
+        Stream<Entry> entries = StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(snapshot, Spliterator.ORDERED | Spliterator.NONNULL), false);
+        if (!removed.isEmpty()) {
+            entries = entries.filter(entry -> {
+                List<Entry> same = removed.get(entry);
+                if (same == null || !takeOne(same, entry)) {
+                    return true;
+                }
+                if (same.isEmpty()) {
+                    removed.remove(entry);
+                }
+                return false;
+            });
+        }
+        return added.isEmpty() ? entries : Stream.concat(entries, added.stream());
+    }
+
+    /**
+     * Removes the first entry with the same account and password.
+     *
+     * @param entries
+     * @param entry
+     * @return boolean false if there was none
+     */
+    private static boolean takeOne(List<Entry> entries, Entry entry) {
+        for (Iterator<Entry> it = entries.iterator(); it.hasNext();) {
+            Entry candidate = it.next();
+            if (candidate.equals(entry) && candidate.samePassword(entry)) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rewrites a vault loaded from an older format. Files without key slots get
+     * a new data key: the key derived from the master password becomes the key
+     * that wraps it, so the KDF doesn't run again. Files with key slots keep
+     * their data key and sealed passwords, only the metadata is written again.
+     * If saving fails the old file stays as it is, and the next unlock derives
+     * its key again.
+     *
+     * @param entries
+     * @param masterPassword
+     */
+    private void migrate(List<Entry> entries, Secret masterPassword) {
+        boolean newDataKey = !header.hasKeySlots();
+        try {
+            if (newDataKey) {
+                // The passwords are sealed with the old key
+                for (Entry entry : entries) {
+                    entry.unseal();
+                }
+                byte[] wrappingKey = session.key().getEncoded();
+                byte[] dataKey = generateRandom(VaultFormat.DATA_KEY_SIZE);
+                try {
+                    keySlots = new VaultFormat.KeySlot[VaultFormat.KEY_SLOTS];
+                    keySlots[0] = wrapDataKey(dataKey, wrappingKey, 1, header.kdf(), header.salt());
+                } finally {
+                    Arrays.fill(wrappingKey, (byte) 0);
+                }
+                openSession(new VaultSession(dataKey));
+            }
+            save(entries, masterPassword);
+        } catch (Exception e) {
+            System.out.println("\t-> Migration failed, keeping the old format: " + e.getMessage());
+            lock();
+            if (newDataKey) {
+                keySlots = null;
+            }
+        }
+    }
+
+    /**
+     * Reads the entries of the mapped snapshot, decrypting one metadata segment
+     * at a time into a reused buffer, and creates an entry for each record,
+     * pointing at its password in the mapped file. Files before version 4 have
+     * a single segment, decrypted at once.
+     */
+    private final class SnapshotIterator implements Iterator<Entry> {
+        private final ByteBuffer file;
+        private final VaultFormat.Header snapshot;
+        private final long secretsStart;
+        private final Cipher cipher;
+        private SecretKey key; // dropped once every entry was read
+        private ByteBuffer plain;
+        private ByteBuffer history;
+        private int position; // of the next segment
+        private int segment;
+        private int remaining;
+
+        SnapshotIterator(SecretKey key) throws Exception {
+            this.file = mapped;
+            this.snapshot = header;
+            this.secretsStart = snapshot.length() + (long) snapshot.metadataLength();
+            this.cipher = Cipher.getInstance(ALGORITHM);
+            this.key = key;
+            this.position = snapshot.length();
+            plain = snapshot.hasSegments() ? openSegment() : decryptMetadata(key);
+            remaining = plain.getInt();
+            if (remaining < 0) {
+                throw new IOException("Invalid entry count " + remaining);
+            }
+            if (snapshot.hasHistory()) {
+                long offset = plain.getLong();
+                int length = plain.getInt();
+                if (length != 0) {
+                    if (offset < 0 || length < VaultFormat.IV_SIZE + VaultFormat.TAG_SIZE
+                            || secretsStart + offset + length > file.capacity()) {
+                        throw new IOException("History lies outside the vault file");
+                    }
+                    history = file.slice((int) (secretsStart + offset), length);
+                }
+            }
+        }
+
+        /**
+         * Returns the sealed history of the snapshot.
+         *
+         * @return ByteBuffer null if it has none
+         */
+        ByteBuffer history() {
+            return history;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                while (!plain.hasRemaining()) {
+                    plain = openSegment();
+                }
+                VaultFormat.Metadata metadata = VaultFormat.readMetadata(plain);
+                long start = secretsStart + metadata.secretOffset();
+                if (metadata.secretOffset() < 0 || metadata.secretLength() < VaultFormat.IV_SIZE
+                        || start + metadata.secretLength() > file.capacity()) {
+                    throw new IOException("Password of " + metadata.service() + " lies outside the vault file");
+                }
+                if (--remaining == 0) {
+                    finish();
+                }
+                ByteBuffer secret = file.slice((int) start, metadata.secretLength());
+                return new Entry(metadata.service(), metadata.username(), new SealedSecret(Vault.this, secret));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (GeneralSecurityException e) {
+                throw new UncheckedIOException(new IOException("Vault metadata is corrupted", e));
+            }
+        }
+
+        /**
+         * Decrypts the next segment. It's the last one if it ends where the
+         * metadata does.
+         *
+         * @return ByteBuffer
+         * @throws IOException
+         * @throws GeneralSecurityException AEADBadTagException if it was
+         *                                  modified or is out of place
+         */
+        private ByteBuffer openSegment() throws IOException, GeneralSecurityException {
+            if (position + (long) VaultFormat.SEGMENT_OVERHEAD > secretsStart) {
+                throw new IOException("Vault metadata is truncated");
+            }
+            int length = file.getInt(position);
+            int sealedStart = position + Integer.BYTES + VaultFormat.IV_SIZE;
+            int sealedLength = length + VaultFormat.TAG_SIZE;
+            if (length < 0 || sealedStart + (long) sealedLength > secretsStart) {
+                throw new IOException("Invalid metadata segment length " + length);
+            }
+            byte[] iv = new byte[VaultFormat.IV_SIZE];
+            file.get(position + Integer.BYTES, iv);
+            boolean last = sealedStart + sealedLength == secretsStart;
+            initCipher(cipher, Cipher.DECRYPT_MODE, key, iv);
+            cipher.updateAAD(VaultFormat.segmentAad(file, segment, last));
+            ByteBuffer out = plain != null && plain.capacity() >= length ? plain.clear() : ByteBuffer.allocate(length);
+            cipher.doFinal(file.slice(sealedStart, sealedLength), out);
+            position = sealedStart + sealedLength;
+            segment++;
+            return out.flip();
+        }
+
+        /**
+         * Checks that nothing follows the last record, so a file can't hold
+         * more segments than its authenticated entry count says.
+         *
+         * @throws IOException
+         */
+        private void finish() throws IOException {
+            if (snapshot.hasSegments() && (plain.hasRemaining() || position != secretsStart)) {
+                throw new IOException("Vault metadata continues after its last entry");
+            }
+            key = null;
+        }
+    }
+
+    private ByteBuffer decryptMetadata(SecretKey key) throws Exception {
+        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        initCipher(cipher, Cipher.DECRYPT_MODE, key, header.iv());
+        cipher.updateAAD(mapped.slice(0, header.authenticatedLength()));
+        ByteBuffer sealed = mapped.slice(header.length(), header.metadataLength());
+        ByteBuffer plain = ByteBuffer.allocate(cipher.getOutputSize(sealed.remaining()));
+        cipher.doFinal(sealed, plain);
+        return plain.flip();
+    }
+
+    /**
+     * Decrypts the single payload of a version 0 or 1 file and decodes the
+     * entries, passwords included.
+     *
+     * @param key
      * @return List<Entry>
      * @throws Exception
      */
-    private List<Entry> readFromFile(FileInputStream fis, Cipher cipher) throws Exception {
-        try (CipherInputStream cis = new CipherInputStream(fis, cipher);
-                ObjectInputStream ois = new ObjectInputStream(cis);) {
-            @SuppressWarnings("unchecked")
-            List<Entry> entries = (List<Entry>) ois.readObject();
-            return entries;
+    private List<Entry> readPayload(SecretKey key) throws Exception {
+        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        initCipher(cipher, Cipher.DECRYPT_MODE, key, header.iv());
+        if (!header.isLegacy()) {
+            cipher.updateAAD(mapped.slice(0, header.length()));
         }
+        ByteBuffer sealed = mapped.slice(header.length(), mapped.capacity() - header.length());
+        byte[] plain = new byte[cipher.getOutputSize(sealed.remaining())];
+        int length = cipher.doFinal(sealed, ByteBuffer.wrap(plain));
+        if (header.isLegacy()) {
+            return VaultFormat.decodeLegacyEntries(Arrays.copyOf(plain, length));
+        }
+        return VaultFormat.decodeEntries(ByteBuffer.wrap(plain, 0, length));
+    }
+
+    /**
+     * Decrypts one password from the mapped file. The plain bytes are wiped once
+     * the password is decoded.
+     * <p>
+     * Doesn't take the vault lock, so threads auditing or exporting decrypt in
+     * parallel: each one gets its own copy of the session key and uses its own
+     * cipher. A password whose decryption started before the vault was locked
+     * is still returned.
+     *
+     * @param secret
+     * @param entry
+     * @return Secret Owned by the caller
+     * @throws IllegalStateException if the vault is locked or the password is
+     *                               corrupted
+     */
+    Secret openSecret(SealedSecret secret, Entry entry) {
+        SecretKey key;
+        try {
+            VaultSession current = session;
+            if (current == null) {
+                throw new IllegalStateException("Vault session is locked");
+            }
+            key = current.key();
+        } catch (IllegalStateException e) {
+            throw new IllegalStateException("Vault is locked, unlock it to read passwords", e);
+        }
+        long start = System.nanoTime();
+        try {
+            ByteBuffer sealed = secret.sealed();
+            byte[] iv = new byte[VaultFormat.IV_SIZE];
+            sealed.get(iv);
+            Cipher cipher = SECRET_CIPHERS.get();
+            initCipher(cipher, Cipher.DECRYPT_MODE, key, iv);
+            cipher.updateAAD(VaultFormat.secretAad(entry.getService(), entry.getUsername()));
+            byte[] plain = new byte[cipher.getOutputSize(sealed.remaining())];
+            int length = cipher.doFinal(sealed, ByteBuffer.wrap(plain));
+            Secret password = Secret.decode(plain, 0, length);
+            Arrays.fill(plain, (byte) 0);
+            DECRYPT_TIMER.recordSince(start);
+            return password;
+        } catch (AEADBadTagException e) {
+            throw new IllegalStateException("Password of " + entry.getService() + " is corrupted", e);
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not decrypt password of " + entry.getService(), e);
+        }
+    }
+
+    /**
+     * Decrypts the history of deleted passwords, with the changes made since
+     * the snapshot was written and without the versions the retention policy
+     * no longer keeps.
+     *
+     * @param masterPassword Only used when there is no unlocked session.
+     * @return EntryHistory owned by the caller, who should destroy it
+     * @throws Exception
+     */
+    public synchronized EntryHistory history(Secret masterPassword) throws Exception {
+        ensureUnlocked(masterPassword);
+        return readHistory();
+    }
+
+    /**
+     * Changes how much history is kept and saves the vault, dropping the
+     * versions the new policy doesn't keep.
+     *
+     * @param retention
+     * @param entries        All entries
+     * @param masterPassword Only used when there is no unlocked session.
+     * @throws Exception
+     */
+    public synchronized void setHistoryRetention(EntryHistory.Retention retention, Collection<Entry> entries,
+            Secret masterPassword) throws Exception {
+        EntryHistory.Retention previous = newRetention;
+        newRetention = retention;
+        try {
+            save(entries, masterPassword);
+        } catch (Exception e) {
+            newRetention = previous;
+            throw e;
+        }
+    }
+
+    /**
+     * Decrypts the sealed history and applies the changes made since.
+     *
+     * @return EntryHistory
+     * @throws Exception
+     */
+    private EntryHistory readHistory() throws Exception {
+        EntryHistory history;
+        if (sealedHistory == null) {
+            history = new EntryHistory(EntryHistory.Retention.DEFAULT, List.of());
+        } else {
+            byte[] iv = new byte[VaultFormat.IV_SIZE];
+            sealedHistory.get(0, iv);
+            Cipher cipher = Cipher.getInstance(ALGORITHM);
+            initCipher(cipher, Cipher.DECRYPT_MODE, session.key(), iv);
+            cipher.updateAAD(VaultFormat.HISTORY_AAD);
+            ByteBuffer ciphertext = sealedHistory.slice(iv.length, sealedHistory.remaining() - iv.length);
+            byte[] plain = new byte[cipher.getOutputSize(ciphertext.remaining())];
+            try {
+                int length = cipher.doFinal(ciphertext, ByteBuffer.wrap(plain));
+                history = VaultFormat.decodeHistory(plain, length);
+            } catch (AEADBadTagException e) {
+                throw new IOException("Vault history is corrupted", e);
+            } finally {
+                Arrays.fill(plain, (byte) 0);
+            }
+        }
+        for (EntryHistory.Version version : retired) {
+            history.add(new EntryHistory.Version(version.service(), version.username(), version.replaced(),
+                    version.password().copy()));
+        }
+        if (newRetention != null) {
+            history.setRetention(newRetention);
+        }
+        history.prune(Instant.now());
+        return history;
+    }
+
+    /**
+     * Keeps the password of a deleted entry for the next snapshot's history.
+     *
+     * @param mutation
+     */
+    private void retire(Journal.Mutation mutation) {
+        if (mutation.op() == Journal.Op.DELETE) {
+            Entry entry = mutation.entry();
+            retired.add(new EntryHistory.Version(entry.getService(), entry.getUsername(), mutation.time(),
+                    entry.openPassword()));
+        }
+    }
+
+    private void dropRetired(int keep) {
+        while (retired.size() > keep) {
+            retired.removeLast().password().destroy();
+        }
+    }
+
+    private void clearHistoryChanges() {
+        dropRetired(0);
+        newRetention = null;
+    }
+
+    /**
+     * Checks whether there is a session key cached.
+     *
+     * @return boolean
+     */
+    public synchronized boolean isUnlocked() {
+        return session != null && !session.isDestroyed();
+    }
+
+    /**
+     * Unwraps the data key again after it was wiped, so passwords can be read.
+     * Unwrapping checks the master password; for older formats the derived key
+     * is checked against the metadata before it's cached.
+     *
+     * @param masterPassword
+     * @throws Exception if the password is wrong or the vault wasn't loaded
+     */
+    public synchronized void unlock(Secret masterPassword) throws Exception {
+        ensureOpen();
+        if (isUnlocked()) {
+            return;
+        }
+        if (header == null) {
+            throw new IllegalStateException("Vault must be loaded before it can be unlocked");
+        }
+        holdFileLock();
+        try {
+            byte[] rawKey = vaultKey(masterPassword);
+            if (!header.hasKeySlots()) {
+                try {
+                    decryptMetadata(new SecretKeySpec(rawKey, "AES"));
+                } catch (Exception e) {
+                    Arrays.fill(rawKey, (byte) 0);
+                    throw e;
+                }
+            }
+            openSession(new VaultSession(rawKey));
+        } catch (Exception e) {
+            lock();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the key the vault file is encrypted with: the unwrapped data key,
+     * or for older formats the key derived from the master password.
+     *
+     * @param masterPassword
+     * @return byte[]
+     * @throws Exception AEADBadTagException if the password is wrong
+     */
+    private byte[] vaultKey(Secret masterPassword) throws Exception {
+        if (!header.hasKeySlots()) {
+            return derive(header.kdf(), masterPassword, header.salt());
+        }
+        return unwrapDataKey(masterPassword);
     }
 
     /**
-     * Writes the salt, IV, and encrypted entries to a file.
-     * 
+     * Runs the KDF on the master password, timing it.
+     *
+     * @param kdf
+     * @param masterPassword
      * @param salt
-     * @param iv
-     * @param cipher
-     * @param entries
+     * @return byte[]
      * @throws Exception
      */
-    private void writeToFile(byte[] salt, byte[] iv, Cipher cipher, List<Entry> entries) throws Exception {
-        try (FileOutputStream fos = new FileOutputStream(PATH);) {
-            // 4.1 Write salt & iv at the beginning
-            fos.write(salt);
-            fos.write(iv);
-            // 4.2 Write encrypted data
-            try (CipherOutputStream cos = new CipherOutputStream(fos, cipher)) {
-                ObjectOutputStream oos = new ObjectOutputStream(cos);
-                oos.writeObject(entries);
+    private static byte[] derive(Kdf kdf, Secret masterPassword, byte[] salt) throws Exception {
+        long start = System.nanoTime();
+        byte[] key = kdf.derive(masterPassword.chars(), salt);
+        KDF_TIMER.recordSince(start);
+        return key;
+    }
+
+    private static void initCipher(Cipher cipher, int mode, SecretKey key, byte[] iv) throws GeneralSecurityException {
+        long start = System.nanoTime();
+        cipher.init(mode, key, new GCMParameterSpec(TAG_BITS, iv));
+        CIPHER_INIT_TIMER.recordSince(start);
+    }
+
+    /**
+     * Unwraps the data key with the master password, trying the newest key slot
+     * first. Both slots are only in use while one replaces the other.
+     *
+     * @param masterPassword
+     * @return byte[]
+     * @throws Exception AEADBadTagException if no slot opens with the password
+     */
+    private byte[] unwrapDataKey(Secret masterPassword) throws Exception {
+        List<VaultFormat.KeySlot> slots = new ArrayList<>();
+        for (VaultFormat.KeySlot slot : keySlots) {
+            if (slot != null) {
+                slots.add(slot);
+            }
+        }
+        slots.sort(Comparator.comparingInt(VaultFormat.KeySlot::generation).reversed());
+        Exception failure = null;
+        for (VaultFormat.KeySlot slot : slots) {
+            byte[] wrappingKey = derive(slot.kdf(), masterPassword, slot.salt());
+            try {
+                Cipher cipher = Cipher.getInstance(ALGORITHM);
+                initCipher(cipher, Cipher.DECRYPT_MODE, new SecretKeySpec(wrappingKey, "AES"), slot.iv());
+                cipher.updateAAD(slot.aad());
+                return cipher.doFinal(slot.wrappedKey());
+            } catch (AEADBadTagException e) {
+                failure = e;
+            } finally {
+                Arrays.fill(wrappingKey, (byte) 0);
             }
         }
+        throw failure != null ? failure : new IOException("Vault file has no usable key slot");
     }
 
     /**
-     * Derives a SecretKey from a given password and salt using PBKDF2 with
-     * HMAC-SHA256.
-     * First, it creates a PBEKeySpec with the password, salt, iteration count, and
-     * key length.
-     * Then, it uses a SecretKeyFactory to generate the secret key. Finally, it
-     * converts the generated key into an AES SecretKeySpec.
-     * 
-     * @param password
+     * Wraps the data key with a key derived from the master password. Each
+     * wrapping key is only used once, under a new salt, so its IV is random.
+     *
+     * @param dataKey
+     * @param wrappingKey
+     * @param generation
+     * @param kdf         The wrapping key was derived with
      * @param salt
-     * @return SecretKey
+     * @return KeySlot
+     * @throws Exception
+     */
+    private VaultFormat.KeySlot wrapDataKey(byte[] dataKey, byte[] wrappingKey, int generation, Kdf kdf,
+            byte[] salt) throws Exception {
+        byte[] iv = generateRandom(VaultFormat.IV_SIZE);
+        VaultFormat.KeySlot unwrapped = new VaultFormat.KeySlot(generation, kdf, salt, iv, new byte[0]);
+        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        initCipher(cipher, Cipher.ENCRYPT_MODE, new SecretKeySpec(wrappingKey, "AES"), iv);
+        cipher.updateAAD(unwrapped.aad());
+        return new VaultFormat.KeySlot(generation, kdf, salt, iv, cipher.doFinal(dataKey));
+    }
+
+    /**
+     * Makes sure there is a session key, unlocking the vault file or, for a vault
+     * that was never saved, creating its data key.
+     *
+     * @param masterPassword
+     * @throws Exception
+     */
+    private void ensureUnlocked(Secret masterPassword) throws Exception {
+        ensureOpen();
+        if (isUnlocked()) {
+            return;
+        }
+        if (header != null) {
+            unlock(masterPassword);
+            return;
+        }
+        holdFileLock();
+        byte[] dataKey = generateRandom(VaultFormat.DATA_KEY_SIZE);
+        VaultFormat.KeySlot[] slots = new VaultFormat.KeySlot[VaultFormat.KEY_SLOTS];
+        try {
+            slots[0] = newKeySlot(dataKey, 1, kdf, masterPassword);
+        } catch (Exception e) {
+            lock();
+            throw e;
+        }
+        keySlots = slots;
+        openSession(new VaultSession(dataKey));
+    }
+
+    private VaultFormat.KeySlot newKeySlot(byte[] dataKey, int generation, Kdf kdf, Secret masterPassword)
+            throws Exception {
+        byte[] salt = generateRandom(SALT_SIZE);
+        byte[] wrappingKey = derive(kdf, masterPassword, salt);
+        try {
+            return wrapDataKey(dataKey, wrappingKey, generation, kdf, salt);
+        } finally {
+            Arrays.fill(wrappingKey, (byte) 0);
+        }
+    }
+
+    /**
+     * Wipes the session key and drops the mapped file. The vault has to be
+     * loaded again before it can be used, and entries read from it can no
+     * longer decrypt their passwords.
+     */
+    public synchronized void close() {
+        lock();
+        closed = true;
+        mapped = null;
+        sealedHistory = null;
+        clearHistoryChanges();
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Vault is closed, load it again to use it");
+        }
+    }
+
+    /**
+     * Wipes the cached session key. Passwords can't be read until the vault is
+     * unlocked again.
+     */
+    public synchronized void lock() {
+        endSession();
+        if (fileLock != null) {
+            fileLock.release();
+            fileLock = null;
+        }
+    }
+
+    private void endSession() {
+        if (idleCheck != null) {
+            idleCheck.cancel(false);
+            idleCheck = null;
+        }
+        if (session != null) {
+            session.destroy();
+            session = null;
+        }
+    }
+
+    /**
+     * Locks the vault file against other programs, see {@link VaultFileLock},
+     * unless this vault already holds it. It's released by {@link #lock()}.
+     *
+     * @throws IOException if another program has the vault open
+     */
+    private void holdFileLock() throws IOException {
+        if (fileLock == null) {
+            fileLock = VaultFileLock.acquire(file);
+        }
+    }
+
+    /**
+     * Replaces the current session and starts watching it for inactivity.
+     *
+     * @param newSession
+     * @throws IOException if another program has the vault open
+     */
+    private void openSession(VaultSession newSession) throws IOException {
+        endSession();
+        try {
+            holdFileLock();
+        } catch (IOException e) {
+            newSession.destroy();
+            throw e;
+        }
+        this.session = newSession;
+        scheduleIdleCheck(idleTimeout.toNanos());
+    }
+
+    /**
+     * Schedules a check that locks the vault once the session has been idle for
+     * the whole timeout. If it was used in the meantime, the check is scheduled
+     * again for the remaining time.
+     *
+     * @param delayNanos
+     */
+    private void scheduleIdleCheck(long delayNanos) {
+        idleCheck = IDLE_TIMER.schedule(() -> {
+            synchronized (this) {
+                if (!isUnlocked()) {
+                    return;
+                }
+                long remaining = idleTimeout.toNanos() - session.idleNanos();
+                if (remaining <= 0) {
+                    lock();
+                } else {
+                    scheduleIdleCheck(remaining);
+                }
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the KDF the vault key is derived with: the one in the vault file,
+     * or the one a new vault will use.
+     *
+     * @return Kdf
+     */
+    public synchronized Kdf kdf() {
+        return header != null ? header.kdf() : kdf;
+    }
+
+    /**
+     * Switches the vault to another KDF or other KDF parameters, see
+     * {@link #rewrap}.
+     *
+     * @param newKdf
+     * @param masterPassword
+     * @throws Exception if the master password is wrong or writing fails
+     */
+    public synchronized void changeKdf(Kdf newKdf, Secret masterPassword) throws Exception {
+        rewrap(masterPassword, newKdf, masterPassword);
+    }
+
+    /**
+     * Changes the master password, see {@link #rewrap}. The journal and the
+     * entries don't change, so pending changes and open entries keep working.
+     * Backups of earlier snapshots still open with the password they were
+     * saved with.
+     *
+     * @param currentPassword
+     * @param newPassword
+     * @throws Exception if the current password is wrong or writing fails
+     */
+    public synchronized void changeMasterPassword(Secret currentPassword, Secret newPassword) throws Exception {
+        rewrap(currentPassword, kdf(), newPassword);
+    }
+
+    /**
+     * Wraps the data key again for a new master password or KDF, without
+     * touching any entry: only the header's key slots are rewritten, in place.
+     * First, it unwraps the data key with the current password, even if the
+     * vault is unlocked.
+     * Then, it wraps it with a key derived from the new password, a new salt and
+     * the KDF, into the slot that isn't in use, and forces it to disk. Until
+     * then the old slot is untouched, and if the write is torn the new slot just
+     * fails to open.
+     * Finally, it empties the old slot, so only the new password opens the
+     * vault. A crash between the two writes leaves both passwords working.
+     *
+     * @param currentPassword
+     * @param newKdf
+     * @param newPassword
      * @throws Exception
      */
-    private SecretKey deriveKey(String password, byte[] salt) throws Exception {
-        // 1. Pass + Salt + 65536 iterations + 256 bits
-        int iterations = 65536;
-        int bits = 256;
-        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, bits);
+    private void rewrap(Secret currentPassword, Kdf newKdf, Secret newPassword) throws Exception {
+        ensureOpen();
+        if (header == null) {
+            // Not saved yet: the first save wraps the key with the new password
+            this.kdf = newKdf;
+            lock();
+            keySlots = null;
+            return;
+        }
+        if (!header.hasKeySlots()) {
+            throw new IllegalStateException("Vault is still in format version " + header.version()
+                    + ", load it again to migrate it first");
+        }
+        // 1. Check the current password
+        byte[] dataKey = unwrapDataKey(currentPassword);
+        int current = 0;
+        for (int i = 0; i < keySlots.length; i++) {
+            if (keySlots[i] != null && (keySlots[current] == null
+                    || keySlots[i].generation() > keySlots[current].generation())) {
+                current = i;
+            }
+        }
+        int next = (current + 1) % keySlots.length;
+        // 2. Write the new slot next to the current one
+        VaultFormat.KeySlot slot;
+        try {
+            slot = newKeySlot(dataKey, keySlots[current].generation() + 1, newKdf, newPassword);
+        } finally {
+            Arrays.fill(dataKey, (byte) 0);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            writeFully(channel, VaultFormat.encodeKeySlot(slot), VaultFormat.keySlotOffset(next));
+            channel.force(true);
+            // 3. Retire the old one
+            writeFully(channel, VaultFormat.encodeKeySlot(null), VaultFormat.keySlotOffset(current));
+            channel.force(true);
+        }
+        mapSnapshot();
+        System.out.println("\t-> Vault key wrapped again with " + newKdf);
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
 
-        // 2. Generate the key
-        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-        // 3. Create the secret key
-        SecretKey tmp = factory.generateSecret(spec);
-        // 4. Convert to AES key
-        return new SecretKeySpec(tmp.getEncoded(), "AES");
+    /**
+     * Returns how long each phase of the last save took.
+     *
+     * @return SaveTimings or null if this vault wasn't saved yet
+     */
+    public synchronized SaveTimings lastSave() {
+        return lastSave;
+    }
+
+    /**
+     * Maps the vault file read-only and reads its header. Only the pages that are
+     * actually read get loaded, and a mapping stays valid after the file is
+     * replaced, so entries read from it keep working.
+     *
+     * @throws IOException
+     */
+    private void mapSnapshot() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Vault file is too large to map");
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        header = VaultFormat.readHeader(mapped);
+        if (header.hasKeySlots()) {
+            keySlots = header.keySlots();
+        }
     }
 
     /**
      * Generates a random byte array of the specified length using SecureRandom, a
      * Java class that provides a cryptographically strong random number generator.
-     * 
+     *
      * @param length The length of the byte array to generate.
      * @return A byte array filled with random bytes.
      */
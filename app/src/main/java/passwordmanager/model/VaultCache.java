@@ -0,0 +1,436 @@
+package passwordmanager.model;
+
+import java.io.FileNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Named vaults kept open at the same time, such as one per team. Each name is
+ * a file in one directory: "default" is {@code vault.dat}, any other name is
+ * {@code <name>.vault}.
+ * <p>
+ * Open vaults stay unlocked, with their entries in memory, until they are
+ * closed or evicted. The cache holds them in least recently used order and,
+ * when the estimated memory of all open vaults goes over the budget, closes
+ * the ones used least recently: pending changes are written, the key is wiped
+ * and the entries are dropped. Vaults that weren't used for a while are closed
+ * the same way, budget or not, since each one keeps its master password to
+ * unlock itself again. The current vault is never evicted: the CLI needs it,
+ * and its key is still wiped after the vault's own idle timeout.
+ * <p>
+ * {@link #openAll} opens several vaults at once, one virtual thread each,
+ * since key derivation is the slow part of opening a vault. Methods are
+ * synchronized, so a shutdown hook can close the cache safely.
+ */
+public final class VaultCache implements AutoCloseable {
+    public static final String DEFAULT_NAME = "default";
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+    // Rough heap use of one entry: object, strings, and its place in the indexes
+    static final int ENTRY_BYTES = 512;
+    public static final Duration DEFAULT_CLOSE_AFTER = Duration.ofMinutes(30);
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    // Shared by every cache, only closes idle vaults
+    private static final ScheduledExecutorService IDLE_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "vault-cache-idle-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * An open vault with its entries and the writer that saves its changes.
+     */
+    public static final class OpenVault {
+        private final String name;
+        private final Vault vault;
+        private final EntryStore entries;
+        private final VaultWriter writer;
+        private volatile Secret masterPassword;
+        private long lastUsed; // System.nanoTime(), guarded by the cache
+
+        private OpenVault(String name, Vault vault, EntryStore entries, Secret masterPassword) {
+            this.name = name;
+            this.vault = vault;
+            this.entries = entries;
+            this.writer = new VaultWriter(vault);
+            this.masterPassword = masterPassword;
+            this.lastUsed = System.nanoTime();
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public Vault vault() {
+            return vault;
+        }
+
+        public EntryStore entries() {
+            return entries;
+        }
+
+        public VaultWriter writer() {
+            return writer;
+        }
+
+        public Secret masterPassword() {
+            return masterPassword;
+        }
+
+        /**
+         * Changes the vault's master password, see
+         * {@link Vault#changeMasterPassword}. Queued changes are written
+         * first, with the password they were made with.
+         *
+         * @param currentPassword
+         * @param newPassword     The vault keeps its own copy
+         * @throws Exception
+         */
+        public void changeMasterPassword(Secret currentPassword, Secret newPassword) throws Exception {
+            writer.flush();
+            vault.changeMasterPassword(currentPassword, newPassword);
+            Secret old = masterPassword;
+            masterPassword = newPassword.copy();
+            old.destroy();
+        }
+
+        long estimatedBytes() {
+            return (long) entries.size() * ENTRY_BYTES;
+        }
+
+        /**
+         * Writes pending changes, wipes the key, the master password and the
+         * plain passwords, and drops the entries.
+         */
+        private void close() {
+            writer.close();
+            vault.close();
+            masterPassword.destroy();
+            for (Entry entry : entries) {
+                entry.destroy();
+            }
+            entries.clear();
+        }
+    }
+
+    /**
+     * A vault to open and its master password. The cache keeps its own copy of
+     * the password, the caller can destroy this one once the vault is open.
+     *
+     * @param name
+     * @param masterPassword
+     */
+    public record Request(String name, Secret masterPassword) {
+    }
+
+    private final Path directory;
+    private final Duration idleTimeout;
+    private final long memoryBudget;
+    private final Duration closeAfter;
+    // Access order, least recently used first
+    private final LinkedHashMap<String, OpenVault> open = new LinkedHashMap<>(16, 0.75f, true);
+    private final ScheduledFuture<?> idleCheck;
+    private String current;
+
+    /**
+     * Closes vaults after {@link #DEFAULT_CLOSE_AFTER} without use.
+     *
+     * @param directory    Where the vault files are
+     * @param idleTimeout  After which an open vault wipes its key, see
+     *                     {@link Vault#Vault(Path, Duration)}
+     * @param memoryBudget Estimated bytes all open vaults may use together
+     */
+    public VaultCache(Path directory, Duration idleTimeout, long memoryBudget) {
+        this(directory, idleTimeout, memoryBudget, DEFAULT_CLOSE_AFTER);
+    }
+
+    /**
+     * @param directory    Where the vault files are
+     * @param idleTimeout  After which an open vault wipes its key, see
+     *                     {@link Vault#Vault(Path, Duration)}
+     * @param memoryBudget Estimated bytes all open vaults may use together
+     * @param closeAfter   After which a vault that wasn't used is closed. Must
+     *                     be positive.
+     */
+    public VaultCache(Path directory, Duration idleTimeout, long memoryBudget, Duration closeAfter) {
+        if (closeAfter.isZero() || closeAfter.isNegative()) {
+            throw new IllegalArgumentException("Close delay must be positive");
+        }
+        this.directory = directory;
+        this.idleTimeout = idleTimeout;
+        this.memoryBudget = memoryBudget;
+        this.closeAfter = closeAfter;
+        // Checked a few times per delay, so a vault stays open at most a quarter longer
+        long period = Math.max(1, closeAfter.toMillis() / 4);
+        this.idleCheck = IDLE_TIMER.scheduleWithFixedDelay(() -> closeIdle(System.nanoTime()), period, period,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checks that a name can be used as a file name.
+     *
+     * @param name
+     * @return boolean
+     */
+    public static boolean isValidName(String name) {
+        return NAME.matcher(name).matches();
+    }
+
+    /**
+     * Returns the file a vault is stored in.
+     *
+     * @param name
+     * @return Path
+     */
+    public Path fileFor(String name) {
+        if (!isValidName(name)) {
+            throw new IllegalArgumentException("Vault names may only use letters, digits, '-' and '_'");
+        }
+        return directory.resolve(name.equals(DEFAULT_NAME) ? "vault.dat" : name + ".vault");
+    }
+
+    /**
+     * Checks whether a vault file exists for the name.
+     *
+     * @param name
+     * @return boolean
+     */
+    public boolean exists(String name) {
+        return Files.exists(fileFor(name));
+    }
+
+    /**
+     * Opens vaults in parallel, one virtual thread each, and makes the last one
+     * that opened the current vault. Vaults without a file are created empty,
+     * and vaults that are already open are kept as they are. If collecting the
+     * results fails, the vaults that did open are closed again before it
+     * throws.
+     *
+     * @param requests
+     * @return Map<String, Exception> Vaults that couldn't be opened and why,
+     *         empty if all of them opened
+     * @throws InterruptedException
+     */
+    public synchronized Map<String, Exception> openAll(List<Request> requests) throws InterruptedException {
+        // 1. Load every vault on its own thread
+        Map<String, Future<OpenVault>> loading = new LinkedHashMap<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Request request : requests) {
+                if (!open.containsKey(request.name()) && !loading.containsKey(request.name())) {
+                    Path file = fileFor(request.name());
+                    loading.put(request.name(), executor.submit(() -> load(request, file)));
+                }
+            }
+        }
+        // 2. Add the ones that opened
+        Map<String, Exception> failures = new LinkedHashMap<>();
+        List<OpenVault> opened = new ArrayList<>();
+        try {
+            for (Map.Entry<String, Future<OpenVault>> result : loading.entrySet()) {
+                try {
+                    opened.add(result.getValue().get());
+                } catch (ExecutionException e) {
+                    failures.put(result.getKey(), e.getCause() instanceof Exception cause ? cause : e);
+                }
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            // None of the batch is added, so none may stay unlocked and hold its file
+            for (Future<OpenVault> future : loading.values()) {
+                if (future.state() == Future.State.SUCCESS) {
+                    future.resultNow().close();
+                }
+            }
+            throw e;
+        }
+        for (OpenVault vault : opened) {
+            open.put(vault.name(), vault);
+        }
+        for (Request request : requests) {
+            if (open.containsKey(request.name())) {
+                current = request.name();
+                open.get(request.name()).lastUsed = System.nanoTime();
+            }
+        }
+        // 3. Make room for them
+        evict();
+        return failures;
+    }
+
+    /**
+     * Opens a single vault, creating it if it has no file yet.
+     *
+     * @param name
+     * @param masterPassword
+     * @return OpenVault
+     * @throws Exception
+     */
+    public synchronized OpenVault open(String name, Secret masterPassword) throws Exception {
+        Exception failure = openAll(List.of(new Request(name, masterPassword))).get(name);
+        if (failure != null) {
+            throw failure;
+        }
+        return open.get(name);
+    }
+
+    private OpenVault load(Request request, Path file) throws Exception {
+        Vault vault = new Vault(file, idleTimeout);
+        EntryStore entries;
+        try {
+            entries = new EntryStore(vault.load(request.masterPassword()));
+        } catch (FileNotFoundException e) {
+            entries = new EntryStore();
+        }
+        return new OpenVault(request.name(), vault, entries, request.masterPassword().copy());
+    }
+
+    /**
+     * Checks whether a vault is open, without marking it as used or making it
+     * the current one.
+     *
+     * @param name
+     * @return boolean
+     */
+    public synchronized boolean contains(String name) {
+        return open.containsKey(name);
+    }
+
+    /**
+     * Returns the current vault, marking it as used.
+     *
+     * @return OpenVault or null if none is open
+     */
+    public synchronized OpenVault current() {
+        if (current == null) {
+            return null;
+        }
+        OpenVault vault = open.get(current);
+        vault.lastUsed = System.nanoTime();
+        return vault;
+    }
+
+    /**
+     * Makes an open vault the current one.
+     *
+     * @param name
+     * @return OpenVault or null if it isn't open
+     */
+    public synchronized OpenVault switchTo(String name) {
+        OpenVault vault = open.get(name);
+        if (vault != null) {
+            current = name;
+            vault.lastUsed = System.nanoTime();
+            evict();
+        }
+        return vault;
+    }
+
+    /**
+     * Closes an open vault, writing its pending changes first. Closing the
+     * current vault makes the most recently used remaining one current.
+     *
+     * @param name
+     * @return boolean false if it wasn't open
+     */
+    public synchronized boolean close(String name) {
+        OpenVault vault = open.remove(name);
+        if (vault == null) {
+            return false;
+        }
+        vault.close();
+        if (name.equals(current)) {
+            current = null;
+            for (String remaining : open.keySet()) {
+                current = remaining; // the last one is the most recently used
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the open vaults, least recently used first, without marking them
+     * as used.
+     *
+     * @return List<OpenVault>
+     */
+    public synchronized List<OpenVault> openVaults() {
+        return new ArrayList<>(open.values());
+    }
+
+    /**
+     * Estimated memory of all open vaults.
+     *
+     * @return long bytes
+     */
+    public synchronized long estimatedBytes() {
+        long total = 0;
+        for (OpenVault vault : open.values()) {
+            total += vault.estimatedBytes();
+        }
+        return total;
+    }
+
+    /**
+     * Closes least recently used vaults, other than the current one, until the
+     * open vaults fit in the memory budget.
+     */
+    private void evict() {
+        long total = estimatedBytes();
+        Iterator<OpenVault> eldest = open.values().iterator();
+        while (total > memoryBudget && eldest.hasNext()) {
+            OpenVault vault = eldest.next();
+            if (vault.name().equals(current)) {
+                continue;
+            }
+            eldest.remove();
+            total -= vault.estimatedBytes();
+            vault.close();
+            System.out.println("\t-> Closed vault " + vault.name() + " to stay within the memory budget");
+        }
+    }
+
+    /**
+     * Closes the vaults, other than the current one, that weren't used for the
+     * close delay.
+     *
+     * @param now System.nanoTime()
+     */
+    synchronized void closeIdle(long now) {
+        Iterator<OpenVault> vaults = open.values().iterator();
+        while (vaults.hasNext()) {
+            OpenVault vault = vaults.next();
+            if (!vault.name().equals(current) && now - vault.lastUsed >= closeAfter.toNanos()) {
+                vaults.remove();
+                vault.close();
+                System.out.println("\t-> Closed vault " + vault.name() + " after " + closeAfter.toMinutes()
+                        + " minutes without use");
+            }
+        }
+    }
+
+    /**
+     * Closes every open vault, writing their pending changes.
+     */
+    @Override
+    public synchronized void close() {
+        idleCheck.cancel(false);
+        for (OpenVault vault : open.values()) {
+            vault.close();
+        }
+        open.clear();
+        current = null;
+    }
+}
@@ -0,0 +1,89 @@
+package passwordmanager.model;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps other programs away from a vault while this one has it unlocked: an
+ * exclusive lock on a file next to the vault ({@code vault.dat.lock}), held
+ * for as long as a session is open. Two programs resuming from the same IV
+ * would encrypt different data under the same key and IV, and each would
+ * truncate and append the journal as it last saw it.
+ * <p>
+ * The operating system grants the lock to the whole program, so vaults opened
+ * more than once within it share one lock, released by the last of them.
+ */
+final class VaultFileLock {
+    private static final Map<Path, VaultFileLock> HELD = new HashMap<>();
+
+    private final Path path;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private int holders;
+
+    private VaultFileLock(Path path, FileChannel channel, FileLock lock) {
+        this.path = path;
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    /**
+     * Locks a vault file, without waiting.
+     *
+     * @param vaultFile
+     * @return VaultFileLock to release once the vault is locked
+     * @throws IOException if another program has the vault open
+     */
+    static VaultFileLock acquire(Path vaultFile) throws IOException {
+        Path path = vaultFile.resolveSibling(vaultFile.getFileName() + ".lock").toAbsolutePath().normalize();
+        synchronized (HELD) {
+            VaultFileLock held = HELD.get(path);
+            if (held == null) {
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock;
+                try {
+                    lock = channel.tryLock();
+                } catch (OverlappingFileLockException e) {
+                    // Locked by this program, but not through a vault
+                    lock = null;
+                } catch (IOException | RuntimeException e) {
+                    channel.close();
+                    throw e;
+                }
+                if (lock == null) {
+                    channel.close();
+                    throw new IOException("Vault " + vaultFile + " is already open in another program");
+                }
+                held = new VaultFileLock(path, channel, lock);
+                HELD.put(path, held);
+            }
+            held.holders++;
+            return held;
+        }
+    }
+
+    /**
+     * Gives up this holder's share of the lock, unlocking the file once no
+     * vault in this program holds it.
+     */
+    void release() {
+        synchronized (HELD) {
+            if (--holders > 0) {
+                return;
+            }
+            HELD.remove(path);
+            try {
+                lock.release();
+                channel.close();
+            } catch (IOException e) {
+                // Closing the channel releases the lock anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,833 @@
+package passwordmanager.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary layout of the vault file.
+ * <p>
+ * Version 5:
+ * <pre>
+ * header:   magic "PWMV" | version (u16) | IV (12 bytes) | metadata length (int)
+ *           | key slot A | key slot B
+ * metadata: one segment after another
+ * segment:  plain length (int) | IV (12 bytes) | AES-GCM ciphertext + tag
+ * secrets:  one sealed password after another, then the sealed history
+ * </pre>
+ * The metadata is sealed in segments of about {@value #SEGMENT_SIZE} bytes, so
+ * it can be decrypted and authenticated one segment at a time, in constant
+ * memory. A segment holds whole records, and is only larger than that for a
+ * record that doesn't fit in one. Each segment is authenticated with the
+ * header up to the key slots, its number (int) and a flag (u8) that is 1 only
+ * for the last one as associated data (see {@link #segmentAad}), so segments
+ * can't be reordered, dropped or cut off at the end, as in the STREAM
+ * construction of {@link SealedStream}. Every segment has its own IV from the
+ * vault's counter; the header IV is the last segment's, the highest used by
+ * the snapshot.
+ * Everything is encrypted with a random data key, which never changes. Each
+ * key slot holds the data key wrapped (AES-GCM) with a key derived from the
+ * master password, and takes {@value #KEY_SLOT_SIZE} bytes:
+ * <pre>
+ * key slot: generation (int) | KDF id (u8) | KDF parameters | salt length (u8)
+ *           | salt | IV (12 bytes) | wrapped key length (u8) | wrapped key
+ *           | zero padding
+ * </pre>
+ * Generation 0 marks an empty slot; the slot's fields up to its IV are the
+ * associated data of the wrapped key. Changing the master password or the KDF
+ * writes a new slot over the unused one and then empties the old one, in
+ * place, without touching anything else (see {@link Vault#changeKdf}). The KDF
+ * parameters depend on the KDF (see {@link Kdf}):
+ * <pre>
+ * 1 PBKDF2-HMAC-SHA256: iterations (int)
+ * 2 scrypt:             log2 N (u8) | r (u16) | p (u16)
+ * </pre>
+ * The decrypted metadata is an entry count (int) and where the history is
+ * (offset (long) and length (int), a length of 0 for none) followed by that
+ * many records, the count and history at the start of the first segment:
+ * <pre>
+ * record: length (int) | service | username | secret offset (long) | secret length (int)
+ * string: length (u16) | UTF-8 bytes
+ * </pre>
+ * The record length covers the fields after it, so newer fields appended to a
+ * record can be skipped by older readers. The secret offset is relative to the
+ * start of the secrets section. Each secret is an IV (12 bytes) followed by the
+ * AES-GCM ciphertext + tag of the UTF-8 password, with the service and username
+ * as associated data (see {@link #secretAad}), so listing entries never has to
+ * read or decrypt a password. All numbers are big-endian.
+ * <p>
+ * The history (see {@link EntryHistory}) holds the previous passwords of every
+ * entry. It's sealed like a secret, an IV followed by the AES-GCM ciphertext +
+ * tag, with {@link #HISTORY_AAD} as associated data, of the history compressed
+ * with Deflate:
+ * <pre>
+ * history: versions to keep (u16) | days to keep (int) | version count (int)
+ *          | one version after another, sorted by service, username and time
+ * version: service | username | replaced (long) | password
+ * field:   prefix (u16) | rest (string)
+ * </pre>
+ * Each string field only stores what differs from the same field of the
+ * version before it: the number of leading UTF-8 bytes they share, then the
+ * rest. Since versions of an entry follow each other, its service and username
+ * are only stored once and passwords that were edited rather than generated
+ * take a few bytes. The replaced time is in milliseconds since the epoch for
+ * the first version and relative to the version before it for the others. The
+ * history is only decrypted to show or change it, and copied sealed into the
+ * next snapshot otherwise, so it doesn't slow down loading or saving.
+ * <p>
+ * Version 4 had no history, and only an entry count in front of the records.
+ * Version 3 sealed the metadata in one piece, with the header up to the key
+ * slots as associated data. Version 2 had no key slots: the key derived from the master password
+ * encrypted everything directly, and the header held its KDF id, parameters
+ * and salt after the version, with the whole header as the metadata's
+ * associated data. Version 1 had no metadata length and kept the passwords inside the records
+ * of a single encrypted payload (service | username | password). Files written
+ * before version 1 (version 0) have no magic: they start with the 16 byte salt
+ * and 12 byte IV, followed by the Java serialized {@code List<Entry>}, always
+ * with 65,536 PBKDF2 iterations. Older versions are only read to migrate them.
+ */
+final class VaultFormat {
+    static final byte[] MAGIC = { 'P', 'W', 'M', 'V' };
+    static final int VERSION = 5;
+    static final int KDF_PBKDF2_SHA256 = 1;
+    static final int KDF_SCRYPT = 2;
+    static final int IV_SIZE = 12; // bytes for GCM
+    static final int DATA_KEY_SIZE = 32; // bytes, AES-256
+    static final int KEY_SLOTS = 2;
+    static final int KEY_SLOT_SIZE = 128; // bytes
+    static final int SEGMENT_SIZE = 64 * 1024; // plaintext bytes of a metadata segment
+    static final int TAG_SIZE = 16; // bytes for GCM
+    // Plain length and IV in front of each segment's ciphertext, tag after it
+    static final int SEGMENT_OVERHEAD = Integer.BYTES + IV_SIZE + TAG_SIZE;
+    // Header up to the key slots: magic, version, IV and metadata length
+    static final int FIXED_HEADER_SIZE = 4 + 2 + IV_SIZE + 4;
+    // Associated data of the sealed history, which no secret's can match
+    static final byte[] HISTORY_AAD = { 'h', 'i', 's', 't', 'o', 'r', 'y' };
+    private static final int MAX_SALT_SIZE = 32;
+    private static final int LEGACY_SALT_SIZE = 16;
+    private static final int LEGACY_ITERATIONS = 65536;
+    private static final int MAX_STRING = 0xFFFF;
+
+    /**
+     * Parameters stored in the clear at the start of the file.
+     *
+     * @param version        0 for legacy files
+     * @param kdf            Until version 2, the KDF of the vault key
+     * @param salt           Until version 2, the salt of the vault key
+     * @param iv
+     * @param length         Size of the header in bytes
+     * @param metadataLength Size of the sealed metadata, from version 2
+     * @param keySlots       From version 3, {@value #KEY_SLOTS} slots, null
+     *                       for empty or unreadable ones, otherwise null
+     */
+    record Header(int version, Kdf kdf, byte[] salt, byte[] iv, int length, int metadataLength,
+            KeySlot[] keySlots) {
+        boolean isLegacy() {
+            return version == 0;
+        }
+
+        boolean isCurrent() {
+            return version == VERSION;
+        }
+
+        /**
+         * Checks whether the file's key is a data key wrapped in key slots,
+         * which is the case from version 3.
+         *
+         * @return boolean
+         */
+        boolean hasKeySlots() {
+            return version >= 3;
+        }
+
+        /**
+         * Checks whether the metadata is sealed in segments, from version 4.
+         *
+         * @return boolean
+         */
+        boolean hasSegments() {
+            return version >= 4;
+        }
+
+        /**
+         * Checks whether the metadata says where the history is, from version
+         * 5.
+         *
+         * @return boolean
+         */
+        boolean hasHistory() {
+            return version >= 5;
+        }
+
+        /**
+         * Checks whether entries are listed in a metadata section, with their
+         * passwords sealed on their own, which is the case from version 2.
+         *
+         * @return boolean
+         */
+        boolean hasMetadata() {
+            return version >= 2;
+        }
+
+        /**
+         * Returns how many bytes at the start of the file the metadata
+         * authenticates. From version 3 the key slots are left out, so they can
+         * change without sealing the metadata again.
+         *
+         * @return int
+         */
+        int authenticatedLength() {
+            return hasKeySlots() ? FIXED_HEADER_SIZE : length;
+        }
+    }
+
+    /**
+     * The data key wrapped with a key derived from the master password.
+     *
+     * @param generation Raised with every change, the newest slot is tried first
+     * @param kdf
+     * @param salt
+     * @param iv
+     * @param wrappedKey AES-GCM ciphertext + tag of the data key
+     */
+    record KeySlot(int generation, Kdf kdf, byte[] salt, byte[] iv, byte[] wrappedKey) {
+        /**
+         * Returns the associated data the data key is wrapped with: the slot's
+         * fields up to its IV.
+         *
+         * @return byte[]
+         */
+        byte[] aad() {
+            ByteBuffer buffer = ByteBuffer.allocate(4 + kdfSize(kdf) + 1 + salt.length).putInt(generation);
+            putKdf(buffer, kdf);
+            return buffer.put((byte) salt.length).put(salt).array();
+        }
+    }
+
+    /**
+     * Decrypted metadata of one entry.
+     *
+     * @param service
+     * @param username
+     * @param secretOffset Relative to the start of the secrets section
+     * @param secretLength
+     */
+    record Metadata(String service, String username, long secretOffset, int secretLength) {
+    }
+
+    private VaultFormat() {
+    }
+
+    /**
+     * Builds the header for a vault written in the current format.
+     *
+     * @param iv
+     * @param metadataLength
+     * @param keySlots       {@value #KEY_SLOTS} slots, null for empty ones
+     * @return byte[]
+     */
+    static byte[] encodeHeader(byte[] iv, int metadataLength, KeySlot[] keySlots) {
+        ByteBuffer buffer = ByteBuffer.allocate(FIXED_HEADER_SIZE + KEY_SLOTS * KEY_SLOT_SIZE);
+        buffer.put(MAGIC).putShort((short) VERSION).put(iv).putInt(metadataLength);
+        for (KeySlot slot : keySlots) {
+            buffer.put(encodeKeySlot(slot));
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Encodes a key slot, padded to {@value #KEY_SLOT_SIZE} bytes.
+     *
+     * @param slot Null for an empty slot, all zeros
+     * @return byte[]
+     */
+    static byte[] encodeKeySlot(KeySlot slot) {
+        ByteBuffer buffer = ByteBuffer.allocate(KEY_SLOT_SIZE);
+        if (slot != null) {
+            buffer.put(slot.aad()).put(slot.iv()).put((byte) slot.wrappedKey().length).put(slot.wrappedKey());
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Returns where a key slot starts in the file.
+     *
+     * @param index
+     * @return long
+     */
+    static long keySlotOffset(int index) {
+        return FIXED_HEADER_SIZE + (long) index * KEY_SLOT_SIZE;
+    }
+
+    private static int kdfSize(Kdf kdf) {
+        return 1 + switch (kdf) {
+            case Kdf.Pbkdf2 pbkdf2 -> 4;
+            case Kdf.Scrypt scrypt -> 1 + 2 + 2;
+        };
+    }
+
+    private static void putKdf(ByteBuffer buffer, Kdf kdf) {
+        switch (kdf) {
+            case Kdf.Pbkdf2 pbkdf2 -> buffer.put((byte) KDF_PBKDF2_SHA256).putInt(pbkdf2.iterations());
+            case Kdf.Scrypt scrypt -> buffer.put((byte) KDF_SCRYPT)
+                    .put((byte) scrypt.logN())
+                    .putShort((short) scrypt.r())
+                    .putShort((short) scrypt.p());
+        }
+    }
+
+    /**
+     * Reads the header at the start of the file, telling apart files in the
+     * current format from legacy ones by their magic.
+     *
+     * @param file The whole file, from position 0
+     * @return Header
+     * @throws IOException
+     */
+    static Header readHeader(ByteBuffer file) throws IOException {
+        try {
+            ByteBuffer buffer = file.duplicate();
+            if (!hasMagic(buffer)) {
+                byte[] salt = new byte[LEGACY_SALT_SIZE];
+                byte[] iv = new byte[IV_SIZE];
+                buffer.get(salt).get(iv);
+                return new Header(0, new Kdf.Pbkdf2(LEGACY_ITERATIONS), salt, iv, buffer.position(), -1, null);
+            }
+            buffer.position(MAGIC.length);
+            int version = Short.toUnsignedInt(buffer.getShort());
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported vault format version " + version);
+            }
+            if (version >= 3) {
+                return readKeySlotHeader(version, buffer);
+            }
+            Kdf kdf = readKdf(buffer);
+            byte[] salt = new byte[Byte.toUnsignedInt(buffer.get())];
+            byte[] iv = new byte[IV_SIZE];
+            buffer.get(salt).get(iv);
+            int metadataLength = version >= 2 ? buffer.getInt() : -1;
+            if (metadataLength < -1 || metadataLength > buffer.remaining()) {
+                throw new IOException("Invalid metadata length " + metadataLength);
+            }
+            return new Header(version, kdf, salt, iv, buffer.position(), metadataLength, null);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Vault file is corrupted or incomplete", e);
+        }
+    }
+
+    /**
+     * Reads the rest of a version 3 or 4 header. A slot that can't be parsed,
+     * such as one torn by a crash while it was written, counts as empty, as
+     * long as the other one is intact.
+     *
+     * @param version
+     * @param buffer  Positioned after the version
+     * @return Header
+     * @throws IOException
+     */
+    private static Header readKeySlotHeader(int version, ByteBuffer buffer) throws IOException {
+        byte[] iv = new byte[IV_SIZE];
+        buffer.get(iv);
+        int metadataLength = buffer.getInt();
+        KeySlot[] keySlots = new KeySlot[KEY_SLOTS];
+        KeySlot newest = null;
+        for (int i = 0; i < KEY_SLOTS; i++) {
+            ByteBuffer slot = buffer.slice(buffer.position(), KEY_SLOT_SIZE);
+            buffer.position(buffer.position() + KEY_SLOT_SIZE);
+            try {
+                keySlots[i] = readKeySlot(slot);
+            } catch (IOException | BufferUnderflowException e) {
+                keySlots[i] = null;
+            }
+            if (keySlots[i] != null && (newest == null || keySlots[i].generation() > newest.generation())) {
+                newest = keySlots[i];
+            }
+        }
+        if (newest == null) {
+            throw new IOException("Vault file has no usable key slot");
+        }
+        if (metadataLength < 0 || metadataLength > buffer.remaining()) {
+            throw new IOException("Invalid metadata length " + metadataLength);
+        }
+        return new Header(version, newest.kdf(), newest.salt(), iv, buffer.position(), metadataLength, keySlots);
+    }
+
+    private static KeySlot readKeySlot(ByteBuffer buffer) throws IOException {
+        int generation = buffer.getInt();
+        if (generation == 0) {
+            return null;
+        }
+        Kdf kdf = readKdf(buffer);
+        int saltLength = Byte.toUnsignedInt(buffer.get());
+        if (saltLength > MAX_SALT_SIZE) {
+            throw new IOException("Invalid salt length " + saltLength);
+        }
+        byte[] salt = new byte[saltLength];
+        byte[] iv = new byte[IV_SIZE];
+        buffer.get(salt).get(iv);
+        byte[] wrappedKey = new byte[Byte.toUnsignedInt(buffer.get())];
+        buffer.get(wrappedKey);
+        return new KeySlot(generation, kdf, salt, iv, wrappedKey);
+    }
+
+    /**
+     * Reads the KDF id and parameters. They come from the file, so parameters
+     * outside the allowed ranges (which could make loading take forever or run
+     * out of memory) are rejected.
+     *
+     * @param buffer
+     * @return Kdf
+     * @throws IOException
+     */
+    private static Kdf readKdf(ByteBuffer buffer) throws IOException {
+        int id = Byte.toUnsignedInt(buffer.get());
+        try {
+            return switch (id) {
+                case KDF_PBKDF2_SHA256 -> new Kdf.Pbkdf2(buffer.getInt());
+                case KDF_SCRYPT -> new Kdf.Scrypt(Byte.toUnsignedInt(buffer.get()),
+                        Short.toUnsignedInt(buffer.getShort()), Short.toUnsignedInt(buffer.getShort()));
+                default -> throw new IOException("Unsupported key derivation function " + id);
+            };
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid key derivation parameters: " + e.getMessage(), e);
+        }
+    }
+
+    private static boolean hasMagic(ByteBuffer buffer) {
+        if (buffer.remaining() < MAGIC.length) {
+            return false;
+        }
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(0, magic);
+        return Arrays.equals(magic, MAGIC);
+    }
+
+    /**
+     * Decodes the payload of a version 1 file.
+     *
+     * @param buffer
+     * @return List<Entry>
+     * @throws IOException
+     */
+    static List<Entry> decodeEntries(ByteBuffer buffer) throws IOException {
+        try {
+            int count = buffer.getInt();
+            if (count < 0) {
+                throw new IOException("Invalid entry count " + count);
+            }
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                entries.add(readEntry(buffer));
+            }
+            return entries;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Vault payload is truncated", e);
+        }
+    }
+
+    /**
+     * Decodes the payload of a legacy file, a Java serialized list.
+     *
+     * @param plain
+     * @return List<Entry>
+     * @throws Exception
+     */
+    static List<Entry> decodeLegacyEntries(byte[] plain) throws Exception {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(plain))) {
+            @SuppressWarnings("unchecked")
+            List<Entry> entries = (List<Entry>) ois.readObject();
+            return new ArrayList<>(entries);
+        }
+    }
+
+    /**
+     * Returns the number of bytes {@link #writeMetadata} uses for the entry.
+     *
+     * @param entry
+     * @return int
+     */
+    static int metadataSize(Entry entry) {
+        return Integer.BYTES + stringSize(entry.getService()) + stringSize(entry.getUsername())
+                + Long.BYTES + Integer.BYTES;
+    }
+
+    /**
+     * Writes the metadata record of an entry.
+     *
+     * @param buffer
+     * @param entry
+     * @param secretOffset
+     * @param secretLength
+     */
+    static void writeMetadata(ByteBuffer buffer, Entry entry, long secretOffset, int secretLength) {
+        int start = buffer.position();
+        buffer.putInt(0);
+        writeString(buffer, entry.getService());
+        writeString(buffer, entry.getUsername());
+        buffer.putLong(secretOffset).putInt(secretLength);
+        buffer.putInt(start, buffer.position() - start - Integer.BYTES);
+    }
+
+    /**
+     * Reads the metadata record of an entry, skipping any fields it doesn't know
+     * about.
+     *
+     * @param buffer
+     * @return Metadata
+     * @throws IOException
+     */
+    static Metadata readMetadata(ByteBuffer buffer) throws IOException {
+        try {
+            int end = recordEnd(buffer);
+            Metadata metadata = new Metadata(readString(buffer), readString(buffer), buffer.getLong(), buffer.getInt());
+            checkRecordEnd(buffer, end);
+            return metadata;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Vault metadata is truncated", e);
+        }
+    }
+
+    /**
+     * Encodes and compresses a history, see the class description.
+     *
+     * @param history
+     * @return byte[] to seal, the caller should wipe it
+     */
+    static byte[] encodeHistory(EntryHistory history) {
+        List<EntryHistory.Version> versions = history.versions();
+        // 1. Encode, each field against the version before
+        int size = 2 + Integer.BYTES + Integer.BYTES;
+        for (EntryHistory.Version version : versions) {
+            // A char takes at most 3 UTF-8 bytes, a surrogate pair 4 for 2 chars
+            size += 3 * (2 + 2) + utf8Length(version.service()) + utf8Length(version.username()) + Long.BYTES
+                    + 3 * version.password().length();
+        }
+        ByteBuffer plain = ByteBuffer.allocate(size);
+        plain.putShort((short) history.retention().maxVersions())
+                .putInt((int) history.retention().maxAge().toDays())
+                .putInt(versions.size());
+        byte[] service = new byte[0];
+        byte[] username = new byte[0];
+        byte[] password = new byte[0];
+        long replaced = 0;
+        for (EntryHistory.Version version : versions) {
+            service = writeField(plain, service, version.service().getBytes(StandardCharsets.UTF_8));
+            username = writeField(plain, username, version.username().getBytes(StandardCharsets.UTF_8));
+            long time = version.replaced().toEpochMilli();
+            plain.putLong(time - replaced);
+            replaced = time;
+            byte[] previous = password;
+            password = writeField(plain, previous, version.password().toUtf8());
+            Arrays.fill(previous, (byte) 0);
+        }
+        Arrays.fill(password, (byte) 0);
+        // 2. Compress, into a buffer that is wiped when it grows
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        byte[] compressed = new byte[Math.max(1024, plain.position() / 2)];
+        int length = 0;
+        try {
+            deflater.setInput(plain.flip());
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (length == compressed.length) {
+                    compressed = grow(compressed);
+                }
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            byte[] result = Arrays.copyOf(compressed, length);
+            Arrays.fill(compressed, (byte) 0);
+            return result;
+        } finally {
+            deflater.end();
+            Arrays.fill(plain.array(), (byte) 0);
+        }
+    }
+
+    /**
+     * Decompresses and decodes a history written by {@link #encodeHistory}.
+     *
+     * @param compressed
+     * @param length     Of the compressed history, at the start of the array
+     * @return EntryHistory
+     * @throws IOException
+     */
+    static EntryHistory decodeHistory(byte[] compressed, int length) throws IOException {
+        // 1. Decompress
+        Inflater inflater = new Inflater();
+        byte[] plain = new byte[Math.max(1024, length * 4)];
+        int size = 0;
+        try {
+            inflater.setInput(compressed, 0, length);
+            while (!inflater.finished()) {
+                if (size == plain.length) {
+                    plain = grow(plain);
+                }
+                int inflated = inflater.inflate(plain, size, plain.length - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Vault history is truncated");
+                }
+                size += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Vault history is corrupted", e);
+        } finally {
+            inflater.end();
+        }
+        // 2. Decode
+        ByteBuffer buffer = ByteBuffer.wrap(plain, 0, size);
+        byte[] service = new byte[0];
+        byte[] username = new byte[0];
+        byte[] password = new byte[0];
+        try {
+            EntryHistory.Retention retention = new EntryHistory.Retention(Short.toUnsignedInt(buffer.getShort()),
+                    Duration.ofDays(buffer.getInt()));
+            int count = buffer.getInt();
+            if (count < 0) {
+                throw new IOException("Invalid history version count " + count);
+            }
+            List<EntryHistory.Version> versions = new ArrayList<>(Math.min(count, size));
+            long replaced = 0;
+            for (int i = 0; i < count; i++) {
+                service = readField(buffer, service);
+                username = readField(buffer, username);
+                replaced += buffer.getLong();
+                byte[] previous = password;
+                password = readField(buffer, previous);
+                Arrays.fill(previous, (byte) 0);
+                versions.add(new EntryHistory.Version(new String(service, StandardCharsets.UTF_8),
+                        new String(username, StandardCharsets.UTF_8), Instant.ofEpochMilli(replaced),
+                        Secret.decode(password, 0, password.length)));
+            }
+            return new EntryHistory(retention, versions);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Vault history is truncated or invalid", e);
+        } finally {
+            Arrays.fill(password, (byte) 0);
+            Arrays.fill(plain, (byte) 0);
+        }
+    }
+
+    /**
+     * Writes a field as the bytes it shares with the previous value of the
+     * field and the rest.
+     *
+     * @param buffer
+     * @param previous
+     * @param value
+     * @return byte[] the value, to compare the next one with
+     */
+    private static byte[] writeField(ByteBuffer buffer, byte[] previous, byte[] value) {
+        int shared = Arrays.mismatch(previous, value);
+        if (shared < 0) {
+            shared = value.length;
+        }
+        shared = Math.min(shared, MAX_STRING);
+        if (value.length - shared > MAX_STRING) {
+            throw new IllegalArgumentException("Field is too long to store (" + value.length + " bytes)");
+        }
+        buffer.putShort((short) shared).putShort((short) (value.length - shared)).put(value, shared,
+                value.length - shared);
+        return value;
+    }
+
+    private static byte[] readField(ByteBuffer buffer, byte[] previous) throws IOException {
+        int shared = Short.toUnsignedInt(buffer.getShort());
+        int rest = Short.toUnsignedInt(buffer.getShort());
+        if (shared > previous.length || rest > buffer.remaining()) {
+            throw new IOException("Invalid history field");
+        }
+        byte[] value = Arrays.copyOf(previous, shared + rest);
+        buffer.get(value, shared, rest);
+        return value;
+    }
+
+    /**
+     * Doubles a buffer's size, wiping the old one.
+     *
+     * @param bytes
+     * @return byte[]
+     */
+    private static byte[] grow(byte[] bytes) {
+        byte[] larger = Arrays.copyOf(bytes, bytes.length * 2);
+        Arrays.fill(bytes, (byte) 0);
+        return larger;
+    }
+
+    /**
+     * Returns the associated data of a metadata segment: the header up to the
+     * key slots, the segment's number and whether it's the last one.
+     *
+     * @param header  The start of the file, at least up to the key slots
+     * @param segment
+     * @param last
+     * @return byte[]
+     */
+    static byte[] segmentAad(ByteBuffer header, int segment, boolean last) {
+        return ByteBuffer.allocate(FIXED_HEADER_SIZE + Integer.BYTES + 1)
+                .put(header.slice(0, FIXED_HEADER_SIZE))
+                .putInt(segment)
+                .put((byte) (last ? 1 : 0))
+                .array();
+    }
+
+    /**
+     * Returns the associated data a secret is sealed with, which ties it to its
+     * entry.
+     *
+     * @param service
+     * @param username
+     * @return byte[]
+     */
+    static byte[] secretAad(String service, String username) {
+        byte[] s = service.getBytes(StandardCharsets.UTF_8);
+        byte[] u = username.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(4 + s.length + u.length).putShort((short) s.length).put(s)
+                .putShort((short) u.length).put(u).array();
+    }
+
+    /**
+     * Returns the number of bytes {@link #writeEntry} uses for the entry.
+     *
+     * @param entry
+     * @return int
+     */
+    static int encodedSize(Entry entry) {
+        try (Secret password = entry.openPassword()) {
+            return Integer.BYTES + stringSize(entry.getService()) + stringSize(entry.getUsername())
+                    + stringSize(CharBuffer.wrap(password.chars()));
+        }
+    }
+
+    /**
+     * Writes a single length-prefixed entry record.
+     *
+     * @param buffer
+     * @param entry
+     */
+    static void writeEntry(ByteBuffer buffer, Entry entry) {
+        int start = buffer.position();
+        buffer.putInt(0);
+        writeString(buffer, entry.getService());
+        writeString(buffer, entry.getUsername());
+        byte[] password = passwordBytes(entry);
+        try {
+            writeBytes(buffer, password);
+        } finally {
+            Arrays.fill(password, (byte) 0);
+        }
+        buffer.putInt(start, buffer.position() - start - Integer.BYTES);
+    }
+
+    private static byte[] passwordBytes(Entry entry) {
+        try (Secret password = entry.openPassword()) {
+            return password.toUtf8();
+        }
+    }
+
+    /**
+     * Reads a single entry record, skipping any fields it doesn't know about.
+     *
+     * @param buffer
+     * @return Entry
+     * @throws IOException
+     */
+    static Entry readEntry(ByteBuffer buffer) throws IOException {
+        int end = recordEnd(buffer);
+        Entry entry = new Entry(readString(buffer), readString(buffer), readSecret(buffer));
+        checkRecordEnd(buffer, end);
+        return entry;
+    }
+
+    private static int recordEnd(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Invalid entry record length " + length);
+        }
+        return buffer.position() + length;
+    }
+
+    private static void checkRecordEnd(ByteBuffer buffer, int end) throws IOException {
+        if (buffer.position() > end) {
+            throw new IOException("Entry record overruns its length");
+        }
+        buffer.position(end);
+    }
+
+    private static int stringSize(CharSequence value) {
+        return 2 + utf8Length(value);
+    }
+
+    private static void writeString(ByteBuffer buffer, String value) {
+        writeBytes(buffer, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes.length > MAX_STRING) {
+            throw new IllegalArgumentException("Field is too long to store (" + bytes.length + " bytes)");
+        }
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a string field straight into a secret, wiping the bytes after.
+     *
+     * @param buffer
+     * @return Secret
+     */
+    private static Secret readSecret(ByteBuffer buffer) {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        try {
+            return Secret.decode(bytes, 0, length);
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    private static int utf8Length(CharSequence value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++; // unpaired, encoded as '?'
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,112 @@
+package passwordmanager.model;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import javax.security.auth.Destroyable;
+
+/**
+ * Unlock handle for an opened vault. It keeps the vault's data key in memory so
+ * that saves during the same session don't have to run the KDF again.
+ * The handle also hands out the GCM IVs used with that key. IVs follow the
+ * deterministic construction from NIST SP 800-38D: a 4 byte fixed field
+ * followed by an 8 byte invocation counter, so no IV is ever repeated under the
+ * same key.
+ * <p>
+ * Every session draws a new fixed field, also when it opens a key that was
+ * already used, instead of continuing the counter found in the file: a backup
+ * or another copy of the file holds the same key with an older counter, and
+ * continuing from there would repeat IVs used in the newer file.
+ */
+public class VaultSession implements Destroyable {
+    static final int FIXED_FIELD_SIZE = 4; // bytes
+    static final int COUNTER_SIZE = 8; // bytes
+
+    private final byte[] key;
+    private final byte[] fixedField;
+    private long counter;
+    private long lastUsed;
+    private boolean destroyed;
+
+    /**
+     * Creates a session for a new key, or one read from the vault file. The
+     * fixed field of the IV is random and the counter starts at zero.
+     *
+     * @param key
+     */
+    VaultSession(byte[] key) {
+        this.key = key;
+        this.fixedField = randomFixedField();
+        this.lastUsed = System.nanoTime();
+    }
+
+    /**
+     * Returns the cached key as an AES SecretKey.
+     *
+     * @return SecretKey
+     */
+    synchronized SecretKey key() {
+        ensureAlive();
+        touch();
+        return new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * Issues the next IV for this key. Throws once the counter space is used up,
+     * which forces the caller to derive a new key instead of wrapping around.
+     *
+     * @return byte[]
+     */
+    synchronized byte[] nextIv() {
+        ensureAlive();
+        if (counter == -1L) {
+            throw new IllegalStateException("IV space exhausted for this key");
+        }
+        touch();
+        return ByteBuffer.allocate(FIXED_FIELD_SIZE + COUNTER_SIZE)
+                .put(fixedField)
+                .putLong(counter++)
+                .array();
+    }
+
+    /**
+     * Returns how long the session has gone without being used, in nanoseconds.
+     *
+     * @return long
+     */
+    synchronized long idleNanos() {
+        return System.nanoTime() - lastUsed;
+    }
+
+    private void touch() {
+        lastUsed = System.nanoTime();
+    }
+
+    private void ensureAlive() {
+        if (destroyed) {
+            throw new IllegalStateException("Vault session is locked");
+        }
+    }
+
+    /**
+     * Zeroes the cached key. The session can't be used afterwards.
+     */
+    @Override
+    public synchronized void destroy() {
+        Arrays.fill(key, (byte) 0);
+        destroyed = true;
+    }
+
+    @Override
+    public synchronized boolean isDestroyed() {
+        return destroyed;
+    }
+
+    private static byte[] randomFixedField() {
+        byte[] bytes = new byte[FIXED_FIELD_SIZE];
+        new SecureRandom().nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,214 @@
+package passwordmanager.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Commits changes to a {@link Vault} on a background thread, so the caller
+ * doesn't wait for key derivation, encryption or the disk.
+ * <p>
+ * Changes are queued and committed in order by a single thread. Everything
+ * queued while a commit is running goes into the next one, so a burst of
+ * changes costs one journal write (or one save) instead of one each. Every
+ * change returns a future that fails if its commit failed, so the caller can
+ * undo it in memory. {@link #close()} waits for every queued change, so it
+ * must run before the program exits.
+ */
+public class VaultWriter implements AutoCloseable {
+    private record Pending(List<Journal.Mutation> mutations, Collection<Entry> entries, Secret masterPassword,
+            CompletableFuture<Void> done) {
+    }
+
+    private final Vault vault;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "vault-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private List<Pending> queue = new ArrayList<>();
+    private boolean scheduled; // a commit is waiting to run and will take the queue
+    private boolean closed;
+    private int commits;
+    // Changes whose commit failed, until no snapshot holds them any more. Only
+    // used by the writer thread.
+    private final List<Journal.Mutation> failed = new ArrayList<>();
+
+    public VaultWriter(Vault vault) {
+        this.vault = vault;
+    }
+
+    /**
+     * Queues a new entry, see {@link Vault#add}.
+     *
+     * @param entry
+     * @param entries        All entries, including the new one. Copied right away,
+     *                       so the caller can keep changing it.
+     * @param masterPassword
+     * @return CompletableFuture<Void> completed once the entry is on disk
+     */
+    public CompletableFuture<Void> add(Entry entry, Collection<Entry> entries, Secret masterPassword) {
+        return submit(List.of(new Journal.Mutation(Journal.Op.ADD, entry)), entries, masterPassword);
+    }
+
+    /**
+     * Queues the removal of an entry, see {@link Vault#delete}.
+     *
+     * @param entry
+     * @param entries        All entries, without the removed one. Copied right
+     *                       away.
+     * @param masterPassword
+     * @return CompletableFuture<Void> completed once the removal is on disk
+     */
+    public CompletableFuture<Void> delete(Entry entry, Collection<Entry> entries, Secret masterPassword) {
+        return submit(List.of(new Journal.Mutation(Journal.Op.DELETE, entry)), entries, masterPassword);
+    }
+
+    private synchronized CompletableFuture<Void> submit(List<Journal.Mutation> mutations, Collection<Entry> entries,
+            Secret masterPassword) {
+        if (closed) {
+            throw new IllegalStateException("Vault writer is closed");
+        }
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        queue.add(new Pending(mutations, List.copyOf(entries), masterPassword, done));
+        if (!scheduled) {
+            scheduled = true;
+            executor.execute(this::drain);
+        }
+        return done;
+    }
+
+    /**
+     * Commits everything queued so far as one batch.
+     * First, it takes the whole queue, so later changes start a new batch.
+     * Then, it commits the changes in order, with the entries and password of
+     * the latest change, which already include the earlier ones, but not the
+     * changes of failed commits (see {@link #withoutFailed}).
+     * Finally, it completes every future of the batch, or fails them all.
+     */
+    private void drain() {
+        // 1. Take the batch
+        List<Pending> batch;
+        synchronized (this) {
+            batch = queue;
+            queue = new ArrayList<>();
+            scheduled = false;
+            commits++;
+        }
+        // 2. Commit it
+        List<Journal.Mutation> mutations = new ArrayList<>();
+        for (Pending pending : batch) {
+            mutations.addAll(pending.mutations());
+        }
+        Pending latest = batch.get(batch.size() - 1);
+        try {
+            vault.commit(mutations, withoutFailed(latest.entries(), mutations), latest.masterPassword());
+        } catch (Throwable e) {
+            // 3. Report the failure to every change of the batch
+            failed.addAll(mutations);
+            for (Pending pending : batch) {
+                pending.done().completeExceptionally(e);
+            }
+            return;
+        }
+        for (Pending pending : batch) {
+            pending.done().complete(null);
+        }
+    }
+
+    /**
+     * Takes the changes of failed commits back out of a snapshot. The caller
+     * undoes a failed change in memory, but snapshots queued before it did still
+     * hold it, and saving one would write the change after all.
+     * A failed change is forgotten once a snapshot no longer holds it, or once a
+     * newer change is made to the same entry.
+     *
+     * @param snapshot
+     * @param mutations Changes of the batch being committed
+     * @return Collection<Entry>
+     */
+    private Collection<Entry> withoutFailed(Collection<Entry> snapshot, List<Journal.Mutation> mutations) {
+        if (failed.isEmpty()) {
+            return snapshot;
+        }
+        // Entries are compared by identity, the caller undoes a change with the same object
+        Set<Entry> present = Collections.newSetFromMap(new IdentityHashMap<>());
+        present.addAll(snapshot);
+        Set<Entry> changed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Journal.Mutation mutation : mutations) {
+            changed.add(mutation.entry());
+        }
+        List<Entry> entries = new ArrayList<>(snapshot);
+        for (Iterator<Journal.Mutation> it = failed.iterator(); it.hasNext();) {
+            Journal.Mutation mutation = it.next();
+            Entry entry = mutation.entry();
+            boolean added = mutation.op() == Journal.Op.ADD;
+            if (changed.contains(entry) || present.contains(entry) != added) {
+                // Undone by the caller, or changed again since
+                it.remove();
+            } else if (added) {
+                entries.removeIf(e -> e == entry);
+            } else {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Waits until every change queued so far was committed or failed.
+     *
+     * @throws InterruptedException
+     */
+    public void flush() throws InterruptedException {
+        try {
+            // Commits run in order, so this runs after every one already queued
+            executor.submit(() -> {
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Refuses new changes, waits for the queued ones and stops the thread.
+     * Calling it again does nothing.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        executor.shutdown();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+                System.out.println("\t-> Still saving changes to disk...");
+            } catch (InterruptedException e) {
+                interrupted = true; // the queued changes must still reach the disk
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    synchronized int commits() {
+        return commits;
+    }
+}
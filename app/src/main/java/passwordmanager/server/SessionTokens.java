@@ -0,0 +1,90 @@
+package passwordmanager.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bearer tokens handed out to API clients once they prove they know the master
+ * password. A token stays valid until it's revoked or goes unused for the idle
+ * timeout.
+ * <p>
+ * Only a SHA-256 hash of each token is kept, so the tokens themselves can't be
+ * read back from memory, and looking one up doesn't compare secrets byte by
+ * byte.
+ */
+class SessionTokens {
+    private static final int TOKEN_BYTES = 32;
+
+    private final SecureRandom random = new SecureRandom();
+    private final Duration idleTimeout;
+    // Token hash to the time it was last used, in nanoseconds
+    private final ConcurrentHashMap<String, Long> sessions = new ConcurrentHashMap<>();
+
+    SessionTokens(Duration idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Creates a new token.
+     *
+     * @return String URL safe, without padding
+     */
+    String issue() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(hash(token), System.nanoTime());
+        removeExpired();
+        return token;
+    }
+
+    /**
+     * Checks a token and marks it as used.
+     *
+     * @param token
+     * @return boolean false if it's unknown, revoked or expired
+     */
+    boolean check(String token) {
+        if (token == null) {
+            return false;
+        }
+        long now = System.nanoTime();
+        Long touched = sessions.computeIfPresent(hash(token),
+                (key, lastUsed) -> now - lastUsed > idleTimeout.toNanos() ? null : now);
+        return touched != null;
+    }
+
+    /**
+     * Ends a session.
+     *
+     * @param token
+     * @return boolean false if it wasn't valid
+     */
+    boolean revoke(String token) {
+        return token != null && sessions.remove(hash(token)) != null;
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    private void removeExpired() {
+        long now = System.nanoTime();
+        sessions.values().removeIf(lastUsed -> now - lastUsed > idleTimeout.toNanos());
+    }
+
+    private static String hash(String token) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JDK has SHA-256
+        }
+    }
+}
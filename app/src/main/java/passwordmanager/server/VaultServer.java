@@ -0,0 +1,502 @@
+package passwordmanager.server;
+
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import passwordmanager.metrics.Metrics;
+import passwordmanager.model.Entry;
+import passwordmanager.model.EntryStore;
+import passwordmanager.model.Secret;
+import passwordmanager.model.Vault;
+import passwordmanager.model.VaultWriter;
+import passwordmanager.services.PasswordGenerator;
+
+/**
+ * HTTP API over an unlocked vault, so scripts don't pay for starting a JVM
+ * and deriving the key on every call. It only listens on the loopback
+ * interface and serves every request on its own virtual thread.
+ * <p>
+ * Clients first trade the master password for a session token, then send it
+ * as {@code Authorization: Bearer <token>}:
+ * <pre>
+ * POST   /session    password=...                  -> {"token": ...}
+ * DELETE /session                                  -> 204
+ * GET    /entries    [?service=...]                -> [{"service", "username"}]
+ * GET    /password   ?service=...[&amp;username=...]   -> {"service", "username", "password"}
+ * POST   /entries    service=...&amp;username=...[&amp;password=...] -> 201, the password is
+ *                    generated when it's missing
+ * DELETE /entries    ?service=...&amp;username=...      -> 204
+ * GET    /generate   [?length=...]                 -> {"password"}
+ * </pre>
+ * Request bodies are form encoded, responses are JSON. Reads share the entry
+ * store under a read lock, changes take the write lock and answer once the
+ * change is on disk; changes from concurrent clients are committed together
+ * (see {@link VaultWriter}).
+ */
+public class VaultServer implements AutoCloseable {
+    public static final int DEFAULT_PORT = 7411;
+    public static final Duration SESSION_TIMEOUT = Duration.ofMinutes(15);
+    private static final int MAX_BODY = 64 * 1024;
+    private static final int DEFAULT_LENGTH = 16;
+    private static final int MAX_LENGTH = 1024;
+    private static final Duration FAILED_LOGIN_DELAY = Duration.ofSeconds(1);
+    private static final Metrics.Timer REQUEST_TIMER = Metrics.timer("http_request", "Handling one API request");
+
+    static {
+        // Without TCP_NODELAY small responses wait on delayed ACKs, about 40 ms
+        // each. Read once, when the JDK's server is first used.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final Vault vault;
+    private final EntryStore store;
+    private final Secret masterPassword;
+    private final VaultWriter writer;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final SessionTokens sessions = new SessionTokens(SESSION_TIMEOUT);
+    private final Object loginLock = new Object();
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * Binds the server to the loopback interface. Call {@link #start()} to
+     * start serving.
+     *
+     * @param vault          Loaded and unlocked
+     * @param store          The vault's entries, only changed through this
+     *                       server from now on
+     * @param masterPassword Still owned by the caller, who destroys it after
+     *                       {@link #close()}
+     * @param port           0 picks a free port
+     * @throws IOException
+     */
+    public VaultServer(Vault vault, EntryStore store, Secret masterPassword, int port) throws IOException {
+        this.vault = vault;
+        this.store = store;
+        this.masterPassword = masterPassword;
+        this.writer = new VaultWriter(vault);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.setExecutor(executor);
+        this.server.createContext("/", this::handle);
+    }
+
+    /**
+     * Runs the daemon from the command line until the process is stopped.
+     * First, it asks for the master password and loads vault.dat with it.
+     * Then, it starts serving on the loopback interface.
+     * Finally, it waits, and a shutdown hook writes pending changes on exit.
+     *
+     * @param port
+     * @throws Exception
+     */
+    public static void serve(int port) throws Exception {
+        // 1. Unlock once
+        Path file = Path.of("vault.dat");
+        if (!Files.exists(file)) {
+            System.out.println("No vault found, create one with the CLI first.");
+            return;
+        }
+        Console console = System.console();
+        char[] typed = console != null ? console.readPassword("Enter your master password:") : null;
+        if (typed == null) {
+            System.out.print("Enter your master password:");
+            typed = new Scanner(System.in).nextLine().trim().toCharArray();
+        }
+        Secret masterPassword = Secret.wrap(typed);
+        Vault vault = new Vault(file, Vault.DEFAULT_IDLE_TIMEOUT);
+        EntryStore store = new EntryStore(vault.load(masterPassword));
+        // 2. Serve
+        VaultServer server = new VaultServer(vault, store, masterPassword, port);
+        server.start();
+        // Metrics are read over JMX here, there is no console for the stats command
+        Metrics.registerMBeans();
+        System.out.println("\t-> Serving " + store.size() + " entries on http://127.0.0.1:" + server.port());
+        // 3. Until stopped
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            masterPassword.destroy();
+            stopped.countDown();
+        }, "vault-server-stop"));
+        stopped.await();
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops accepting requests, lets running ones finish for up to a second and
+     * writes the pending changes.
+     */
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.close();
+        writer.close();
+    }
+
+    /**
+     * Answers a request, turning failures into error responses.
+     *
+     * @param exchange
+     * @throws IOException
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        try (exchange) {
+            try {
+                route(exchange);
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, error(e.getMessage()));
+            } catch (Exception e) {
+                send(exchange, 500, error(e.getMessage()));
+            }
+        } finally {
+            REQUEST_TIMER.recordSince(start);
+        }
+    }
+
+    /**
+     * Routes a request.
+     * First, it rejects requests whose Host isn't the loopback address, which
+     * a web page could otherwise send through DNS rebinding.
+     * Then, it checks the session token, except to open a session.
+     * Finally, it calls the endpoint's handler.
+     *
+     * @param exchange
+     * @throws Exception
+     */
+    private void route(HttpExchange exchange) throws Exception {
+        // 1. Only local clients
+        if (!isLoopbackHost(exchange.getRequestHeaders().getFirst("Host"))) {
+            send(exchange, 403, error("Only loopback host names are accepted"));
+            return;
+        }
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        // 2. Sessions
+        if (path.equals("/session") && method.equals("POST")) {
+            handleLogin(exchange);
+            return;
+        }
+        String token = bearerToken(exchange);
+        if (!sessions.check(token)) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+            send(exchange, 401, error("Missing, expired or unknown session token"));
+            return;
+        }
+        // 3. API
+        Map<String, String> query = parseForm(exchange.getRequestURI().getRawQuery());
+        switch (method + " " + path) {
+            case "DELETE /session" -> {
+                sessions.revoke(token);
+                send(exchange, 204, null);
+            }
+            case "GET /entries" -> handleList(exchange, query);
+            case "GET /password" -> handleLookup(exchange, query);
+            case "POST /entries" -> handleAdd(exchange, parseForm(readBody(exchange)));
+            case "DELETE /entries" -> handleDelete(exchange, query);
+            case "GET /generate" -> handleGenerate(exchange, query);
+            default -> send(exchange, 404, error("Unknown endpoint " + method + " " + path));
+        }
+    }
+
+    /**
+     * Opens a session for a client that knows the master password. Wrong
+     * passwords are answered after a delay, one at a time, which limits
+     * guessing to about one password a second.
+     *
+     * @param exchange
+     * @throws Exception
+     */
+    private void handleLogin(HttpExchange exchange) throws Exception {
+        String password = parseForm(readBody(exchange)).get("password");
+        synchronized (loginLock) {
+            if (password == null || !matchesMasterPassword(password)) {
+                Thread.sleep(FAILED_LOGIN_DELAY);
+                send(exchange, 403, error("Wrong master password"));
+                return;
+            }
+        }
+        send(exchange, 200, "{\"token\": " + quote(sessions.issue()) + ", \"expiresAfterIdleSeconds\": "
+                + SESSION_TIMEOUT.toSeconds() + "}");
+    }
+
+    private boolean matchesMasterPassword(String password) {
+        try (Secret given = Secret.copyOf(password)) {
+            return given.contentEquals(masterPassword);
+        }
+    }
+
+    private void handleList(HttpExchange exchange, Map<String, String> query) throws IOException {
+        String service = query.get("service");
+        StringBuilder json = new StringBuilder("[");
+        lock.readLock().lock();
+        try {
+            for (Entry entry : service == null ? store.entries() : store.find(service)) {
+                json.append(json.length() == 1 ? "" : ", ")
+                        .append("{\"service\": ").append(quote(entry.getService()))
+                        .append(", \"username\": ").append(quote(entry.getUsername())).append('}');
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        send(exchange, 200, json.append(']').toString());
+    }
+
+    private void handleLookup(HttpExchange exchange, Map<String, String> query) throws Exception {
+        String service = required(query, "service");
+        String username = query.get("username");
+        List<Entry> matches;
+        lock.readLock().lock();
+        try {
+            if (username != null) {
+                Entry entry = store.find(service, username);
+                matches = entry == null ? List.of() : List.of(entry);
+            } else {
+                matches = store.find(service);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (matches.isEmpty()) {
+            send(exchange, 404, error("No entry for " + service));
+            return;
+        }
+        if (matches.size() > 1) {
+            send(exchange, 409, error(matches.size() + " accounts for " + service + ", pass a username"));
+            return;
+        }
+        // The key may have been wiped while idle
+        vault.unlock(masterPassword);
+        Entry entry = matches.get(0);
+        send(exchange, 200, entryJson(entry, entry.getPassword()));
+    }
+
+    /**
+     * Adds an entry and answers once it's saved, undoing it if saving fails.
+     *
+     * @param exchange
+     * @param form
+     * @throws Exception
+     */
+    private void handleAdd(HttpExchange exchange, Map<String, String> form) throws Exception {
+        String service = required(form, "service");
+        String username = required(form, "username");
+        String given = form.get("password");
+        Entry entry = new Entry(service, username, given == null || given.isEmpty()
+                ? Secret.wrap(PasswordGenerator.generateChars(DEFAULT_LENGTH)) : Secret.copyOf(given));
+        CompletableFuture<Void> saved;
+        lock.writeLock().lock();
+        try {
+            if (store.find(service, username) != null) {
+                send(exchange, 409, error("An entry for " + service + " (" + username + ") already exists"));
+                return;
+            }
+            store.add(entry);
+            saved = writer.add(entry, store.entries(), masterPassword);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (!await(saved, () -> store.remove(entry))) {
+            send(exchange, 500, error("Could not save the entry"));
+            return;
+        }
+        send(exchange, 201, entryJson(entry, entry.getPassword()));
+    }
+
+    private void handleDelete(HttpExchange exchange, Map<String, String> query) throws Exception {
+        String service = required(query, "service");
+        String username = required(query, "username");
+        Entry entry;
+        CompletableFuture<Void> saved;
+        lock.writeLock().lock();
+        try {
+            entry = store.find(service, username);
+            if (entry == null) {
+                send(exchange, 404, error("No entry for " + service + " (" + username + ")"));
+                return;
+            }
+            store.remove(entry);
+            saved = writer.delete(entry, store.entries(), masterPassword);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (!await(saved, () -> store.add(entry))) {
+            send(exchange, 500, error("Could not save the deletion"));
+            return;
+        }
+        send(exchange, 204, null);
+    }
+
+    private void handleGenerate(HttpExchange exchange, Map<String, String> query) throws IOException {
+        int length = DEFAULT_LENGTH;
+        if (query.containsKey("length")) {
+            try {
+                length = Integer.parseInt(query.get("length"));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid length " + query.get("length"));
+            }
+        }
+        if (length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Length must be at most " + MAX_LENGTH);
+        }
+        send(exchange, 200, "{\"password\": " + quote(PasswordGenerator.generate(length)) + "}");
+    }
+
+    /**
+     * Waits for a change to be saved, undoing it in the store if that failed.
+     *
+     * @param saved
+     * @param rollback
+     * @return boolean
+     * @throws InterruptedException
+     */
+    private boolean await(CompletableFuture<Void> saved, Runnable rollback) throws InterruptedException {
+        try {
+            saved.get();
+            return true;
+        } catch (ExecutionException e) {
+            System.out.println("\t-> Could not save a change: " + e.getCause().getMessage());
+            lock.writeLock().lock();
+            try {
+                rollback.run();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return false;
+        }
+    }
+
+    private static boolean isLoopbackHost(String host) {
+        if (host == null) {
+            return false;
+        }
+        String name = host.startsWith("[") ? host.substring(0, host.indexOf(']') + 1)
+                : host.contains(":") ? host.substring(0, host.indexOf(':')) : host;
+        name = name.toLowerCase(Locale.ROOT);
+        return name.equals("localhost") || name.equals("127.0.0.1") || name.equals("[::1]");
+    }
+
+    private static String bearerToken(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null || !header.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return null;
+        }
+        return header.substring(7).trim();
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes(MAX_BODY + 1);
+            if (body.length > MAX_BODY) {
+                throw new IllegalArgumentException("Request body is too large");
+            }
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Decodes a query string or a form encoded body.
+     *
+     * @param raw
+     * @return Map<String, String>
+     */
+    static Map<String, String> parseForm(String raw) {
+        Map<String, String> values = new HashMap<>();
+        if (raw == null || raw.isEmpty()) {
+            return values;
+        }
+        for (String pair : raw.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+            String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+            values.putIfAbsent(name, value);
+        }
+        return values;
+    }
+
+    private static String required(Map<String, String> values, String name) {
+        String value = values.get(name);
+        if (value == null || value.isBlank()) {
+            throw new IllegalArgumentException("Missing " + name);
+        }
+        return value.trim();
+    }
+
+    private static String entryJson(Entry entry, String password) {
+        return "{\"service\": " + quote(entry.getService()) + ", \"username\": " + quote(entry.getUsername())
+                + ", \"password\": " + quote(password) + "}";
+    }
+
+    private static String error(String message) {
+        return "{\"error\": " + quote(message == null ? "Internal error" : message) + "}";
+    }
+
+    static String quote(String value) {
+        StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        if (json == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
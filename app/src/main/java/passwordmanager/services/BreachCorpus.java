@@ -0,0 +1,270 @@
+package passwordmanager.services;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An offline copy of the Have I Been Pwned password corpus: SHA-1 hashes of
+ * breached passwords, in upper or lower case hex, each with how often it was
+ * seen, one per line and sorted by hash.
+ * <p>
+ * <pre>
+ * 000000005AD76BD555C1D6D771DE417A4B87E4B4:10
+ * 00000000A8DAE4228F821FB418F59826079BF368:4
+ * </pre>
+ * That's the file the official downloader writes, or the k-anonymity range
+ * responses ({@code /range/ABCDE}) concatenated in order with their 5 digit
+ * prefix put back in front of each suffix.
+ * <p>
+ * The file is memory-mapped, never read into the heap, so a corpus of many
+ * gigabytes opens instantly and lookups only touch the pages they need. Since
+ * SHA-1 spreads hashes evenly, a lookup guesses where a hash should be from its
+ * value (interpolation search), which finds it in a handful of page reads
+ * instead of the ~30 of a binary search; every other step bisects, so an odd
+ * file can't make it slower than that. Lookups can run from many threads.
+ */
+public class BreachCorpus implements AutoCloseable {
+    static final int HASH_BYTES = 20;
+    private static final int HASH_DIGITS = HASH_BYTES * 2;
+    // Mapped per region, since a single mapping can't exceed 2 GiB
+    private static final long REGION_SIZE = 1L << 30;
+    // Below this many bytes the remaining lines are simply scanned
+    private static final long SCAN_LIMIT = 4096;
+
+    private final Path file;
+    private final long size;
+    private MappedByteBuffer[] regions;
+
+    private BreachCorpus(Path file, long size, MappedByteBuffer[] regions) {
+        this.file = file;
+        this.size = size;
+        this.regions = regions;
+    }
+
+    /**
+     * Maps a corpus file and checks that it starts with a hash.
+     *
+     * @param file
+     * @return BreachCorpus
+     * @throws IOException if the file can't be read or isn't a corpus
+     */
+    public static BreachCorpus open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) / REGION_SIZE)];
+            for (int i = 0; i < regions.length; i++) {
+                long start = i * REGION_SIZE;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, REGION_SIZE));
+            }
+            BreachCorpus corpus = new BreachCorpus(file, size, regions);
+            if (size > 0 && !corpus.isHash(0)) {
+                throw new IOException(file + " is not a list of SHA-1 hashes");
+            }
+            return corpus;
+        }
+    }
+
+    public Path file() {
+        return file;
+    }
+
+    /**
+     * Size of the corpus file.
+     *
+     * @return long bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Looks up a SHA-1 hash.
+     * First, it narrows down the bytes the hash's line can start in, guessing
+     * from the hash's value and the hashes at both ends of the range, or
+     * bisecting it, in turns.
+     * Then, once few bytes are left, it reads the remaining lines in order.
+     *
+     * @param sha1 20 bytes
+     * @return long how often the password was seen in breaches, 0 if never
+     */
+    public long occurrences(byte[] sha1) {
+        if (sha1.length != HASH_BYTES) {
+            throw new IllegalArgumentException("A SHA-1 hash has " + HASH_BYTES + " bytes");
+        }
+        long target = prefix(sha1);
+        // 1. Narrow down: the line, if any, starts in [low, high)
+        long low = 0;
+        long high = size;
+        long lowKey = 0;
+        long highKey = -1; // all ones, the largest unsigned value
+        boolean interpolate = true;
+        while (high - low > SCAN_LIMIT) {
+            long probe;
+            if (interpolate) {
+                double fraction = unsigned(target - lowKey) / (unsigned(highKey - lowKey) + 1);
+                probe = low + (long) (Math.min(1, Math.max(0, fraction)) * (high - low));
+            } else {
+                probe = low + (high - low) / 2;
+            }
+            interpolate = !interpolate;
+            long line = nextLine(probe, high);
+            if (line < 0) {
+                high = probe;
+                continue;
+            }
+            int comparison = compare(line, sha1);
+            if (comparison == 0) {
+                return count(line);
+            } else if (comparison < 0) {
+                lowKey = prefixAt(line);
+                low = lineEnd(line);
+            } else {
+                highKey = prefixAt(line);
+                high = line;
+            }
+        }
+        // 2. Scan what's left
+        for (long line = low; line < high && line < size; line = lineEnd(line)) {
+            int comparison = compare(line, sha1);
+            if (comparison == 0) {
+                return count(line);
+            } else if (comparison > 0) {
+                break;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the first line that starts at or after a position, if it starts
+     * before the limit.
+     *
+     * @param position
+     * @param limit
+     * @return long or -1 if there is none
+     */
+    private long nextLine(long position, long limit) {
+        if (position == 0) {
+            return 0;
+        }
+        // A line starts right after a newline
+        for (long i = position - 1; i < limit - 1; i++) {
+            if (byteAt(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private long lineEnd(long line) {
+        long i = line;
+        while (i < size && byteAt(i) != '\n') {
+            i++;
+        }
+        return i + 1;
+    }
+
+    /**
+     * Compares the hash a line starts with to the given one.
+     *
+     * @param line
+     * @param sha1
+     * @return int negative if the line's hash is smaller
+     */
+    private int compare(long line, byte[] sha1) {
+        for (int i = 0; i < HASH_BYTES; i++) {
+            int value = hexByteAt(line + 2L * i);
+            int difference = value - (sha1[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return 0;
+    }
+
+    private long count(long line) {
+        long i = line + HASH_DIGITS;
+        if (i >= size || byteAt(i) != ':') {
+            return 1; // hashes without a count were seen at least once
+        }
+        long count = 0;
+        for (i++; i < size; i++) {
+            byte digit = byteAt(i);
+            if (digit < '0' || digit > '9') {
+                break;
+            }
+            count = count * 10 + (digit - '0');
+        }
+        return Math.max(1, count);
+    }
+
+    private long prefixAt(long line) {
+        long key = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            key = (key << 8) | hexByteAt(line + 2L * i);
+        }
+        return key;
+    }
+
+    private boolean isHash(long line) {
+        if (line + HASH_DIGITS > size) {
+            return false;
+        }
+        for (int i = 0; i < HASH_DIGITS; i++) {
+            if (digit(byteAt(line + i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int hexByteAt(long position) {
+        if (position + 1 >= size) {
+            throw new IllegalStateException(file + " ends in the middle of a hash");
+        }
+        int high = digit(byteAt(position));
+        int low = digit(byteAt(position + 1));
+        if (high < 0 || low < 0) {
+            throw new IllegalStateException(file + " has a malformed line near byte " + position);
+        }
+        return high << 4 | low;
+    }
+
+    private byte byteAt(long position) {
+        return regions[(int) (position / REGION_SIZE)].get((int) (position % REGION_SIZE));
+    }
+
+    private static int digit(byte c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    private static long prefix(byte[] sha1) {
+        long key = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            key = (key << 8) | (sha1[i] & 0xFF);
+        }
+        return key;
+    }
+
+    private static double unsigned(long value) {
+        return value >= 0 ? value : (value >>> 1) * 2.0 + (value & 1);
+    }
+
+    /**
+     * Drops the mappings. The pages are unmapped once they're collected.
+     */
+    @Override
+    public void close() {
+        regions = new MappedByteBuffer[0];
+    }
+}
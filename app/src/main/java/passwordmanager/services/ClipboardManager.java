@@ -1,5 +1,251 @@
 package passwordmanager.services;
 
-public class ClipboardManager {
+import java.awt.AWTError;
+import java.awt.GraphicsEnvironment;
+import java.awt.HeadlessException;
+import java.awt.Toolkit;
+import java.awt.datatransfer.Clipboard;
+import java.awt.datatransfer.ClipboardOwner;
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.StringSelection;
+import java.awt.datatransfer.Transferable;
+import java.awt.datatransfer.UnsupportedFlavorException;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import passwordmanager.model.Secret;
+
+/**
+ * Copies passwords to the clipboard and clears them again after a while.
+ * <p>
+ * The system clipboard is looked up on the first copy, not before, so starting
+ * the program doesn't pay for AWT. Without a display (a server, a test run,
+ * {@code java.awt.headless}) a private in-memory clipboard is used instead, so
+ * copying never throws or waits for an X server.
+ * <p>
+ * What is put on the clipboard holds its own copy of the password as a
+ * {@link Secret}, and only makes a String when something pastes it. When the
+ * delay is over the clipboard is cleared, but only if it still holds our
+ * password: anything copied since, in this program or another one, is left
+ * alone. Either way the copy is wiped. One timer thread serves every copy, a
+ * new copy simply replaces the pending clear.
+ */
+public class ClipboardManager implements AutoCloseable {
+    public static final Duration DEFAULT_CLEAR_DELAY = Duration.ofSeconds(30);
+
+    /**
+     * A password on the clipboard. It's wiped once the clipboard is cleared or
+     * something else is copied over it, after which it can't be pasted.
+     */
+    private static final class SecretSelection implements Transferable, ClipboardOwner {
+        private final Secret password;
+
+        private SecretSelection(Secret password) {
+            this.password = password;
+        }
+
+        @Override
+        public DataFlavor[] getTransferDataFlavors() {
+            return new DataFlavor[] { DataFlavor.stringFlavor };
+        }
+
+        @Override
+        public boolean isDataFlavorSupported(DataFlavor flavor) {
+            return DataFlavor.stringFlavor.equals(flavor);
+        }
+
+        @Override
+        public Object getTransferData(DataFlavor flavor) throws UnsupportedFlavorException, IOException {
+            if (!isDataFlavorSupported(flavor)) {
+                throw new UnsupportedFlavorException(flavor);
+            }
+            try {
+                return password.reveal();
+            } catch (IllegalStateException e) {
+                throw new IOException("The password was cleared from the clipboard");
+            }
+        }
+
+        @Override
+        public void lostOwnership(Clipboard clipboard, Transferable contents) {
+            password.destroy();
+        }
+    }
+
+    private Duration clearAfter;
+    private Clipboard clipboard; // null until the first copy
+    private boolean systemClipboard;
+    private ScheduledThreadPoolExecutor timer; // null until the first clear is scheduled
+    private SecretSelection copied; // what we last put on the clipboard
+    private ScheduledFuture<?> pendingClear;
+
+    public ClipboardManager() {
+        this(DEFAULT_CLEAR_DELAY);
+    }
+
+    /**
+     * @param clearAfter Zero to never clear the clipboard
+     */
+    public ClipboardManager(Duration clearAfter) {
+        this.clearAfter = checkDelay(clearAfter);
+    }
+
+    /**
+     * Uses the given clipboard instead of looking up the system one, and the
+     * given timer to schedule the clears.
+     *
+     * @param clearAfter
+     * @param clipboard
+     * @param timer      Shut down on close
+     */
+    ClipboardManager(Duration clearAfter, Clipboard clipboard, ScheduledThreadPoolExecutor timer) {
+        this(clearAfter);
+        this.clipboard = clipboard;
+        this.timer = timer;
+    }
+
+    public synchronized Duration clearAfter() {
+        return clearAfter;
+    }
+
+    /**
+     * Changes the delay for the next copies; a clear already scheduled keeps
+     * its time.
+     *
+     * @param clearAfter Zero to never clear the clipboard
+     */
+    public synchronized void setClearAfter(Duration clearAfter) {
+        this.clearAfter = checkDelay(clearAfter);
+    }
+
+    private static Duration checkDelay(Duration clearAfter) {
+        if (clearAfter.isNegative()) {
+            throw new IllegalArgumentException("Clipboard delay must not be negative");
+        }
+        return clearAfter;
+    }
+
+    /**
+     * Checks whether copies reach the system clipboard, rather than the
+     * in-memory one used without a display. Looks the clipboard up if needed.
+     *
+     * @return boolean
+     */
+    public synchronized boolean isSystemClipboard() {
+        clipboard();
+        return systemClipboard;
+    }
+
+    /**
+     * Puts a password on the clipboard and schedules clearing it.
+     * First, it looks up the clipboard, on the first call only.
+     * Then, it puts a copy of the password there, replacing what we copied
+     * before, if it's still there.
+     * Finally, it replaces the pending clear with one for the new copy.
+     *
+     * @param password Copied, the caller still owns it
+     * @return boolean true if it reached the system clipboard
+     */
+    public synchronized boolean copy(Secret password) {
+        // 1. Find the clipboard
+        Clipboard target = clipboard();
+        // 2. Copy
+        SecretSelection selection = new SecretSelection(password.copy());
+        target.setContents(selection, selection);
+        if (copied != null) {
+            // lostOwnership would only come later, on the event thread
+            copied.password.destroy();
+        }
+        copied = selection;
+        // 3. Clear it later
+        if (pendingClear != null) {
+            pendingClear.cancel(false);
+            pendingClear = null;
+        }
+        if (!clearAfter.isZero()) {
+            pendingClear = timer().schedule(() -> clear(selection), clearAfter.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        return systemClipboard;
+    }
+
+    /**
+     * Empties the clipboard if it still holds the password we copied last, and
+     * wipes our copy of it.
+     *
+     * @return boolean true if the clipboard was emptied
+     */
+    public synchronized boolean clearIfOurs() {
+        return clear(copied);
+    }
+
+    /**
+     * Clears a copy, unless it was already replaced by a later one: a clear
+     * that was due just as the next copy was made leaves the new one alone.
+     *
+     * @param selection
+     * @return boolean true if the clipboard was emptied
+     */
+    private synchronized boolean clear(SecretSelection selection) {
+        if (selection == null || selection != copied) {
+            return false;
+        }
+        boolean ours = false;
+        try {
+            ours = clipboard.getContents(null) == copied;
+            if (ours) {
+                clipboard.setContents(new StringSelection(""), null);
+            }
+        } catch (IllegalStateException e) {
+            // Another program has the clipboard open, it's no longer ours to clear
+        }
+        copied.password.destroy();
+        copied = null;
+        pendingClear = null;
+        return ours;
+    }
+
+    private Clipboard clipboard() {
+        if (clipboard == null) {
+            try {
+                if (!GraphicsEnvironment.isHeadless()) {
+                    clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
+                    systemClipboard = true;
+                }
+            } catch (HeadlessException | AWTError e) {
+                // A display was configured but can't be reached
+            }
+            if (clipboard == null) {
+                clipboard = new Clipboard("passwordmanager");
+            }
+        }
+        return clipboard;
+    }
+
+    private ScheduledThreadPoolExecutor timer() {
+        if (timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "clipboard-clear");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.setRemoveOnCancelPolicy(true);
+        }
+        return timer;
+    }
+
+    /**
+     * Clears our password now, if it's still on the clipboard, and stops the
+     * timer.
+     */
+    @Override
+    public synchronized void close() {
+        clearIfOurs();
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+    }
 }
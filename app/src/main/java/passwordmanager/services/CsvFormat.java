@@ -0,0 +1,202 @@
+package passwordmanager.services;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import passwordmanager.model.Entry;
+
+/**
+ * CSV as described in RFC 4180: comma separated fields, optionally quoted, with
+ * doubled quotes inside quoted fields. Quoted fields may span several lines.
+ * The first record names the columns.
+ */
+final class CsvFormat {
+    private static final int MAX_FIELD = 1 << 16; // chars
+
+    private CsvFormat() {
+    }
+
+    static final class Source implements TransferFormat.Source {
+        private final Reader in;
+        private final StringBuilder field = new StringBuilder();
+        private String[] columns;
+        private long line = 1;
+        private int pending = -2; // character read ahead, -2 when there is none
+        private boolean started;
+
+        Source(Reader in) {
+            this.in = in;
+        }
+
+        /**
+         * Reads the next record and matches its fields with the column names.
+         * Blank lines are skipped.
+         *
+         * @return Row or null at the end of the input
+         * @throws IOException
+         */
+        @Override
+        public TransferFormat.Row next() throws IOException {
+            if (columns == null) {
+                List<String> header = readRecord();
+                if (header == null) {
+                    return null;
+                }
+                columns = new String[header.size()];
+                for (int i = 0; i < columns.length; i++) {
+                    columns[i] = header.get(i).strip().toLowerCase(Locale.ROOT);
+                }
+            }
+            long start;
+            List<String> record;
+            do {
+                start = line;
+                record = readRecord();
+                if (record == null) {
+                    return null;
+                }
+            } while (record.size() == 1 && record.get(0).isEmpty());
+
+            Map<String, String> fields = new HashMap<>();
+            for (int i = 0; i < record.size() && i < columns.length; i++) {
+                fields.putIfAbsent(columns[i], record.get(i));
+            }
+            return TransferFormat.toRow(fields, start);
+        }
+
+        /**
+         * Reads the fields of one record, up to the end of its line.
+         *
+         * @return List<String> or null at the end of the input
+         * @throws IOException
+         */
+        private List<String> readRecord() throws IOException {
+            int c = read();
+            if (c == -1) {
+                return null;
+            }
+            List<String> fields = new ArrayList<>();
+            field.setLength(0);
+            boolean quoted = false;
+            boolean fieldStart = true;
+            while (true) {
+                if (quoted) {
+                    if (c == -1) {
+                        throw new IOException("Unterminated quoted field at line " + line);
+                    }
+                    if (c == '"') {
+                        int next = read();
+                        if (next == '"') {
+                            append('"');
+                        } else {
+                            quoted = false;
+                            c = next;
+                            continue;
+                        }
+                    } else {
+                        if (c == '\n') {
+                            line++;
+                        }
+                        append((char) c);
+                    }
+                } else if (c == '"' && fieldStart) {
+                    quoted = true;
+                    fieldStart = false;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                    fieldStart = true;
+                } else if (c == '\n' || c == '\r' || c == -1) {
+                    if (c == '\r') {
+                        int next = read();
+                        if (next != '\n') {
+                            pending = next;
+                        }
+                    }
+                    if (c != -1) {
+                        line++;
+                    }
+                    fields.add(field.toString());
+                    return fields;
+                } else {
+                    append((char) c);
+                    fieldStart = false;
+                }
+                c = read();
+            }
+        }
+
+        private void append(char c) throws IOException {
+            if (field.length() >= MAX_FIELD) {
+                throw new IOException("Field too long at line " + line);
+            }
+            field.append(c);
+        }
+
+        private int read() throws IOException {
+            if (pending != -2) {
+                int c = pending;
+                pending = -2;
+                return c;
+            }
+            int c = in.read();
+            if (!started) {
+                started = true;
+                if (c == '\uFEFF') {
+                    c = in.read(); // byte order mark
+                }
+            }
+            return c;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    static final class Sink implements TransferFormat.Sink {
+        private final Writer out;
+
+        Sink(Writer out) throws IOException {
+            this.out = out;
+            out.write("name,username,password\r\n");
+        }
+
+        @Override
+        public void write(Entry entry) throws IOException {
+            writeField(entry.getService());
+            out.write(',');
+            writeField(entry.getUsername());
+            out.write(',');
+            writeField(entry.getPassword());
+            out.write("\r\n");
+        }
+
+        private void writeField(String value) throws IOException {
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                out.write(value);
+                return;
+            }
+            out.write('"');
+            out.write(value.replace("\"", "\"\""));
+            out.write('"');
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package passwordmanager.services;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import passwordmanager.model.Entry;
+import passwordmanager.model.EntryStore;
+import passwordmanager.model.Secret;
+import passwordmanager.model.SealedStream;
+import passwordmanager.model.Vault;
+
+/**
+ * Bulk import and export of entries.
+ * <p>
+ * Imports go through a pipeline that reads one row at a time: parsing, then
+ * validation, then a single batched commit to the vault once every row was
+ * read. Only the accepted entries are kept, so memory use doesn't depend on
+ * the size of the file. Exports are always encrypted while they are written
+ * (see {@link SealedStream}), and can be imported back with their passphrase.
+ */
+public class EntryTransfer {
+    private static final int MAX_FIELD_BYTES = 0xFFFF;
+    private static final int MAX_PROBLEMS = 10; // reported, the rest are only counted
+
+    /**
+     * Outcome of an import.
+     *
+     * @param imported
+     * @param duplicates Rows skipped because the account already exists
+     * @param invalid    Rows rejected by validation
+     * @param problems   Reasons for the first rejected rows
+     */
+    public record Report(int imported, int duplicates, int invalid, List<String> problems) {
+    }
+
+    private EntryTransfer() {
+    }
+
+    /**
+     * Checks whether a file is an encrypted export, which needs a passphrase to
+     * be imported.
+     *
+     * @param file
+     * @return boolean
+     * @throws IOException
+     */
+    public static boolean isEncrypted(Path file) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            return SealedStream.isSealed(in);
+        }
+    }
+
+    /**
+     * Imports the entries of a CSV or JSON file, plain or encrypted.
+     * First, it opens the file, decrypting it on the fly if it's an encrypted
+     * export, and picks the parser from the extension or the content.
+     * Then, it reads one row at a time, rejecting rows without a service or
+     * password or with fields too long to store, and skipping accounts that
+     * already exist. Accepted entries are added to the store.
+     * Finally, it commits all the new entries to the vault at once. If that
+     * fails, they are removed from the store again.
+     *
+     * @param file
+     * @param passphrase     Only used for encrypted exports
+     * @param store
+     * @param vault
+     * @param masterPassword
+     * @return Report
+     * @throws Exception
+     */
+    public static Report importFrom(Path file, Secret passphrase, EntryStore store, Vault vault,
+            Secret masterPassword) throws Exception {
+        List<Entry> added = new ArrayList<>();
+        List<String> problems = new ArrayList<>();
+        int duplicates = 0;
+        int invalid = 0;
+        // 1. Parse
+        try (TransferFormat.Source source = open(file, passphrase)) {
+            for (TransferFormat.Row row = source.next(); row != null; row = source.next()) {
+                // 2. Validate
+                String problem = validate(row);
+                if (problem != null) {
+                    invalid++;
+                    if (problems.size() < MAX_PROBLEMS) {
+                        problems.add("Line " + row.line() + ": " + problem);
+                    }
+                    continue;
+                }
+                if (store.find(row.service(), row.username()) != null) {
+                    duplicates++;
+                    continue;
+                }
+                Entry entry = new Entry(row.service(), row.username(), row.password());
+                store.add(entry);
+                added.add(entry);
+            }
+        } catch (Exception e) {
+            rollback(store, added);
+            throw e;
+        }
+
+        // 3. Commit everything at once
+        try {
+            vault.addAll(added, store.entries(), masterPassword);
+        } catch (Exception e) {
+            rollback(store, added);
+            throw e;
+        }
+        return new Report(added.size(), duplicates, invalid, problems);
+    }
+
+    /**
+     * Exports entries to a new file, encrypted with a passphrase as it's
+     * written. Each password is only decrypted from the vault while its row is
+     * being written.
+     *
+     * @param file       Must not exist yet
+     * @param format
+     * @param entries
+     * @param passphrase
+     * @return int Number of entries exported
+     * @throws Exception
+     */
+    public static int exportTo(Path file, TransferFormat format, Iterable<Entry> entries, Secret passphrase)
+            throws Exception {
+        int count = 0;
+        OutputStream out = Files.newOutputStream(file, StandardOpenOption.CREATE_NEW);
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    SealedStream.encrypt(out, passphrase, format.id), StandardCharsets.UTF_8));
+            try (TransferFormat.Sink sink = format.writer(writer)) {
+                for (Entry entry : entries) {
+                    sink.write(entry);
+                    count++;
+                }
+            }
+        } catch (Exception e) {
+            out.close();
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        return count;
+    }
+
+    /**
+     * Opens a file for import and picks the parser for it.
+     *
+     * @param file
+     * @param passphrase
+     * @return TransferFormat.Source
+     * @throws Exception
+     */
+    private static TransferFormat.Source open(Path file, Secret passphrase) throws Exception {
+        BufferedInputStream in = new BufferedInputStream(Files.newInputStream(file));
+        try {
+            if (SealedStream.isSealed(in)) {
+                if (passphrase == null) {
+                    throw new IOException("File is encrypted, a passphrase is needed");
+                }
+                SealedStream.Opened opened = SealedStream.decrypt(in, passphrase);
+                TransferFormat format = TransferFormat.fromId(opened.contentType());
+                if (format == null) {
+                    throw new IOException("Unknown export format " + opened.contentType());
+                }
+                return format.reader(reader(opened.plain()));
+            }
+            TransferFormat format = TransferFormat.fromFileName(file.getFileName().toString());
+            return (format != null ? format : sniff(in)).reader(reader(in));
+        } catch (Exception e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Tells JSON from CSV by the first character that isn't whitespace.
+     *
+     * @param in
+     * @return TransferFormat
+     * @throws IOException
+     */
+    private static TransferFormat sniff(BufferedInputStream in) throws IOException {
+        in.mark(1024);
+        try {
+            for (int i = 0; i < 1024; i++) {
+                int c = in.read();
+                if (c == '[' || c == '{') {
+                    return TransferFormat.JSON;
+                }
+                if (c == -1 || !(Character.isWhitespace(c) || c >= 0x80)) {
+                    return TransferFormat.CSV;
+                }
+            }
+            return TransferFormat.CSV;
+        } finally {
+            in.reset();
+        }
+    }
+
+    private static Reader reader(InputStream in) {
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Checks a row before it becomes an entry.
+     *
+     * @param row
+     * @return String the problem, or null if the row is valid
+     */
+    private static String validate(TransferFormat.Row row) {
+        if (row.service() == null || row.service().isEmpty()) {
+            return "missing service name";
+        }
+        if (row.password() == null) {
+            return "missing password";
+        }
+        if (tooLong(row.service()) || tooLong(row.username()) || tooLong(row.password())) {
+            return "field is too long";
+        }
+        return null;
+    }
+
+    private static boolean tooLong(String value) {
+        if (value.length() * 3 <= MAX_FIELD_BYTES) {
+            return false;
+        }
+        return value.length() > MAX_FIELD_BYTES
+                || value.getBytes(StandardCharsets.UTF_8).length > MAX_FIELD_BYTES;
+    }
+
+    private static void rollback(EntryStore store, List<Entry> added) {
+        for (Entry entry : added) {
+            store.remove(entry);
+        }
+    }
+}
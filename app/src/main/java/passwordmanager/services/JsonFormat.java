@@ -0,0 +1,386 @@
+package passwordmanager.services;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import passwordmanager.model.Entry;
+
+/**
+ * JSON documents holding an array of entry objects, either at the top level or
+ * under one of the {@link #ROW_ARRAYS} keys of the top-level object (as in
+ * Bitwarden exports). The parser only ever holds one entry object in memory.
+ * <p>
+ * Fields of nested objects, such as {@code "login": {"username": ...}}, count as
+ * fields of the entry unless the entry has a field with the same name itself.
+ * Anything else is skipped.
+ */
+final class JsonFormat {
+    private static final Set<String> ROW_ARRAYS = Set.of("items", "entries", "logins", "passwords");
+    private static final int MAX_DEPTH = 64;
+    private static final int MAX_STRING = 1 << 16; // chars
+
+    private JsonFormat() {
+    }
+
+    static final class Source implements TransferFormat.Source {
+        private final Reader in;
+        private final StringBuilder text = new StringBuilder();
+        private long line = 1;
+        private int pending = -2; // character read ahead, -2 when there is none
+        private boolean inRows;
+        private boolean firstRow = true;
+        private boolean done;
+
+        Source(Reader in) {
+            this.in = in;
+        }
+
+        /**
+         * Reads the next object of the entry array. Elements that aren't objects
+         * are skipped, and so is everything after the array.
+         *
+         * @return Row or null at the end of the array
+         * @throws IOException if the document is malformed
+         */
+        @Override
+        public TransferFormat.Row next() throws IOException {
+            if (!inRows && !done) {
+                findRows();
+            }
+            while (!done) {
+                int c = token();
+                if (c == ']') {
+                    done = true;
+                    break;
+                }
+                if (!firstRow) {
+                    expect(c, ',');
+                    c = token();
+                }
+                firstRow = false;
+                if (c != '{') {
+                    skipValue(c, 1);
+                    continue;
+                }
+                long start = line;
+                Map<String, String> fields = new HashMap<>();
+                readObject(fields, 1);
+                return TransferFormat.toRow(fields, start);
+            }
+            return null;
+        }
+
+        /**
+         * Moves to the start of the entry array: the whole document, or the first
+         * array under a known key of the top-level object.
+         *
+         * @throws IOException
+         */
+        private void findRows() throws IOException {
+            int c = token();
+            if (c == '[') {
+                inRows = true;
+                return;
+            }
+            expect(c, '{');
+            c = token();
+            while (c != '}') {
+                expect(c, '"');
+                String key = readString();
+                expect(token(), ':');
+                c = token();
+                if (c == '[' && ROW_ARRAYS.contains(key.toLowerCase(Locale.ROOT))) {
+                    inRows = true;
+                    return;
+                }
+                skipValue(c, 1);
+                c = token();
+                if (c == ',') {
+                    c = token();
+                } else if (c != '}') {
+                    throw error("Expected ',' or '}'");
+                }
+            }
+            done = true;
+        }
+
+        /**
+         * Reads an object whose opening brace was consumed, storing its scalar
+         * fields by lower case name. Nested objects are merged in without
+         * replacing fields of the object itself, and so is the first element of
+         * a list of URIs. Other arrays, like a password history, are skipped.
+         *
+         * @param fields
+         * @param depth
+         * @throws IOException
+         */
+        private void readObject(Map<String, String> fields, int depth) throws IOException {
+            if (depth > MAX_DEPTH) {
+                throw error("Document is nested too deeply");
+            }
+            Map<String, String> nested = new HashMap<>();
+            int c = token();
+            while (c != '}') {
+                expect(c, '"');
+                String key = readString().toLowerCase(Locale.ROOT);
+                expect(token(), ':');
+                c = token();
+                if (c == '{') {
+                    readObject(nested, depth + 1);
+                } else if (c == '[' && key.equals("uris")) {
+                    readArray(nested, depth + 1);
+                } else if (c == '[') {
+                    skipValue(c, depth + 1);
+                } else if (c == '"') {
+                    fields.putIfAbsent(key, readString());
+                } else {
+                    String scalar = readScalar(c);
+                    if (scalar != null) {
+                        fields.putIfAbsent(key, scalar);
+                    }
+                }
+                c = token();
+                if (c == ',') {
+                    c = token();
+                } else if (c != '}') {
+                    throw error("Expected ',' or '}'");
+                }
+            }
+            nested.forEach(fields::putIfAbsent);
+        }
+
+        private void readArray(Map<String, String> fields, int depth) throws IOException {
+            if (depth > MAX_DEPTH) {
+                throw error("Document is nested too deeply");
+            }
+            boolean first = true;
+            int c = token();
+            while (c != ']') {
+                if (!first) {
+                    expect(c, ',');
+                    c = token();
+                }
+                if (c == '{' && first) {
+                    readObject(fields, depth + 1);
+                } else {
+                    skipValue(c, depth + 1);
+                }
+                first = false;
+                c = token();
+            }
+        }
+
+        /**
+         * Skips a value whose first character was already read.
+         *
+         * @param c
+         * @param depth
+         * @throws IOException
+         */
+        private void skipValue(int c, int depth) throws IOException {
+            if (depth > MAX_DEPTH) {
+                throw error("Document is nested too deeply");
+            }
+            if (c == '"') {
+                readString();
+            } else if (c == '{' || c == '[') {
+                int close = c == '{' ? '}' : ']';
+                boolean first = true;
+                int next = token();
+                while (next != close) {
+                    if (!first) {
+                        expect(next, ',');
+                        next = token();
+                    }
+                    if (c == '{') {
+                        expect(next, '"');
+                        readString();
+                        expect(token(), ':');
+                        next = token();
+                    }
+                    skipValue(next, depth + 1);
+                    first = false;
+                    next = token();
+                }
+            } else {
+                readScalar(c);
+            }
+        }
+
+        /**
+         * Reads a string whose opening quote was already read.
+         *
+         * @return String
+         * @throws IOException
+         */
+        private String readString() throws IOException {
+            text.setLength(0);
+            while (true) {
+                int c = read();
+                if (c == -1 || c == '\n') {
+                    throw error("Unterminated string");
+                }
+                if (c == '"') {
+                    return text.toString();
+                }
+                if (c == '\\') {
+                    c = read();
+                    switch (c) {
+                        case 'b' -> c = '\b';
+                        case 'f' -> c = '\f';
+                        case 'n' -> c = '\n';
+                        case 'r' -> c = '\r';
+                        case 't' -> c = '\t';
+                        case 'u' -> c = readHex();
+                        case '"', '\\', '/' -> {
+                        }
+                        default -> throw error("Invalid escape");
+                    }
+                }
+                if (text.length() >= MAX_STRING) {
+                    throw error("String too long");
+                }
+                text.append((char) c);
+            }
+        }
+
+        private int readHex() throws IOException {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                int digit = Character.digit(read(), 16);
+                if (digit < 0) {
+                    throw error("Invalid unicode escape");
+                }
+                value = value * 16 + digit;
+            }
+            return value;
+        }
+
+        /**
+         * Reads a number, true, false or null whose first character was already
+         * read.
+         *
+         * @param c
+         * @return String or null for a JSON null
+         * @throws IOException
+         */
+        private String readScalar(int c) throws IOException {
+            text.setLength(0);
+            while (c == '-' || c == '+' || c == '.' || Character.isLetterOrDigit(c)) {
+                if (text.length() >= MAX_STRING) {
+                    throw error("Value too long");
+                }
+                text.append((char) c);
+                c = read();
+            }
+            pending = c;
+            String scalar = text.toString();
+            if (scalar.isEmpty()) {
+                throw error("Unexpected character");
+            }
+            return scalar.equals("null") ? null : scalar;
+        }
+
+        private void expect(int c, char expected) throws IOException {
+            if (c != expected) {
+                throw error("Expected '" + expected + "'");
+            }
+        }
+
+        /**
+         * Reads the next character that isn't whitespace.
+         *
+         * @return int or -1 at the end of the input
+         * @throws IOException
+         */
+        private int token() throws IOException {
+            int c = read();
+            while (c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\uFEFF') {
+                if (c == '\n') {
+                    line++;
+                }
+                c = read();
+            }
+            return c;
+        }
+
+        private int read() throws IOException {
+            if (pending != -2) {
+                int c = pending;
+                pending = -2;
+                return c;
+            }
+            return in.read();
+        }
+
+        private IOException error(String message) {
+            return new IOException(message + " at line " + line);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    static final class Sink implements TransferFormat.Sink {
+        private final Writer out;
+        private boolean first = true;
+
+        Sink(Writer out) throws IOException {
+            this.out = out;
+            out.write('[');
+        }
+
+        @Override
+        public void write(Entry entry) throws IOException {
+            out.write(first ? "\n  {" : ",\n  {");
+            first = false;
+            writeField("service", entry.getService());
+            out.write(", ");
+            writeField("username", entry.getUsername());
+            out.write(", ");
+            writeField("password", entry.getPassword());
+            out.write('}');
+        }
+
+        private void writeField(String name, String value) throws IOException {
+            writeString(name);
+            out.write(": ");
+            writeString(value);
+        }
+
+        private void writeString(String value) throws IOException {
+            out.write('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"' -> out.write("\\\"");
+                    case '\\' -> out.write("\\\\");
+                    case '\n' -> out.write("\\n");
+                    case '\r' -> out.write("\\r");
+                    case '\t' -> out.write("\\t");
+                    default -> {
+                        if (c < 0x20) {
+                            out.write(String.format("\\u%04x", (int) c));
+                        } else {
+                            out.write(c);
+                        }
+                    }
+                }
+            }
+            out.write('"');
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.write(first ? "]\n" : "\n]\n");
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package passwordmanager.services;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates large numbers of passwords on every core, for provisioning runs.
+ * <p>
+ * The work is cut into chunks of {@link #CHUNK} passwords. Each worker thread
+ * has its own SecureRandom and {@link PasswordGenerator}, so threads never wait
+ * on a shared random source, and every password follows the same policy and
+ * the same unbiased sampling as a single-threaded one. Chunks are handed to the
+ * sink in the order they were requested, and only a few of them are in flight
+ * at once, so memory use doesn't grow with the count.
+ */
+public class ParallelGenerator {
+    static final int CHUNK = 4096; // passwords per task
+    private static final int CHUNKS_PER_THREAD = 2; // in flight, waiting for the sink
+
+    /**
+     * Receives generated passwords, one chunk at a time and in order.
+     */
+    @FunctionalInterface
+    public interface Sink {
+        /**
+         * Takes a chunk of passwords written back to back, the i-th one starting
+         * at {@code i * length}. The buffer is wiped once this returns, so copy
+         * what needs to be kept.
+         *
+         * @param passwords
+         * @param count
+         * @param length
+         * @throws IOException
+         */
+        void accept(char[] passwords, int count, int length) throws IOException;
+    }
+
+    private final PasswordGenerator.Policy policy;
+    private final int threads;
+
+    /**
+     * Uses one thread per available core.
+     *
+     * @param policy
+     */
+    public ParallelGenerator(PasswordGenerator.Policy policy) {
+        this(policy, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param policy
+     * @param threads At least 1
+     */
+    public ParallelGenerator(PasswordGenerator.Policy policy, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        new PasswordGenerator(policy, new SecureRandom()); // fails early on a policy with nothing left to draw from
+        this.policy = policy;
+        this.threads = threads;
+    }
+
+    /**
+     * Generates passwords and passes them to a sink in order.
+     * First, it starts the worker threads, each with its own SecureRandom.
+     * Then, it submits chunks, keeping only a couple per thread ahead of the
+     * sink.
+     * Next, it waits for the oldest chunk, hands it to the sink and wipes it,
+     * then submits the next one.
+     * Finally, it stops the workers, also when the sink fails.
+     *
+     * @param count
+     * @param sink
+     * @throws Exception
+     */
+    public void generate(long count, Sink sink) throws Exception {
+        if (count < 0) {
+            throw new IllegalArgumentException("Count must not be negative");
+        }
+        // 1. Workers with a generator each
+        ThreadLocal<PasswordGenerator> generators = ThreadLocal.withInitial(
+                () -> new PasswordGenerator(policy, new SecureRandom()));
+        ExecutorService workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "password-generator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ArrayDeque<Future<char[]>> pending = new ArrayDeque<>();
+        int length = policy.length();
+        try {
+            long submitted = 0;
+            long written = 0;
+            while (written < count) {
+                // 2. Keep the workers busy without running far ahead of the sink
+                while (submitted < count && pending.size() < threads * CHUNKS_PER_THREAD) {
+                    int size = (int) Math.min(CHUNK, count - submitted);
+                    pending.add(workers.submit(() -> {
+                        char[] chunk = new char[size * length];
+                        generators.get().generateBatch(chunk, size);
+                        return chunk;
+                    }));
+                    submitted += size;
+                }
+                // 3. Oldest chunk first, so the output keeps its order
+                char[] chunk = await(pending.remove());
+                int size = chunk.length / length;
+                try {
+                    sink.accept(chunk, size, length);
+                } finally {
+                    Arrays.fill(chunk, '\0');
+                }
+                written += size;
+            }
+        } finally {
+            // 4. Stop the workers and drop what the sink never got
+            workers.shutdownNow();
+            for (Future<char[]> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Writes passwords to a new file, one per line, in UTF-8.
+     *
+     * @param file  Must not exist yet
+     * @param count
+     * @throws Exception
+     */
+    public void generate(long count, Path file) throws Exception {
+        Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        try (out) {
+            generate(count, (passwords, size, length) -> {
+                for (int i = 0; i < size; i++) {
+                    out.write(passwords, i * length, length);
+                    out.write('\n');
+                }
+            });
+        } catch (Exception e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    private static char[] await(Future<char[]> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
+}
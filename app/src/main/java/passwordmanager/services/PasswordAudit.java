@@ -0,0 +1,302 @@
+package passwordmanager.services;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import passwordmanager.model.Entry;
+import passwordmanager.model.Secret;
+
+/**
+ * Checks the passwords of a vault: how hard each one is to guess, which ones
+ * are shared by several entries, and which ones appear in a {@link BreachCorpus}.
+ * <p>
+ * Strength is an estimate of the password's entropy in bits: every character
+ * is worth the bits needed to pick it from the character classes the password
+ * uses, except characters that repeat or continue a run ("aaa", "abc", "321"),
+ * which are worth about one bit. It's a rough measure, as a dictionary word
+ * still scores like random letters, which is why the breach corpus matters.
+ * <p>
+ * Entries are audited in chunks on every core, each thread with its own SHA-1
+ * digest. Every password is decrypted once, hashed, scored and wiped; only its
+ * hash is kept, which is all the reuse check and the corpus lookup need.
+ * <p>
+ * Results are tallied as the chunks come back, with only a few chunks in
+ * flight, so entries streamed from a vault aren't read far ahead. Entries at
+ * risk are kept for the report; every other one only until the end, as a
+ * hash and the entry that first used it, in case a later entry shares it.
+ */
+public class PasswordAudit {
+    static final int CHUNK = 1024; // entries per task
+
+    /**
+     * How hard a password is to guess, from its estimated entropy.
+     */
+    public enum Rating {
+        VERY_WEAK(0), WEAK(28), FAIR(36), STRONG(60);
+
+        private final int minimumBits;
+
+        Rating(int minimumBits) {
+            this.minimumBits = minimumBits;
+        }
+
+        public static Rating of(double bits) {
+            Rating rating = VERY_WEAK;
+            for (Rating candidate : values()) {
+                if (bits >= candidate.minimumBits) {
+                    rating = candidate;
+                }
+            }
+            return rating;
+        }
+    }
+
+    /**
+     * What the audit found for one entry.
+     *
+     * @param entry
+     * @param entropyBits
+     * @param rating
+     * @param reusedBy    Number of other entries with the same password
+     * @param breaches    Times the password was seen in breaches, 0 if never or
+     *                    without a corpus
+     */
+    public record Finding(Entry entry, double entropyBits, Rating rating, int reusedBy, long breaches) {
+        /**
+         * Checks whether the entry's password should be changed.
+         *
+         * @return boolean
+         */
+        public boolean isAtRisk() {
+            return rating.compareTo(Rating.FAIR) < 0 || reusedBy > 0 || breaches > 0;
+        }
+    }
+
+    /**
+     * What an audit found.
+     *
+     * @param audited Number of entries checked
+     * @param atRisk  Findings of the entries at risk, most at risk first
+     */
+    public record Report(int audited, List<Finding> atRisk) {
+    }
+
+    // Per entry, before reuse is known
+    private record Checked(Entry entry, double entropyBits, ByteBuffer hash, long breaches) {
+        boolean isWeakOrBreached() {
+            return Rating.of(entropyBits).compareTo(Rating.FAIR) < 0 || breaches > 0;
+        }
+    }
+
+    // Entries sharing one password: how many, and the first one while it's the
+    // only one and isn't at risk for another reason
+    private static final class Uses {
+        private int count = 1;
+        private Checked first;
+    }
+
+    private final BreachCorpus corpus;
+    private final int threads;
+
+    /**
+     * Uses one thread per available core.
+     *
+     * @param corpus Null to skip the breach check
+     */
+    public PasswordAudit(BreachCorpus corpus) {
+        this(corpus, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param corpus  Null to skip the breach check
+     * @param threads At least 1
+     */
+    public PasswordAudit(BreachCorpus corpus, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        this.corpus = corpus;
+        this.threads = threads;
+    }
+
+    /**
+     * Audits entries, whose vault must be unlocked. They're read once, in
+     * order, so they can come from {@code Vault.stream} without being loaded.
+     * First, it splits the entries in chunks as it reads them and checks them on
+     * the worker threads: decrypt, score, hash, look up in the corpus. Once a
+     * few chunks are in flight, it waits for the oldest before reading on.
+     * Then, it tallies each chunk as it comes back: an entry is at risk when its
+     * password is weak, breached or shares its hash with another entry.
+     * Finally, it returns the entries at risk, most at risk first.
+     *
+     * @param entries
+     * @return Report
+     * @throws Exception
+     */
+    public Report audit(Iterable<Entry> entries) throws Exception {
+        // 1. Check every entry in parallel
+        ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(PasswordAudit::sha1);
+        ExecutorService workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "password-audit");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Map<ByteBuffer, Uses> uses = new HashMap<>();
+        List<Checked> atRisk = new ArrayList<>();
+        int audited = 0;
+        try {
+            Deque<Future<List<Checked>>> chunks = new ArrayDeque<>();
+            List<Entry> pending = new ArrayList<>(CHUNK);
+            for (Entry entry : entries) {
+                pending.add(entry);
+                if (pending.size() == CHUNK) {
+                    List<Entry> full = pending;
+                    chunks.add(workers.submit(() -> check(full, digests.get())));
+                    pending = new ArrayList<>(CHUNK);
+                    if (chunks.size() > 2 * threads) {
+                        audited += tally(await(chunks.remove()), uses, atRisk);
+                    }
+                }
+            }
+            if (!pending.isEmpty()) {
+                List<Entry> last = pending;
+                chunks.add(workers.submit(() -> check(last, digests.get())));
+            }
+            // 2. Tally the chunks still in flight
+            while (!chunks.isEmpty()) {
+                audited += tally(await(chunks.remove()), uses, atRisk);
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        // 3. Most at risk first
+        List<Finding> findings = new ArrayList<>(atRisk.size());
+        for (Checked result : atRisk) {
+            findings.add(new Finding(result.entry(), result.entropyBits(), Rating.of(result.entropyBits()),
+                    uses.get(result.hash()).count - 1, result.breaches()));
+        }
+        findings.sort(Comparator.comparing(Finding::breaches, Comparator.reverseOrder())
+                .thenComparingDouble(Finding::entropyBits));
+        return new Report(audited, findings);
+    }
+
+    /**
+     * Counts the hashes of a checked chunk and keeps the entries at risk. An
+     * entry that isn't weak or breached is only remembered as the first user
+     * of its hash, until a second one turns up.
+     *
+     * @param chunk
+     * @param uses   Per hash
+     * @param atRisk
+     * @return int size of the chunk
+     */
+    private static int tally(List<Checked> chunk, Map<ByteBuffer, Uses> uses, List<Checked> atRisk) {
+        for (Checked result : chunk) {
+            Uses shared = uses.get(result.hash());
+            if (shared == null) {
+                shared = new Uses();
+                uses.put(result.hash(), shared);
+                if (result.isWeakOrBreached()) {
+                    atRisk.add(result);
+                } else {
+                    shared.first = result;
+                }
+                continue;
+            }
+            shared.count++;
+            if (shared.first != null) {
+                atRisk.add(shared.first);
+                shared.first = null;
+            }
+            atRisk.add(result);
+        }
+        return chunk.size();
+    }
+
+    private List<Checked> check(List<Entry> chunk, MessageDigest digest) {
+        List<Checked> results = new ArrayList<>(chunk.size());
+        for (Entry entry : chunk) {
+            byte[] hash;
+            double bits;
+            try (Secret password = entry.openPassword()) {
+                bits = entropyBits(password.chars());
+                byte[] utf8 = password.toUtf8();
+                hash = digest.digest(utf8);
+                Arrays.fill(utf8, (byte) 0);
+            }
+            long breaches = corpus == null ? 0 : corpus.occurrences(hash);
+            results.add(new Checked(entry, bits, ByteBuffer.wrap(hash), breaches));
+        }
+        return results;
+    }
+
+    /**
+     * Estimates the entropy of a password, see the class description.
+     *
+     * @param password
+     * @return double bits
+     */
+    public static double entropyBits(char[] password) {
+        // 1. Size of the alphabet the password seems drawn from
+        boolean lower = false;
+        boolean upper = false;
+        boolean digits = false;
+        boolean symbols = false;
+        boolean other = false;
+        for (char c : password) {
+            if (c >= 'a' && c <= 'z') {
+                lower = true;
+            } else if (c >= 'A' && c <= 'Z') {
+                upper = true;
+            } else if (c >= '0' && c <= '9') {
+                digits = true;
+            } else if (c >= ' ' && c <= '~') {
+                symbols = true;
+            } else {
+                other = true;
+            }
+        }
+        int alphabet = (lower ? 26 : 0) + (upper ? 26 : 0) + (digits ? 10 : 0) + (symbols ? 33 : 0)
+                + (other ? 100 : 0);
+        if (alphabet == 0) {
+            return 0;
+        }
+        double perCharacter = Math.log(alphabet) / Math.log(2);
+        // 2. Runs are predictable, they add about a bit per character
+        double bits = 0;
+        for (int i = 0; i < password.length; i++) {
+            int step = i == 0 ? Integer.MAX_VALUE : password[i] - password[i - 1];
+            bits += Math.abs(step) <= 1 ? 1 : perCharacter;
+        }
+        return bits;
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            // Only because that's what the breach corpus is indexed by
+            return MessageDigest.getInstance("SHA-1");
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<Checked> await(Future<List<Checked>> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
+}
@@ -1,59 +1,325 @@
 package passwordmanager.services;
 
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+/**
+ * Generates random passwords that follow a {@link Policy}: a length, the
+ * character classes to use (at least one character of each) and characters to
+ * leave out.
+ * <p>
+ * An instance keeps one SecureRandom and draws random bytes from it in bulk, so
+ * generating many passwords doesn't pay for seeding or a synchronized call per
+ * character. Passwords are written straight into char arrays, which the caller
+ * can wipe once done. Instances are immutable and can be shared between
+ * threads.
+ */
 public class PasswordGenerator {
+    private static final SecureRandom SHARED_RANDOM = new SecureRandom();
+    private static final int DRAW_BUFFER = 1024; // random bytes fetched at once
+
+    public enum CharacterClass {
+        UPPER("ABCDEFGHIJKLMNOPQRSTUVWXYZ"),
+        LOWER("abcdefghijklmnopqrstuvwxyz"),
+        DIGITS("0123456789"),
+        SPECIAL("!@#$%^&*()-_=+[]{}|;:,.<>?");
+
+        private final String characters;
+
+        CharacterClass(String characters) {
+            this.characters = characters;
+        }
+
+        public String characters() {
+            return characters;
+        }
+    }
+
+    /**
+     * What generated passwords look like.
+     *
+     * @param length
+     * @param classes  Every password has at least one character of each
+     * @param excluded Characters never used, such as look-alikes like "Il1O0"
+     */
+    public record Policy(int length, Set<CharacterClass> classes, String excluded) {
+        public Policy {
+            classes = Set.copyOf(classes);
+            excluded = excluded == null ? "" : excluded;
+            if (classes.isEmpty()) {
+                throw new IllegalArgumentException("At least one character class is needed");
+            }
+            if (length < classes.size()) {
+                throw new IllegalArgumentException(
+                        "Length must be at least " + classes.size() + " to include every character class");
+            }
+        }
+
+        /**
+         * Uses every character class, without exclusions.
+         *
+         * @param length
+         * @return Policy
+         */
+        public static Policy of(int length) {
+            return new Policy(length, EnumSet.allOf(CharacterClass.class), "");
+        }
+
+        public Policy withLength(int length) {
+            return new Policy(length, classes, excluded);
+        }
+
+        public Policy withClasses(Set<CharacterClass> classes) {
+            return new Policy(length, classes, excluded);
+        }
+
+        public Policy excluding(String characters) {
+            return new Policy(length, classes, excluded + characters);
+        }
+    }
+
+    private final Policy policy;
+    private final SecureRandom random;
+    private final char[] alphabet;
+    private final char[][] required; // one alphabet per character class
+
+    /**
+     * Creates a generator with its own SecureRandom, seeded right away so the
+     * first password doesn't pay for it.
+     *
+     * @param policy
+     */
+    public PasswordGenerator(Policy policy) {
+        this(policy, new SecureRandom());
+        random.nextInt();
+    }
+
+    /**
+     * Creates a generator that draws from the given SecureRandom.
+     *
+     * @param policy
+     * @param random
+     */
+    public PasswordGenerator(Policy policy, SecureRandom random) {
+        this.policy = policy;
+        this.random = random;
+        // 1. Alphabet of each class, without the excluded characters
+        StringBuilder all = new StringBuilder();
+        this.required = new char[policy.classes().size()][];
+        int i = 0;
+        for (CharacterClass characterClass : CharacterClass.values()) {
+            if (!policy.classes().contains(characterClass)) {
+                continue;
+            }
+            StringBuilder allowed = new StringBuilder();
+            for (char c : characterClass.characters().toCharArray()) {
+                if (policy.excluded().indexOf(c) < 0) {
+                    allowed.append(c);
+                }
+            }
+            if (allowed.isEmpty()) {
+                throw new IllegalArgumentException("Every character of " + characterClass + " is excluded");
+            }
+            required[i++] = allowed.toString().toCharArray();
+            all.append(allowed);
+        }
+        // 2. Alphabet for the remaining characters
+        this.alphabet = all.toString().toCharArray();
+    }
+
+    public Policy policy() {
+        return policy;
+    }
 
     /**
      * Generates a random password of specified length containing uppercase,
      * lowercase, digits, and special characters.
-     * 
-     * @param length
+     * Kept for existing callers, see the instance methods for bulk generation.
+     *
+     * @param length At least 4, one character per class
      * @return String
      */
     public static String generate(int length) {
-        String upper = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
-        String lower = "abcdefghijklmnopqrstuvwxyz";
-        String digits = "0123456789";
-        String special = "!@#$%^&*()-_=+[]{}|;:,.<>?";
+        return new PasswordGenerator(Policy.of(length), SHARED_RANDOM).generate();
+    }
 
-        String allChars = upper + lower + digits + special;
-        StringBuilder password = new StringBuilder();
+    /**
+     * Like {@link #generate(int)}, but into a new array instead of a String, so
+     * it can be wiped.
+     *
+     * @param length At least 4, one character per class
+     * @return char[]
+     */
+    public static char[] generateChars(int length) {
+        char[] password = new char[length];
+        new PasswordGenerator(Policy.of(length), SHARED_RANDOM).generate(password, 0);
+        return password;
+    }
 
-        int newLength = length - 4; // At least one character from each category
-        // Could add checks for minimum length here, not required at the moment though
+    /**
+     * Generates a single password.
+     *
+     * @return String
+     */
+    public String generate() {
+        char[] password = new char[policy.length()];
+        generate(password, 0);
+        String result = new String(password);
+        Arrays.fill(password, '\0');
+        return result;
+    }
+
+    /**
+     * Writes a password into a buffer, without creating any String.
+     *
+     * @param buffer
+     * @param offset Where the password starts, it takes {@code policy().length()}
+     *               characters
+     */
+    public void generate(char[] buffer, int offset) {
+        checkBounds(buffer, offset, 1);
+        fill(buffer, offset, new Draws(random, drawsPerPassword()));
+    }
 
-        SecureRandom random = new SecureRandom();
-        for (int i = 0; i < newLength; i++) {
-            int index = random.nextInt(allChars.length());
-            password.append(allChars.charAt(index));
+    /**
+     * Writes {@code count} passwords back to back into a buffer, the i-th one
+     * starting at {@code i * policy().length()}. Random bytes are fetched in
+     * bulk for the whole batch.
+     *
+     * @param buffer At least {@code count * policy().length()} characters
+     * @param count
+     */
+    public void generateBatch(char[] buffer, int count) {
+        checkBounds(buffer, 0, count);
+        Draws draws = new Draws(random, DRAW_BUFFER);
+        for (int i = 0; i < count; i++) {
+            fill(buffer, i * policy.length(), draws);
         }
+    }
 
-        // Ensure at least one character from each category
-        password.append(upper.charAt(random.nextInt(upper.length())));
-        password.append(lower.charAt(random.nextInt(lower.length())));
-        password.append(digits.charAt(random.nextInt(digits.length())));
-        password.append(special.charAt(random.nextInt(special.length())));
+    /**
+     * Generates {@code count} passwords, each in its own array.
+     *
+     * @param count
+     * @return char[][]
+     */
+    public char[][] generateBatch(int count) {
+        char[][] passwords = new char[count][policy.length()];
+        Draws draws = new Draws(random, DRAW_BUFFER);
+        for (char[] password : passwords) {
+            fill(password, 0, draws);
+        }
+        return passwords;
+    }
 
-        // Fisher-Yates shuffle
-        char[] shuffledPassword = password.toString().toCharArray();
-        shuffleArray(shuffledPassword);
+    /**
+     * Returns an endless stream of passwords, each in a new array. Use
+     * {@code limit} to take as many as needed. Even a parallel stream draws
+     * from the source on one thread at a time.
+     *
+     * @return Stream<char[]>
+     */
+    public Stream<char[]> stream() {
+        Draws draws = new Draws(random, DRAW_BUFFER);
+        return StreamSupport.stream(new Spliterators.AbstractSpliterator<char[]>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super char[]> action) {
+                char[] password = new char[policy.length()];
+                fill(password, 0, draws);
+                action.accept(password);
+                return true;
+            }
+        }, false);
+    }
+
+    /**
+     * Fills one password: a character of each required class first, the rest
+     * from the whole alphabet, then shuffles them with Fisher-Yates so the
+     * required ones can end up anywhere.
+     *
+     * @param buffer
+     * @param offset
+     * @param draws
+     */
+    private void fill(char[] buffer, int offset, Draws draws) {
+        int length = policy.length();
+        for (int i = 0; i < required.length; i++) {
+            buffer[offset + i] = required[i][draws.nextInt(required[i].length)];
+        }
+        for (int i = required.length; i < length; i++) {
+            buffer[offset + i] = alphabet[draws.nextInt(alphabet.length)];
+        }
+        for (int i = length - 1; i > 0; i--) {
+            int j = draws.nextInt(i + 1);
+            char temp = buffer[offset + i];
+            buffer[offset + i] = buffer[offset + j];
+            buffer[offset + j] = temp;
+        }
+    }
 
-        return new String(shuffledPassword);
+    private int drawsPerPassword() {
+        // One draw per character and per swap, plus a few rejected ones
+        return Math.min(DRAW_BUFFER, (2 * policy.length() + 8) * Integer.BYTES);
+    }
+
+    private void checkBounds(char[] buffer, int offset, int count) {
+        if (count < 0 || offset < 0 || (long) offset + (long) count * policy.length() > buffer.length) {
+            throw new IllegalArgumentException("Buffer too small for " + count + " passwords of length "
+                    + policy.length());
+        }
     }
 
     /**
-     * Shuffles the characters in the given array using the Fisher-Yates algorithm.
-     * 
-     * @param array
+     * Random numbers taken from a buffer of SecureRandom bytes, refilled when it
+     * runs out. Not thread safe, each caller uses its own.
      */
-    private static void shuffleArray(char[] array) {
-        SecureRandom random = new SecureRandom();
-        for (int i = array.length - 1; i > 0; i--) {
-            int randomNumber = random.nextInt(i + 1);
-            char temp = array[i];
-            array[i] = array[randomNumber];
-            array[randomNumber] = temp;
+    private static final class Draws {
+        private final SecureRandom random;
+        private final byte[] bytes;
+        private int position;
+
+        Draws(SecureRandom random, int size) {
+            this.random = random;
+            this.bytes = new byte[size - size % Integer.BYTES];
+            this.position = bytes.length;
+        }
+
+        /**
+         * Returns a uniformly distributed number from 0 (inclusive) to bound
+         * (exclusive). Values from the uneven tail of the 31-bit range are drawn
+         * again, so no number is more likely than another.
+         *
+         * @param bound
+         * @return int
+         */
+        int nextInt(int bound) {
+            int limit = Integer.MAX_VALUE - Integer.MAX_VALUE % bound;
+            while (true) {
+                int value = nextRaw() >>> 1;
+                if (value < limit) {
+                    return value % bound;
+                }
+            }
+        }
+
+        private int nextRaw() {
+            if (position == bytes.length) {
+                random.nextBytes(bytes);
+                position = 0;
+            }
+            int value = (bytes[position] & 0xFF) << 24 | (bytes[position + 1] & 0xFF) << 16
+                    | (bytes[position + 2] & 0xFF) << 8 | (bytes[position + 3] & 0xFF);
+            bytes[position] = bytes[position + 1] = bytes[position + 2] = bytes[position + 3] = 0;
+            position += Integer.BYTES;
+            return value;
         }
     }
 }
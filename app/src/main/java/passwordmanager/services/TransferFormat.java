@@ -0,0 +1,164 @@
+package passwordmanager.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import passwordmanager.model.Entry;
+
+/**
+ * Plain text formats entries can be imported from and exported to. Rows are
+ * read and written one at a time, so files of any size go through in constant
+ * memory.
+ * <p>
+ * Columns (CSV) and fields (JSON) are matched by name, which covers the exports
+ * of browsers and other password managers: Chrome and Firefox CSV, Bitwarden
+ * CSV and JSON, and plain {@code service,username,password} files.
+ */
+public enum TransferFormat {
+    CSV(1) {
+        @Override
+        Source reader(Reader in) {
+            return new CsvFormat.Source(in);
+        }
+
+        @Override
+        Sink writer(Writer out) throws IOException {
+            return new CsvFormat.Sink(out);
+        }
+    },
+    JSON(2) {
+        @Override
+        Source reader(Reader in) {
+            return new JsonFormat.Source(in);
+        }
+
+        @Override
+        Sink writer(Writer out) throws IOException {
+            return new JsonFormat.Sink(out);
+        }
+    };
+
+    // Field names for each value, most specific first
+    private static final List<String> SERVICE_FIELDS = List.of("service", "name", "title");
+    private static final List<String> URL_FIELDS = List.of("url", "login_uri", "uri", "origin", "hostname");
+    private static final List<String> USERNAME_FIELDS = List.of("username", "login_username", "user", "login",
+            "email");
+    private static final List<String> PASSWORD_FIELDS = List.of("password", "login_password");
+
+    /**
+     * One imported row, before it's validated.
+     *
+     * @param service
+     * @param username
+     * @param password
+     * @param line     Line where the row starts, for error messages
+     */
+    record Row(String service, String username, String password, long line) {
+    }
+
+    /**
+     * Reads rows one at a time.
+     */
+    interface Source extends Closeable {
+        /**
+         * Reads the next row.
+         *
+         * @return Row or null at the end of the input
+         * @throws IOException if the input is malformed
+         */
+        Row next() throws IOException;
+    }
+
+    /**
+     * Writes entries one at a time. Closing it completes the document.
+     */
+    interface Sink extends Closeable {
+        void write(Entry entry) throws IOException;
+    }
+
+    // Stored in encrypted exports
+    final int id;
+
+    TransferFormat(int id) {
+        this.id = id;
+    }
+
+    abstract Source reader(Reader in);
+
+    abstract Sink writer(Writer out) throws IOException;
+
+    /**
+     * Picks the format from the file extension, or null if it isn't known.
+     *
+     * @param fileName
+     * @return TransferFormat
+     */
+    public static TransferFormat fromFileName(String fileName) {
+        String lower = fileName.toLowerCase(Locale.ROOT);
+        if (lower.endsWith(".csv")) {
+            return CSV;
+        }
+        if (lower.endsWith(".json")) {
+            return JSON;
+        }
+        return null;
+    }
+
+    static TransferFormat fromId(int id) {
+        for (TransferFormat format : values()) {
+            if (format.id == id) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Builds a row out of named fields, using the first known name present for
+     * each value. When there is no service name, the host of the URL is used.
+     * Service names and usernames are trimmed, passwords are not.
+     *
+     * @param fields Field names in lower case
+     * @param line
+     * @return Row
+     */
+    static Row toRow(Map<String, String> fields, long line) {
+        String service = first(fields, SERVICE_FIELDS);
+        if (service == null || service.isBlank()) {
+            String url = first(fields, URL_FIELDS);
+            service = url == null ? null : host(url.strip());
+        }
+        String username = first(fields, USERNAME_FIELDS);
+        // Passwords are kept as they are, spaces included
+        return new Row(service == null ? null : service.strip(), username == null ? "" : username.strip(),
+                first(fields, PASSWORD_FIELDS), line);
+    }
+
+    private static String first(Map<String, String> fields, List<String> names) {
+        for (String name : names) {
+            String value = fields.get(name);
+            if (value != null && !value.isEmpty()) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private static String host(String url) {
+        try {
+            String host = URI.create(url.contains("://") ? url : "https://" + url).getHost();
+            if (host != null) {
+                return host.startsWith("www.") ? host.substring(4) : host;
+            }
+        } catch (IllegalArgumentException e) {
+            // Not a URL, keep it as it is
+        }
+        return url;
+    }
+}
@@ -0,0 +1,53 @@
+package passwordmanager.metrics;
+
+import java.io.StringWriter;
+
+import org.junit.jupiter.api.Test;
+
+public class MetricsTest {
+
+    @Test
+    void bucketsBoundEveryDuration() {
+        for (long nanos : new long[] { 0, 1, 15, 16, 17, 1000, 123_456_789, Long.MAX_VALUE }) {
+            int bucket = Metrics.bucket(nanos);
+            assert bucket >= 0 && bucket < Metrics.BUCKETS : nanos + " -> " + bucket;
+            assert Metrics.upperBound(bucket) >= nanos : nanos + " is above its bucket";
+            // Within 1/8 of the value, for any magnitude
+            assert Metrics.upperBound(bucket) - nanos <= nanos / Metrics.SUB_BUCKETS : nanos + " bucket too wide";
+            if (bucket > 0) {
+                assert Metrics.upperBound(bucket - 1) < nanos : nanos + " fits an earlier bucket";
+            }
+        }
+    }
+
+    @Test
+    void timersReportPercentilesAndExport() throws Exception {
+        Metrics.Timer timer = Metrics.timer("test_timer", "Timer used by MetricsTest");
+        Metrics.Counter counter = Metrics.counter("test_counter", "Counter used by MetricsTest");
+        timer.reset();
+        counter.reset();
+        // 1 to 100 ms
+        for (int i = 1; i <= 100; i++) {
+            timer.record(i * 1_000_000L);
+        }
+        counter.add(42);
+
+        assert timer.count() == 100;
+        assert Math.abs(timer.getMeanMillis() - 50.5) < 1e-9;
+        assert timer.maxNanos() == 100_000_000L;
+        double p50 = timer.getP50Millis();
+        double p99 = timer.getP99Millis();
+        System.out.println("Metrics: p50 " + p50 + " ms, p99 " + p99 + " ms");
+        assert p50 >= 50 && p50 <= 50 * 1.125;
+        assert p99 >= 99 && p99 <= 100;
+        assert Metrics.timer("test_timer", "ignored") == timer;
+
+        StringWriter out = new StringWriter();
+        Metrics.writePrometheus(out);
+        String text = out.toString();
+        assert text.contains("# TYPE passwordmanager_test_timer_seconds summary\n");
+        assert text.contains("passwordmanager_test_timer_seconds_count 100\n");
+        assert text.contains("passwordmanager_test_timer_seconds_sum 5.050000000\n");
+        assert text.contains("passwordmanager_test_counter_total 42\n");
+    }
+}
@@ -0,0 +1,53 @@
+package passwordmanager.model;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class EntryStoreTest {
+    @Test
+    void findIgnoresCase() {
+        EntryStore store = new EntryStore();
+        Entry entry = new Entry("GitHub", "me", "secret");
+        store.add(entry);
+        assert store.find("github").equals(List.of(entry));
+        assert store.find("GITHUB", "ME") == entry;
+        assert store.find("gitlab").isEmpty();
+    }
+
+    @Test
+    void multipleAccounts() {
+        EntryStore store = new EntryStore();
+        Entry work = new Entry("github", "work", "secret1");
+        Entry personal = new Entry("github", "personal", "secret2");
+        store.add(work);
+        store.add(personal);
+        List<Entry> accounts = store.find("github");
+        assert accounts.size() == 2;
+        assert store.find("github", "personal") == personal;
+        // Found accounts are a copy, changing the store doesn't reach them
+        store.remove(work);
+        assert accounts.equals(List.of(work, personal));
+    }
+
+    @Test
+    void removeUpdatesIndex() {
+        EntryStore store = new EntryStore();
+        Entry entry = new Entry("github", "me", "secret");
+        store.add(entry);
+        assert store.remove(entry);
+        assert !store.remove(entry);
+        assert store.find("github").isEmpty();
+        assert store.isEmpty();
+    }
+
+    @Test
+    void keepsInsertionOrder() {
+        List<Entry> entries = List.of(
+                new Entry("b", "u", "p"),
+                new Entry("a", "u", "p"),
+                new Entry("c", "u", "p"));
+        EntryStore store = new EntryStore(entries);
+        assert List.copyOf(store.entries()).equals(entries);
+    }
+}
@@ -0,0 +1,32 @@
+package passwordmanager.model;
+
+import java.time.Duration;
+import java.util.HexFormat;
+
+import org.junit.jupiter.api.Test;
+
+public class KdfTest {
+    @Test
+    void scryptMatchesRfc7914() throws Exception {
+        // Test vectors from RFC 7914, section 12
+        byte[] empty = ScryptFunction.derive(new byte[0], new byte[0], 4, 1, 1, 64);
+        assert HexFormat.of().formatHex(empty).equals(
+                "77d6576238657b203b19ca42c18a0497f16b4844e3074ae8dfdffa3fede21442"
+                        + "fcd0069ded0948f8326a753a0fc81f17e8d3e0fb2e0d3628cf35e20c38d18906");
+        byte[] nacl = ScryptFunction.derive("password".getBytes(), "NaCl".getBytes(), 10, 8, 16, 64);
+        assert HexFormat.of().formatHex(nacl).equals(
+                "fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e77376634b373162"
+                        + "2eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc0640");
+    }
+
+    @Test
+    void calibratesToTarget() throws Exception {
+        Duration target = Duration.ofMillis(100);
+        for (Kdf kdf : new Kdf[] { Kdf.Pbkdf2.calibrate(target), Kdf.Scrypt.calibrate(target) }) {
+            long nanos = Kdf.time(kdf);
+            System.out.println("Calibrated: " + kdf + " takes " + nanos / 1_000_000 + " ms");
+            // Loose bounds, timing on a shared machine is noisy
+            assert nanos < target.toNanos() * 4;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package passwordmanager.model;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class SearchIndexTest {
+    private final Entry github = new Entry("GitHub", "octocat", "hunter2");
+    private final Entry gitlab = new Entry("gitlab", "tanuki", "hunter3");
+    private final Entry mail = new Entry("mail", "github-bot", "hunter4");
+
+    private SearchIndex index() {
+        SearchIndex index = new SearchIndex();
+        index.add(github);
+        index.add(gitlab);
+        index.add(mail);
+        return index;
+    }
+
+    @Test
+    void exactBeforePrefix() {
+        List<Entry> results = index().search("github", 10);
+        System.out.println("Exact: " + results);
+        assert results.get(0) == github;
+        assert results.get(1) == mail;
+    }
+
+    @Test
+    void prefixMatches() {
+        List<Entry> results = index().search("GIT", 10);
+        assert results.size() == 3;
+        assert !results.get(0).equals(mail);
+    }
+
+    @Test
+    void fuzzyMatches() {
+        List<Entry> results = index().search("gitlba", 10);
+        System.out.println("Fuzzy: " + results);
+        assert results.contains(gitlab);
+        assert index().search("githbu", 10).get(0) == github;
+    }
+
+    @Test
+    void passwordsAreNotIndexed() {
+        assert index().search("hunter", 10).isEmpty();
+    }
+
+    @Test
+    void removeUpdatesIndex() {
+        SearchIndex index = index();
+        index.remove(gitlab);
+        assert !index.search("gitlab", 10).contains(gitlab);
+        assert index.search("octo", 10).equals(List.of(github));
+    }
+}
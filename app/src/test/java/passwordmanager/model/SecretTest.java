@@ -0,0 +1,49 @@
+package passwordmanager.model;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SecretTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void destroyWipesTheBackingArray() {
+        char[] chars = "pä$$ 🔑".toCharArray();
+        Secret secret = Secret.wrap(chars);
+        byte[] utf8 = secret.toUtf8();
+        assert new String(utf8, StandardCharsets.UTF_8).equals("pä$$ 🔑");
+        assert Secret.decode(utf8, 0, utf8.length).contentEquals(secret);
+        assert !secret.toString().contains("p");
+
+        secret.destroy();
+        assert new String(chars).equals("\0".repeat(chars.length));
+        try {
+            secret.chars();
+            assert false : "destroyed secrets can't be read";
+        } catch (IllegalStateException e) {
+            System.out.println("Secret: Caught expected exception: " + e.getMessage());
+        }
+    }
+
+    @Test
+    void sealingWipesThePlainPassword() throws Exception {
+        Secret master = Secret.copyOf("master");
+        Secret password = Secret.copyOf("secret");
+        Entry entry = new Entry("github", "me", password);
+        Vault vault = new Vault(dir.resolve("vault.dat"), Duration.ofMinutes(1));
+        vault.save(List.of(entry), master);
+
+        // The entry now reads its password from the file, the plain copy is gone
+        assert password.isDestroyed();
+        try (Secret opened = entry.openPassword()) {
+            assert new String(opened.chars()).equals("secret");
+        }
+        assert !entry.toString().contains("secret");
+    }
+}
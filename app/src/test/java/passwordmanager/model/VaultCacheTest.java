@@ -0,0 +1,75 @@
+package passwordmanager.model;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class VaultCacheTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void opensInParallelAndEvictsLeastRecentlyUsed() throws Exception {
+        // Room for two vaults with one entry each
+        VaultCache vaults = new VaultCache(dir, Duration.ofMinutes(1), 2L * VaultCache.ENTRY_BYTES);
+        Map<String, Exception> failures = vaults.openAll(List.of(
+                new VaultCache.Request("team", Secret.copyOf("one")),
+                new VaultCache.Request("ops", Secret.copyOf("two"))));
+        assert failures.isEmpty();
+        assert vaults.current().name().equals("ops");
+        // Checking a vault is open doesn't use it
+        assert vaults.contains("team") && !vaults.contains("billing");
+        assert vaults.current().name().equals("ops") && vaults.openVaults().get(0).name().equals("team");
+        for (VaultCache.OpenVault opened : vaults.openVaults()) {
+            Entry entry = new Entry("service", opened.name(), "secret");
+            opened.entries().add(entry);
+            opened.writer().add(entry, opened.entries().entries(), opened.masterPassword());
+        }
+
+        // Opening a third vault goes over the budget, so the least recently used one is closed
+        VaultCache.OpenVault team = vaults.switchTo("team");
+        VaultCache.OpenVault ops = vaults.switchTo("ops");
+        VaultCache.OpenVault billing = vaults.open("billing", Secret.copyOf("three"));
+        billing.entries().add(new Entry("service", "billing", "secret"));
+        vaults.switchTo("ops");
+        System.out.println("Cache: open vaults " + vaults.openVaults().stream().map(VaultCache.OpenVault::name).toList());
+        assert vaults.openVaults().stream().noneMatch(opened -> opened.name().equals("team"));
+        assert team.entries().isEmpty() && !team.vault().isUnlocked();
+        assert ops.entries().size() == 1;
+
+        // The evicted vault's change was written before it was closed
+        assert new Vault(dir.resolve("team.vault"), Duration.ofMinutes(1)).load(Secret.copyOf("one")).size() == 1;
+
+        // Wrong passwords are reported per vault
+        failures = vaults.openAll(List.of(new VaultCache.Request("team", Secret.copyOf("wrong"))));
+        assert failures.containsKey("team");
+        vaults.close();
+        assert Files.exists(dir.resolve("ops.vault"));
+        assert !Files.exists(dir.resolve("billing.vault")); // never saved
+    }
+
+    @Test
+    void closesIdleVaults() throws Exception {
+        VaultCache vaults = new VaultCache(dir, Duration.ofMinutes(1), VaultCache.DEFAULT_MEMORY_BUDGET,
+                Duration.ofMinutes(10));
+        vaults.openAll(List.of(new VaultCache.Request("team", Secret.copyOf("one")),
+                new VaultCache.Request("ops", Secret.copyOf("two"))));
+        VaultCache.OpenVault team = vaults.openVaults().get(0);
+        assert team.name().equals("team");
+
+        // Still in use
+        vaults.closeIdle(System.nanoTime());
+        assert vaults.openVaults().size() == 2;
+
+        // Later on, only the current vault stays open
+        vaults.closeIdle(System.nanoTime() + Duration.ofMinutes(11).toNanos());
+        assert vaults.openVaults().size() == 1 && vaults.current().name().equals("ops");
+        assert !team.vault().isUnlocked() && team.masterPassword().isDestroyed();
+        vaults.close();
+    }
+}
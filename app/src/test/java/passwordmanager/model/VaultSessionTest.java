@@ -0,0 +1,46 @@
+package passwordmanager.model;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class VaultSessionTest {
+    @Test
+    void uniqueIvs() {
+        VaultSession session = new VaultSession(new byte[32]);
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            assert seen.add(Arrays.toString(session.nextIv()));
+        }
+    }
+
+    @Test
+    void sessionsOnSameKeyDrawNewFixedFields() {
+        // Counters restart at zero, the fixed field tells sessions apart
+        byte[] key = new byte[32];
+        ByteBuffer first = ByteBuffer.wrap(new VaultSession(key).nextIv());
+        ByteBuffer second = ByteBuffer.wrap(new VaultSession(key).nextIv());
+        assert first.getLong(VaultSession.FIXED_FIELD_SIZE) == 0;
+        assert second.getLong(VaultSession.FIXED_FIELD_SIZE) == 0;
+        assert first.getInt(0) != second.getInt(0);
+    }
+
+    @Test
+    void destroyLocksSession() {
+        byte[] key = new byte[32];
+        Arrays.fill(key, (byte) 1);
+        VaultSession session = new VaultSession(key);
+        session.destroy();
+        assert session.isDestroyed();
+        assert Arrays.equals(key, new byte[32]);
+        try {
+            session.key();
+            assert false;
+        } catch (IllegalStateException e) {
+            System.out.println("Destroy: Caught expected exception: " + e.getMessage());
+        }
+    }
+}
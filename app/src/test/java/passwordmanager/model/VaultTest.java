@@ -0,0 +1,557 @@
+package passwordmanager.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import passwordmanager.metrics.Metrics;
+
+public class VaultTest {
+    private static final Secret MASTER = Secret.copyOf("master");
+
+    @TempDir
+    Path dir;
+
+    private Vault newVault() {
+        return new Vault(dir.resolve("vault.dat"), Duration.ofMinutes(1));
+    }
+
+    // Entries only compare their accounts, these must have the same passwords too
+    private static boolean sameEntries(List<Entry> actual, List<Entry> expected) {
+        if (!actual.equals(expected)) {
+            return false;
+        }
+        for (int i = 0; i < actual.size(); i++) {
+            if (!actual.get(i).samePassword(expected.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Test
+    void saveAndLoad() throws Exception {
+        List<Entry> entries = new ArrayList<>();
+        entries.add(new Entry("github", "me", "secret"));
+        newVault().save(entries, MASTER);
+
+        Vault vault = newVault();
+        List<Entry> loaded = vault.load(MASTER);
+        assert sameEntries(loaded, entries);
+
+        // Comparing entries doesn't need their passwords, so it still works once locked
+        vault.lock();
+        assert new EntryStore(loaded).entries().containsAll(entries);
+    }
+
+    @Test
+    void journalReplay() throws Exception {
+        Vault vault = newVault();
+        List<Entry> entries = new ArrayList<>();
+        Entry first = new Entry("github", "me", "secret");
+        entries.add(first);
+        vault.save(entries, MASTER);
+
+        Entry second = new Entry("gitlab", "you", "other");
+        entries.add(second);
+        vault.add(second, entries, MASTER);
+        entries.remove(first);
+        vault.delete(first, entries, MASTER);
+        assert Files.exists(dir.resolve("vault.dat.journal"));
+
+        List<Entry> loaded = newVault().load(MASTER);
+        assert sameEntries(loaded, List.of(second));
+
+        // A new password for the same account replaces the old one
+        Entry changed = new Entry("gitlab", "you", "changed");
+        vault.delete(second, List.of(), MASTER);
+        vault.add(changed, List.of(changed), MASTER);
+        assert sameEntries(newVault().load(MASTER), List.of(changed));
+    }
+
+    @Test
+    void writeBehindCoalescesChanges() throws Exception {
+        Vault vault = newVault();
+        List<Entry> entries = new ArrayList<>();
+        entries.add(new Entry("github", "me", "secret"));
+        vault.save(entries, MASTER);
+
+        List<CompletableFuture<Void>> saves = new ArrayList<>();
+        try (VaultWriter writer = new VaultWriter(vault)) {
+            // Holding the vault keeps the first commit waiting while the rest queue up
+            synchronized (vault) {
+                for (int i = 0; i < 50; i++) {
+                    Entry entry = new Entry("service" + i, "me", "password" + i);
+                    entries.add(entry);
+                    saves.add(writer.add(entry, entries, MASTER));
+                }
+            }
+            writer.flush();
+            System.out.println("Write-behind: 50 changes in " + writer.commits() + " commits");
+            assert writer.commits() <= 2;
+        }
+        assert saves.stream().allMatch(save -> save.isDone() && !save.isCompletedExceptionally());
+        assert sameEntries(newVault().load(MASTER), entries);
+
+        // Failures are reported through the future
+        VaultWriter broken = new VaultWriter(new Vault(dir.resolve("missing/vault.dat"), Duration.ofMinutes(1)));
+        CompletableFuture<Void> failed = broken.add(entries.get(0), entries, MASTER);
+        broken.close();
+        assert failed.isCompletedExceptionally();
+
+        // A change queued before a failed one was undone must not save it after all
+        Vault compacting = new Vault(dir.resolve("vault.dat"), Duration.ofMinutes(1), 0, Long.MAX_VALUE);
+        compacting.load(MASTER);
+        compacting.lock();
+        try (VaultWriter writer = new VaultWriter(compacting)) {
+            Entry lost = new Entry("lost", "me", "never saved");
+            entries.add(lost);
+            CompletableFuture<Void> refused = writer.add(lost, entries, Secret.copyOf("wrong"));
+            writer.flush();
+            assert refused.isCompletedExceptionally();
+            Entry kept = new Entry("kept", "me", "saved");
+            entries.add(kept);
+            writer.add(kept, entries, MASTER).get();
+            entries.remove(lost);
+        }
+        assert sameEntries(newVault().load(MASTER), entries);
+    }
+
+    @Test
+    void keepsBackups() throws Exception {
+        Path file = dir.resolve("vault.dat");
+        Vault vault = new Vault(file, Duration.ofMinutes(1), 2);
+        for (int i = 1; i <= 3; i++) {
+            vault.save(List.of(new Entry("service", "me", "version" + i)), MASTER);
+        }
+        System.out.println("Backups: Last save took " + vault.lastSave());
+        assert vault.lastSave().bytes() == Files.size(file);
+        assert !Files.exists(dir.resolve("vault.dat.tmp"));
+        assert !Files.exists(dir.resolve("vault.dat.3"));
+        Vault newest = new Vault(dir.resolve("vault.dat.1"), Duration.ofMinutes(1), 0);
+        assert newest.load(MASTER).get(0).getPassword().equals("version2");
+        Vault oldest = new Vault(dir.resolve("vault.dat.2"), Duration.ofMinutes(1), 0);
+        assert oldest.load(MASTER).get(0).getPassword().equals("version1");
+        assert newVault().load(MASTER).get(0).getPassword().equals("version3");
+    }
+
+    @Test
+    void restoredBackupDoesNotReuseIvs() throws Exception {
+        Path file = dir.resolve("vault.dat");
+        Vault vault = new Vault(file, Duration.ofMinutes(1), 2);
+        vault.save(List.of(new Entry("github", "me", "secret")), MASTER);
+        vault.save(List.of(new Entry("github", "me", "secret"), new Entry("gitlab", "me", "other")), MASTER);
+        vault.lock();
+        Set<String> newest = ivs(file);
+
+        // 1. Put the previous version back, as a user restoring a backup would
+        Files.copy(dir.resolve("vault.dat.1"), file, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(dir.resolve("vault.dat.journal"));
+        Set<String> backup = ivs(file);
+
+        // 2. Save it again with a new entry
+        Vault restored = newVault();
+        List<Entry> entries = new ArrayList<>(restored.load(MASTER));
+        entries.add(new Entry("bitbucket", "me", "third"));
+        restored.save(entries, MASTER);
+        restored.lock();
+
+        // 3. Passwords carried over keep their IVs, every other IV is new
+        Set<String> issued = ivs(file);
+        issued.removeAll(backup);
+        System.out.println("Restored backup: " + issued.size() + " new IVs");
+        assert !issued.isEmpty();
+        issued.retainAll(newest);
+        assert issued.isEmpty() : "IVs of the newer vault were used again";
+    }
+
+    private Set<String> ivs(Path file) throws Exception {
+        Set<String> ivs = new HashSet<>();
+        byte[] bytes = Files.readAllBytes(file);
+        ivs.add(Arrays.toString(VaultFormat.readHeader(ByteBuffer.wrap(bytes)).iv()));
+        Vault vault = new Vault(file, Duration.ofMinutes(1), 0);
+        for (Entry entry : vault.load(MASTER)) {
+            byte[] iv = new byte[12];
+            entry.getSealed().sealed().get(iv);
+            ivs.add(Arrays.toString(iv));
+        }
+        vault.lock();
+        return ivs;
+    }
+
+    @Test
+    void changesKdfAndPasswordWithoutRewritingEntries() throws Exception {
+        Vault vault = newVault();
+        List<Entry> entries = new ArrayList<>();
+        entries.add(new Entry("github", "me", "secret"));
+        vault.save(entries, MASTER);
+        Entry added = new Entry("gitlab", "me", "other");
+        entries.add(added);
+        vault.add(added, entries, MASTER);
+        byte[] before = Files.readAllBytes(dir.resolve("vault.dat"));
+
+        Kdf scrypt = new Kdf.Scrypt(10, 8, 1);
+        try {
+            vault.changeKdf(scrypt, Secret.copyOf("wrong"));
+            assert false : "KDF changed with a wrong password";
+        } catch (Exception e) {
+            System.out.println("Change KDF: Caught expected exception: " + e);
+        }
+        vault.changeKdf(scrypt, MASTER);
+        assert entries.get(0).getPassword().equals("secret");
+
+        // Only the key slots were rewritten, the sealed metadata and passwords are the same bytes
+        byte[] after = Files.readAllBytes(dir.resolve("vault.dat"));
+        int headerEnd = VaultFormat.FIXED_HEADER_SIZE + VaultFormat.KEY_SLOTS * VaultFormat.KEY_SLOT_SIZE;
+        assert after.length == before.length;
+        assert Arrays.equals(before, 0, VaultFormat.FIXED_HEADER_SIZE, after, 0, VaultFormat.FIXED_HEADER_SIZE);
+        assert Arrays.equals(before, headerEnd, before.length, after, headerEnd, after.length);
+        Vault reopened = newVault();
+        assert sameEntries(reopened.load(MASTER), entries);
+        assert reopened.kdf().equals(scrypt);
+
+        // The old password stops working as soon as the new one is written
+        Secret changed = Secret.copyOf("changed");
+        vault.changeMasterPassword(MASTER, changed);
+        try {
+            newVault().load(MASTER);
+            assert false : "old master password still opens the vault";
+        } catch (AEADBadTagException e) {
+            System.out.println("Change password: Caught expected exception: " + e);
+        }
+        assert sameEntries(newVault().load(changed), entries);
+        assert entries.get(1).getPassword().equals("other");
+    }
+
+    @Test
+    void compactsJournal() throws Exception {
+        Vault vault = new Vault(dir.resolve("vault.dat"), Duration.ofMinutes(1), 2, 1 << 20);
+        List<Entry> entries = new ArrayList<>();
+        vault.save(entries, MASTER);
+        for (int i = 0; i < 5; i++) {
+            Entry entry = new Entry("service" + i, "user", "pass" + i);
+            entries.add(entry);
+            vault.add(entry, entries, MASTER);
+        }
+        assert sameEntries(newVault().load(MASTER), entries);
+    }
+
+    @Test
+    void discardsTornRecord() throws Exception {
+        Vault vault = newVault();
+        List<Entry> entries = new ArrayList<>();
+        vault.save(entries, MASTER);
+        Entry kept = new Entry("github", "me", "secret");
+        entries.add(kept);
+        vault.add(kept, entries, MASTER);
+        Entry torn = new Entry("gitlab", "you", "other");
+        entries.add(torn);
+        vault.add(torn, entries, MASTER);
+
+        // Simulate a crash halfway through the last append
+        Path journal = dir.resolve("vault.dat.journal");
+        try (RandomAccessFile raf = new RandomAccessFile(journal.toFile(), "rw")) {
+            raf.setLength(raf.length() - 10);
+        }
+
+        Vault reopened = newVault();
+        assert sameEntries(reopened.load(MASTER), List.of(kept));
+
+        // Appending after the discarded record still replays cleanly
+        List<Entry> current = new ArrayList<>(List.of(kept, torn));
+        reopened.add(torn, current, MASTER);
+        assert sameEntries(newVault().load(MASTER), current);
+    }
+
+    @Test
+    void dropsRecordsOfFailedAppend() throws Exception {
+        Vault vault = newVault();
+        List<Entry> entries = new ArrayList<>();
+        vault.save(entries, MASTER);
+        Entry kept = new Entry("github", "me", "secret");
+        entries.add(kept);
+        vault.add(kept, entries, MASTER);
+        Path journal = dir.resolve("vault.dat.journal");
+        byte[] beforeFailure = Files.readAllBytes(journal);
+        vault.addAll(List.of(new Entry("gitlab", "you", "other"), new Entry("bitbucket", "us", "third")), entries,
+                MASTER);
+        byte[] failed = Files.readAllBytes(journal);
+
+        // The records reached the file but the append failed, so it was rolled back
+        Files.write(journal, beforeFailure);
+        Vault reopened = newVault();
+        reopened.load(MASTER);
+        Files.write(journal, failed);
+
+        // A shorter batch must not leave the rolled back tail behind it
+        Entry next = new Entry("gitlax", "you", "other");
+        List<Entry> current = new ArrayList<>(List.of(kept, next));
+        reopened.add(next, current, MASTER);
+        assert sameEntries(newVault().load(MASTER), current);
+    }
+
+    @Test
+    void readsPasswordsOnDemand() throws Exception {
+        List<Entry> entries = new ArrayList<>();
+        entries.add(new Entry("github", "me", "secret"));
+        entries.add(new Entry("gitlab", "you", "other"));
+        newVault().save(entries, MASTER);
+
+        // Flip one byte of the last password, the metadata stays intact
+        Path file = dir.resolve("vault.dat");
+        byte[] data = Files.readAllBytes(file);
+        data[data.length - 1] ^= 1;
+        Files.write(file, data);
+
+        Vault vault = newVault();
+        List<Entry> loaded = vault.load(MASTER);
+        assert loaded.size() == 2;
+        assert loaded.get(1).getService().equals("gitlab");
+        assert loaded.get(0).getPassword().equals("secret");
+        try {
+            loaded.get(1).getPassword();
+            assert false : "Corrupted password was decrypted";
+        } catch (IllegalStateException e) {
+            System.out.println(e.getMessage());
+        }
+
+        // Locked vaults keep listing entries, but need unlocking for passwords
+        vault.lock();
+        assert loaded.get(0).getService().equals("github");
+        try {
+            loaded.get(0).getPassword();
+            assert false : "Password was decrypted while locked";
+        } catch (IllegalStateException e) {
+            System.out.println(e.getMessage());
+        }
+        vault.unlock(MASTER);
+        assert loaded.get(0).getPassword().equals("secret");
+    }
+
+    @Test
+    void refusesVaultOpenElsewhere() throws Exception {
+        Vault vault = newVault();
+        vault.save(List.of(new Entry("github", "me", "secret")), MASTER);
+        vault.lock();
+
+        // Another program holds the lock file
+        Path lockFile = dir.resolve("vault.dat.lock");
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE)) {
+            FileLock other = channel.tryLock();
+            assert other != null : "a locked vault still holds its lock file";
+            try {
+                newVault().load(MASTER);
+                assert false : "Vault was opened while another program had it";
+            } catch (IOException e) {
+                System.out.println("Lock: " + e.getMessage());
+            }
+            other.release();
+        }
+
+        // Held while unlocked, released once locked
+        Vault reopened = newVault();
+        assert reopened.load(MASTER).size() == 1;
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE)) {
+            try {
+                assert channel.tryLock() == null;
+            } catch (OverlappingFileLockException e) {
+                // Held by this program
+            }
+            reopened.lock();
+            assert channel.tryLock() != null;
+        }
+    }
+
+    @Test
+    void readsPasswordsWhileVaultIsBusy() throws Exception {
+        Vault vault = newVault();
+        vault.save(List.of(new Entry("github", "me", "secret")), MASTER);
+        List<Entry> loaded = vault.load(MASTER);
+
+        // Another thread holds the vault lock, as a long save would
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread saver = new Thread(() -> {
+            synchronized (vault) {
+                held.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        saver.start();
+        try {
+            held.await();
+            String password = CompletableFuture.supplyAsync(() -> loaded.get(0).getPassword())
+                    .get(10, TimeUnit.SECONDS);
+            assert password.equals("secret");
+        } finally {
+            release.countDown();
+            saver.join();
+        }
+    }
+
+    @Test
+    void streamsSegmentedMetadata() throws Exception {
+        // Enough entries for several metadata segments
+        Vault vault = newVault();
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            entries.add(new Entry("service" + i, "user" + i, "password" + i));
+        }
+        vault.save(entries, MASTER);
+        Entry added = new Entry("gitlab", "you", "other");
+        entries.add(added);
+        vault.add(added, entries, MASTER);
+        Entry deleted = entries.remove(0);
+        vault.delete(deleted, entries, MASTER);
+
+        try (Stream<Entry> stream = newVault().stream(MASTER)) {
+            assert sameEntries(stream.collect(Collectors.toList()), entries);
+        }
+
+        // A loaded vault streams with its session key, without running the KDF
+        Metrics.Timer kdf = Metrics.timer("kdf", "Deriving a key from the master password");
+        long derived = kdf.count();
+        for (int i = 0; i < 3; i++) {
+            try (Stream<Entry> stream = vault.stream(MASTER)) {
+                assert sameEntries(stream.collect(Collectors.toList()), entries);
+            }
+        }
+        assert kdf.count() == derived : "streaming derived the key again";
+        vault.add(deleted, entries, MASTER);
+        entries.add(deleted);
+        assert sameEntries(newVault().load(MASTER), entries);
+
+        // Flip one byte of the second segment, the first one still reads
+        Path file = dir.resolve("vault.dat");
+        byte[] data = Files.readAllBytes(file);
+        VaultFormat.Header header = VaultFormat.readHeader(ByteBuffer.wrap(data));
+        int second = header.length() + VaultFormat.SEGMENT_OVERHEAD
+                + ByteBuffer.wrap(data).getInt(header.length());
+        assert second < header.length() + header.metadataLength();
+        data[second + VaultFormat.SEGMENT_OVERHEAD] ^= 1;
+        Files.write(file, data);
+        try (Stream<Entry> stream = newVault().stream(MASTER)) {
+            stream.forEach(entry -> {
+            });
+            assert false : "Modified segment was read";
+        } catch (UncheckedIOException e) {
+            System.out.println("Streaming: " + e.getMessage());
+        }
+    }
+
+    @Test
+    void keepsHistoryOfDeletedPasswords() throws Exception {
+        Vault vault = newVault();
+        List<Entry> entries = new ArrayList<>();
+        entries.add(new Entry("other", "me", "unrelated"));
+        vault.save(entries, MASTER);
+        long before = Files.size(dir.resolve("vault.dat"));
+        // The same entry changed many times, each old password deleted
+        for (int i = 0; i < 200; i++) {
+            Entry entry = new Entry("github", "me", "correct-horse-battery-" + i);
+            entries.add(entry);
+            vault.add(entry, entries, MASTER);
+            entries.remove(entry);
+            vault.delete(entry, entries, MASTER);
+        }
+        vault.setHistoryRetention(new EntryHistory.Retention(500, Duration.ZERO), entries, MASTER);
+        long growth = Files.size(dir.resolve("vault.dat")) - before;
+        System.out.println("History: 200 versions in " + growth + " bytes");
+        assert growth < 200 * 10;
+
+        // Kept across loads, newest first
+        Vault reopened = newVault();
+        reopened.load(MASTER);
+        EntryHistory history = reopened.history(MASTER);
+        List<EntryHistory.Version> versions = history.of("github", null);
+        assert versions.size() == 200;
+        assert versions.get(0).toEntry().getPassword().equals("correct-horse-battery-199");
+        assert history.of("github", "you").isEmpty();
+        // Names are matched ignoring case, as the entry store does
+        assert history.of("GitHub", "ME").size() == 200;
+        history.destroy();
+
+        // Capitalised differently, it's still the same entry
+        Entry renamed = new Entry("GitHub", "Me", "correct-horse-battery-200");
+        entries.add(renamed);
+        reopened.add(renamed, entries, MASTER);
+        entries.remove(renamed);
+        reopened.delete(renamed, entries, MASTER);
+
+        // A stricter policy drops the oldest versions
+        reopened.setHistoryRetention(new EntryHistory.Retention(3, Duration.ofDays(30)), entries, MASTER);
+        reopened = newVault();
+        reopened.load(MASTER);
+        history = reopened.history(MASTER);
+        versions = history.of("github", "me");
+        assert versions.size() == 3;
+        assert versions.get(0).service().equals("GitHub");
+        assert versions.get(2).toEntry().getPassword().equals("correct-horse-battery-198");
+        history.destroy();
+    }
+
+    @Test
+    void migratesLegacyVault() throws Exception {
+        ArrayList<Entry> entries = new ArrayList<>();
+        entries.add(new Entry("github", "me", "secret"));
+        entries.add(new Entry("gitlab", "you", "ñandú"));
+
+        // Write a vault the way it was stored before the binary format
+        byte[] salt = new byte[16];
+        byte[] iv = new byte[12];
+        Arrays.fill(salt, (byte) 3);
+        Arrays.fill(iv, (byte) 5);
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        byte[] key = factory.generateSecret(new PBEKeySpec(MASTER.chars(), salt, 65536, 256)).getEncoded();
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, iv));
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(plain)) {
+            oos.writeObject(entries);
+        }
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.write(salt);
+        file.write(iv);
+        file.write(cipher.doFinal(plain.toByteArray()));
+        Files.write(dir.resolve("vault.dat"), file.toByteArray());
+
+        assert sameEntries(newVault().load(MASTER), entries);
+        byte[] migrated = Files.readAllBytes(dir.resolve("vault.dat"));
+        assert Arrays.equals(Arrays.copyOf(migrated, 4), VaultFormat.MAGIC);
+        assert sameEntries(newVault().load(MASTER), entries);
+    }
+}
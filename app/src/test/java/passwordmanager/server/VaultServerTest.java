@@ -0,0 +1,66 @@
+package passwordmanager.server;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import passwordmanager.model.EntryStore;
+import passwordmanager.model.Secret;
+import passwordmanager.model.Vault;
+
+public class VaultServerTest {
+    @TempDir
+    Path dir;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @Test
+    void servesEntriesToSessionHolders() throws Exception {
+        Path file = dir.resolve("vault.dat");
+        try (VaultServer server = new VaultServer(new Vault(file, Duration.ofMinutes(1)), new EntryStore(),
+                Secret.copyOf("master"), 0)) {
+            server.start();
+            String base = "http://127.0.0.1:" + server.port();
+
+            // Nothing without a session, and no session without the master password
+            assert send(HttpRequest.newBuilder(URI.create(base + "/entries")).GET(), null).statusCode() == 401;
+            assert send(post(base + "/session", "password=wrong"), null).statusCode() == 403;
+            HttpResponse<String> login = send(post(base + "/session", "password=master"), null);
+            assert login.statusCode() == 200;
+            String token = login.body().split("\"")[3];
+
+            // Added entries are saved before the answer, and can be read back
+            HttpResponse<String> added = send(post(base + "/entries", "service=mail&username=me%40x.org&password=p%26ss"),
+                    token);
+            System.out.println("Server: " + added.statusCode() + " " + added.body());
+            assert added.statusCode() == 201;
+            HttpResponse<String> found = send(
+                    HttpRequest.newBuilder(URI.create(base + "/password?service=MAIL")).GET(), token);
+            assert found.statusCode() == 200 && found.body().contains("\"password\": \"p&ss\"");
+            assert new Vault(file, Duration.ofMinutes(1)).load(Secret.copyOf("master")).size() == 1;
+
+            // Revoked tokens stop working
+            assert send(HttpRequest.newBuilder(URI.create(base + "/session")).DELETE(), token).statusCode() == 204;
+            assert send(HttpRequest.newBuilder(URI.create(base + "/entries")).GET(), token).statusCode() == 401;
+        }
+    }
+
+    private static HttpRequest.Builder post(String uri, String form) {
+        return HttpRequest.newBuilder(URI.create(uri))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form));
+    }
+
+    private HttpResponse<String> send(HttpRequest.Builder request, String token) throws Exception {
+        if (token != null) {
+            request.header("Authorization", "Bearer " + token);
+        }
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+}
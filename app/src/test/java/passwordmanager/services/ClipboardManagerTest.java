@@ -0,0 +1,110 @@
+package passwordmanager.services;
+
+import java.awt.datatransfer.Clipboard;
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.StringSelection;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import passwordmanager.model.Secret;
+
+public class ClipboardManagerTest {
+
+    /**
+     * Holds the scheduled clears until the test runs them, so nothing depends
+     * on how long the delay really takes.
+     */
+    private static final class ManualTimer extends ScheduledThreadPoolExecutor {
+        private record Task(Callable<?> command, long delayMillis, ScheduledFuture<?> future) {
+        }
+
+        private final List<Task> tasks = new ArrayList<>();
+
+        ManualTimer() {
+            super(1);
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> command, long delay, TimeUnit unit) {
+            ScheduledFuture<V> future = super.schedule(() -> null, 1, TimeUnit.DAYS);
+            tasks.add(new Task(command, unit.toMillis(delay), future));
+            return future;
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            return schedule(Executors.callable(command), delay, unit);
+        }
+
+        /**
+         * Runs every clear that wasn't cancelled, as if its delay was over.
+         *
+         * @return List<Long> the delays of the clears that ran
+         * @throws Exception
+         */
+        List<Long> runDue() throws Exception {
+            List<Long> ran = new ArrayList<>();
+            for (Task task : tasks) {
+                if (task.future().cancel(false)) {
+                    task.command().call();
+                    ran.add(task.delayMillis());
+                }
+            }
+            tasks.clear();
+            return ran;
+        }
+    }
+
+    private static String contents(Clipboard clipboard) throws Exception {
+        return (String) clipboard.getData(DataFlavor.stringFlavor);
+    }
+
+    @Test
+    void clearsOnlyItsOwnPassword() throws Exception {
+        Clipboard clipboard = new Clipboard("test");
+        ManualTimer timer = new ManualTimer();
+        try (ClipboardManager manager = new ClipboardManager(Duration.ofMillis(200), clipboard, timer);
+                Secret password = Secret.copyOf("hunter2")) {
+            manager.copy(password);
+            assert contents(clipboard).equals("hunter2");
+            assert !password.isDestroyed() : "the caller still owns its password";
+
+            // Cleared once the delay is over
+            assert timer.runDue().equals(List.of(200L));
+            assert contents(clipboard).isEmpty() : "clipboard still holds the password";
+
+            // A new copy replaces the pending clear
+            manager.copy(password);
+            manager.copy(password);
+            assert timer.runDue().size() == 1;
+            assert contents(clipboard).isEmpty();
+
+            // Something copied since is left alone
+            manager.copy(password);
+            clipboard.setContents(new StringSelection("not a password"), null);
+            assert timer.runDue().size() == 1;
+            assert contents(clipboard).equals("not a password");
+            assert !manager.clearIfOurs();
+        }
+        assert timer.isShutdown();
+    }
+
+    @Test
+    void fallsBackToMemoryWithoutDisplay() {
+        // Tests run headless, the system clipboard can't be reached
+        try (ClipboardManager manager = new ClipboardManager(Duration.ZERO);
+                Secret password = Secret.copyOf("hunter2")) {
+            assert !manager.copy(password);
+            assert manager.clearIfOurs();
+            System.out.println("Clipboard: copies stay in memory without a display");
+        }
+    }
+}
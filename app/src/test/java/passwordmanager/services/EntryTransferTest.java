@@ -0,0 +1,101 @@
+package passwordmanager.services;
+
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import passwordmanager.model.Entry;
+import passwordmanager.model.EntryStore;
+import passwordmanager.model.Secret;
+import passwordmanager.model.Vault;
+
+public class EntryTransferTest {
+    private static final Secret MASTER = Secret.copyOf("master");
+    private static final Secret PASSPHRASE = Secret.copyOf("phrase");
+
+    @TempDir
+    Path dir;
+
+    private Vault newVault() {
+        return new Vault(dir.resolve("vault.dat"), Duration.ofMinutes(1));
+    }
+
+    @Test
+    void importsBrowserCsv() throws Exception {
+        Path csv = dir.resolve("chrome.csv");
+        Files.writeString(csv, """
+                name,url,username,password,note
+                github.com,https://github.com/login,me,"p,a""ss",
+                ,https://www.example.org/,you,secret,
+
+                nopassword.com,https://nopassword.com,me,,
+                github.com,https://github.com/,ME,again,
+                """);
+        EntryStore store = new EntryStore();
+        EntryTransfer.Report report = EntryTransfer.importFrom(csv, null, store, newVault(), MASTER);
+        System.out.println(report);
+        assert report.imported() == 2;
+        assert report.duplicates() == 1;
+        assert report.invalid() == 1;
+        assert store.find("github.com", "me").getPassword().equals("p,a\"ss");
+        assert store.find("example.org", "you") != null;
+        assert newVault().load(MASTER).size() == 2;
+    }
+
+    @Test
+    void importsBitwardenJson() throws Exception {
+        Path json = dir.resolve("bitwarden.json");
+        Files.writeString(json, """
+                {"encrypted": false, "folders": [{"id": "1", "name": "Work"}],
+                 "items": [
+                  {"passwordHistory": [{"password": "old"}], "type": 1, "name": "GitHub", "notes": null,
+                   "login": {"uris": [{"match": null, "uri": "https://github.com"}],
+                             "username": "me", "password": "new\\u0021"}},
+                  {"type": 2, "name": "A note", "secureNote": {"type": 0}}
+                 ]}
+                """);
+        EntryStore store = new EntryStore();
+        EntryTransfer.Report report = EntryTransfer.importFrom(json, null, store, newVault(), MASTER);
+        assert report.imported() == 1;
+        assert report.invalid() == 1;
+        assert store.find("GitHub", "me").getPassword().equals("new!");
+    }
+
+    @Test
+    void encryptedRoundTrip() throws Exception {
+        List<Entry> entries = List.of(
+                new Entry("github", "me", "secret"),
+                new Entry("mail", "you", "line\nbreak \"quoted\""));
+        Path export = dir.resolve("export.json");
+        assert EntryTransfer.exportTo(export, TransferFormat.JSON, entries, PASSPHRASE) == 2;
+        assert EntryTransfer.isEncrypted(export);
+        assert !Files.readString(export, StandardCharsets.ISO_8859_1).contains("secret");
+
+        EntryStore store = new EntryStore();
+        EntryTransfer.importFrom(export, PASSPHRASE, store, newVault(), MASTER);
+        List<Entry> imported = List.copyOf(store.entries());
+        assert imported.equals(entries);
+        for (int i = 0; i < entries.size(); i++) {
+            assert imported.get(i).samePassword(entries.get(i));
+        }
+
+        // A truncated export is rejected and nothing is imported
+        try (RandomAccessFile raf = new RandomAccessFile(export.toFile(), "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        EntryStore other = new EntryStore();
+        try {
+            EntryTransfer.importFrom(export, PASSPHRASE, other, newVault(), MASTER);
+            assert false : "Truncated export was imported";
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        }
+        assert other.isEmpty();
+    }
+}
@@ -0,0 +1,96 @@
+package passwordmanager.services;
+
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import passwordmanager.model.Entry;
+
+public class PasswordAuditTest {
+    @TempDir
+    Path dir;
+
+    private static byte[] sha1(String password) throws Exception {
+        return MessageDigest.getInstance("SHA-1").digest(password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void findsBreachedHashesInSortedCorpus() throws Exception {
+        // 1. Random hashes plus two known ones, sorted like the HIBP download
+        TreeMap<String, Integer> hashes = new TreeMap<>();
+        Random random = new Random(42);
+        byte[] hash = new byte[20];
+        for (int i = 0; i < 20_000; i++) {
+            random.nextBytes(hash);
+            hashes.put(HexFormat.of().withUpperCase().formatHex(hash), 1 + random.nextInt(1000));
+        }
+        hashes.put(HexFormat.of().withUpperCase().formatHex(sha1("password")), 9_545_824);
+        hashes.put(HexFormat.of().withUpperCase().formatHex(sha1("hunter2")), 17_043);
+        Path file = dir.resolve("pwned.txt");
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+            for (var line : hashes.entrySet()) {
+                out.write(line.getKey() + ":" + line.getValue() + "\r\n");
+            }
+        }
+
+        try (BreachCorpus corpus = BreachCorpus.open(file)) {
+            // 2. Every listed hash is found with its count, first and last included
+            for (var line : hashes.entrySet()) {
+                assert corpus.occurrences(HexFormat.of().parseHex(line.getKey())) == line.getValue() : line.getKey();
+            }
+            assert corpus.occurrences(sha1("correct horse battery staple 4711")) == 0;
+            assert corpus.occurrences(new byte[20]) == 0;
+
+            // 3. Audit: breached, reused and weak passwords come first
+            List<Entry> entries = new ArrayList<>();
+            String generated = PasswordGenerator.generate(20);
+            entries.add(new Entry("github", "me", generated));
+            entries.add(new Entry("mail", "me", "hunter2"));
+            entries.add(new Entry("bank", "me", "password"));
+            entries.add(new Entry("shop", "me", "password"));
+            PasswordAudit.Report report = new PasswordAudit(corpus, 2).audit(entries);
+            List<PasswordAudit.Finding> findings = report.atRisk();
+            assert report.audited() == 4;
+            assert findings.size() == 3 : "only entries at risk are reported";
+            assert findings.get(0).breaches() == 9_545_824 && findings.get(0).reusedBy() == 1;
+            assert findings.get(2).entry().getService().equals("mail") && findings.get(2).breaches() == 17_043;
+            double bits = PasswordAudit.entropyBits(generated.toCharArray());
+            assert PasswordAudit.Rating.of(bits) == PasswordAudit.Rating.STRONG;
+            System.out.println("Audit: generated password scores " + Math.round(bits) + " bits");
+        }
+    }
+
+    @Test
+    void findsReuseAcrossChunks() throws Exception {
+        // Shared passwords far apart, so they're checked in different chunks
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 3 * PasswordAudit.CHUNK; i++) {
+            entries.add(new Entry("service-" + i, "me", "Unique-Passw0rd-" + i + "-x7!Qz"));
+        }
+        entries.set(1, new Entry("first", "me", "Shared-Passw0rd-x7!Qz"));
+        entries.set(entries.size() - 1, new Entry("last", "me", "Shared-Passw0rd-x7!Qz"));
+        PasswordAudit.Report report = new PasswordAudit(null, 1).audit(entries);
+        assert report.audited() == entries.size();
+        assert report.atRisk().size() == 2;
+        for (PasswordAudit.Finding finding : report.atRisk()) {
+            assert finding.reusedBy() == 1 && finding.rating() == PasswordAudit.Rating.STRONG : finding;
+        }
+    }
+
+    @Test
+    void runsCountAsPredictable() {
+        assert PasswordAudit.entropyBits("abcdefgh".toCharArray()) < PasswordAudit.entropyBits("qzmxvkwp".toCharArray());
+        assert PasswordAudit.Rating.of(PasswordAudit.entropyBits("aaaaaaaaaaaa".toCharArray())) == PasswordAudit.Rating.VERY_WEAK;
+        assert PasswordAudit.entropyBits(new char[0]) == 0;
+    }
+}
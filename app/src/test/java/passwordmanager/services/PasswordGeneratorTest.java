@@ -1,7 +1,14 @@
 package passwordmanager.services;
 
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
 import org.junit.jupiter.api.Test;
 
+import passwordmanager.services.PasswordGenerator.CharacterClass;
+import passwordmanager.services.PasswordGenerator.Policy;
+
 public class PasswordGeneratorTest {
     @Test
     void validLength() {
@@ -58,4 +65,54 @@ public class PasswordGeneratorTest {
         System.out.println("Unique Passwords: Generated passwords: " + password1 + " , " + password2);
         assert !password1.equals(password2);
     }
+
+    @Test
+    void policyWithExclusions() {
+        Policy policy = new Policy(24, EnumSet.of(CharacterClass.UPPER, CharacterClass.DIGITS), "IO01");
+        PasswordGenerator generator = new PasswordGenerator(policy);
+        for (char[] password : generator.generateBatch(200)) {
+            String value = new String(password);
+            assert value.length() == 24;
+            assert value.chars().allMatch(ch -> Character.isUpperCase(ch) || Character.isDigit(ch));
+            assert value.chars().noneMatch(ch -> "IO01".indexOf(ch) >= 0);
+            assert value.chars().anyMatch(Character::isDigit);
+        }
+    }
+
+    @Test
+    void batchFillsBuffer() {
+        PasswordGenerator generator = new PasswordGenerator(Policy.of(16));
+        char[] buffer = new char[16 * 100];
+        generator.generateBatch(buffer, 100);
+        Set<String> passwords = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            passwords.add(new String(buffer, i * 16, 16));
+        }
+        System.out.println("Batch: First password: " + passwords.iterator().next());
+        assert passwords.size() == 100;
+        assert generator.stream().limit(10).allMatch(password -> password.length == 16);
+        try {
+            generator.generateBatch(new char[16 * 99], 100);
+            assert false : "Buffer overflow wasn't detected";
+        } catch (IllegalArgumentException e) {
+            System.out.println("Batch: Caught expected exception: " + e.getMessage());
+        }
+    }
+
+    @Test
+    void parallelKeepsPolicy() throws Exception {
+        int count = ParallelGenerator.CHUNK * 3 + 7;
+        int[] received = new int[1];
+        new ParallelGenerator(Policy.of(12), 4).generate(count, (passwords, size, length) -> {
+            for (int i = 0; i < size; i++) {
+                String value = new String(passwords, i * length, length);
+                assert value.chars().anyMatch(Character::isUpperCase);
+                assert value.chars().anyMatch(Character::isLowerCase);
+                assert value.chars().anyMatch(Character::isDigit);
+            }
+            received[0] += size;
+        });
+        System.out.println("Parallel: Generated " + received[0] + " passwords");
+        assert received[0] == count;
+    }
 }